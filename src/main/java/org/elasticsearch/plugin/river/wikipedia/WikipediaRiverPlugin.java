@@ -20,10 +20,16 @@
 package org.elasticsearch.plugin.river.wikipedia;
 
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.inject.Module;
+import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.plugins.AbstractPlugin;
 import org.elasticsearch.river.RiversModule;
+import org.elasticsearch.river.wikipedia.WikipediaDecoderPoolModule;
 import org.elasticsearch.river.wikipedia.WikipediaRiverModule;
 
+import java.util.ArrayList;
+import java.util.Collection;
+
 /**
  *
  */
@@ -43,6 +49,13 @@ public class WikipediaRiverPlugin extends AbstractPlugin {
         return "River Wikipedia Plugin";
     }
 
+    @Override
+    public Collection<Module> modules(Settings settings) {
+        Collection<Module> modules = new ArrayList<Module>();
+        modules.add(new WikipediaDecoderPoolModule(settings));
+        return modules;
+    }
+
     public void onModule(RiversModule module) {
         module.registerRiver("wikipedia", WikipediaRiverModule.class);
     }
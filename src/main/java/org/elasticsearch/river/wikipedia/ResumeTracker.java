@@ -0,0 +1,162 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia;
+
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Tracks the compressed block to restart from after a node restart.
+ * <p/>
+ * The XML parser reads ahead of the page it reports, by a whole page or
+ * more, so the block current at that time might start after the next page.
+ * Only blocks starting at or before the decoded output offset of the page
+ * reported are used as restart point. Pages up to the id of the last page
+ * processed are skipped after the restart, they are ordered by id within
+ * the dumps.
+ * <p/>
+ * A restart point may only be saved once all pages before it are indexed.
+ * The latest one is attached to every bulk sent and handed out again once
+ * that bulk and all bulks sent before it are done.
+ */
+class ResumeTracker {
+
+    /**
+     * Restart point of a dump read up to its end.
+     */
+    static final Checkpoint END = new Checkpoint(-1, 0, -1);
+
+    static class Checkpoint {
+
+        final long blockBitOffset;
+        final int blockSize100k;
+        final long pageId;
+
+        Checkpoint(long blockBitOffset, int blockSize100k, long pageId) {
+            this.blockBitOffset = blockBitOffset;
+            this.blockSize100k = blockSize100k;
+            this.pageId = pageId;
+        }
+    }
+
+    private static class Block {
+
+        final long bitOffset;
+        final int blockSize100k;
+        final long outputOffset;
+
+        Block(long bitOffset, int blockSize100k, long outputOffset) {
+            this.bitOffset = bitOffset;
+            this.blockSize100k = blockSize100k;
+            this.outputOffset = outputOffset;
+        }
+    }
+
+    private final LinkedList<Block> blocks = new LinkedList<Block>();
+
+    private volatile Checkpoint checkpoint;
+
+    /**
+     * Restart point for each bulk in flight, by execution id.
+     */
+    private final ConcurrentNavigableMap<Long, Checkpoint> bulkCheckpoints =
+            new ConcurrentSkipListMap<Long, Checkpoint>();
+
+    private volatile boolean endSaved;
+
+    /**
+     * Called by the parsing thread for every page processed.
+     *
+     * @param position   position of the decoder
+     * @param pageOffset decoded output offset the page starts at
+     */
+    void pageProcessed(BZip2BlockPosition position, long pageOffset, long pageId) {
+        if (blocks.isEmpty() || blocks.getLast().bitOffset != position.getBlockBitOffset()) {
+            blocks.add(new Block(position.getBlockBitOffset(), position.getBlockSize100k(),
+                    position.getBlockOutputOffset()));
+        }
+
+        while (blocks.size() > 1 && blocks.get(1).outputOffset <= pageOffset) {
+            blocks.removeFirst();
+        }
+        Block first = blocks.getFirst();
+        if (first.outputOffset <= pageOffset) {
+            checkpoint = new Checkpoint(first.bitOffset, first.blockSize100k, pageId);
+        }
+    }
+
+    /**
+     * Called by the parsing thread once the whole dump was read.
+     */
+    void dumpFinished() {
+        checkpoint = END;
+    }
+
+    /**
+     * @return the latest restart point, <tt>null</tt> if there is none yet
+     */
+    Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Called before a bulk is sent, attaches the latest restart point to it.
+     */
+    void beforeBulk(long executionId) {
+        Checkpoint checkpoint = this.checkpoint;
+        if (checkpoint != null && !(checkpoint == END && endSaved)) {
+            bulkCheckpoints.put(executionId, checkpoint);
+        }
+    }
+
+    /**
+     * Called once a bulk succeeded.
+     *
+     * @return the restart point to save, <tt>null</tt> if there is none or
+     *         a bulk sent before is still in flight
+     */
+    Checkpoint afterBulk(long executionId) {
+        Checkpoint checkpoint = bulkCheckpoints.remove(executionId);
+        if (checkpoint != null && (bulkCheckpoints.isEmpty() || bulkCheckpoints.firstKey() > executionId)) {
+            // all pages up to this checkpoint are indexed
+            return checkpoint;
+        }
+        return null;
+    }
+
+    /**
+     * Called once a bulk failed, its restart point is dropped.
+     */
+    void bulkFailed(long executionId) {
+        bulkCheckpoints.remove(executionId);
+    }
+
+    /**
+     * Called once a restart point returned by {@link #afterBulk(long)} is
+     * saved. After {@link #END} is saved it is not handed out again.
+     */
+    void checkpointSaved(Checkpoint checkpoint) {
+        if (checkpoint == END) {
+            endSaved = true;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DataPool;
+
+/**
+ * Binds the bzip2 decoder buffer pool shared by all wikipedia rivers of
+ * the node. Its size is set by <tt>river.wikipedia.decoder_pool_size</tt>.
+ */
+public class WikipediaDecoderPoolModule extends AbstractModule {
+
+    private final Settings settings;
+
+    public WikipediaDecoderPoolModule(Settings settings) {
+        this.settings = settings;
+    }
+
+    @Override
+    protected void configure() {
+        ByteSizeValue size = settings.getAsBytesSize("river.wikipedia.decoder_pool_size", new ByteSizeValue(64, ByteSizeUnit.MB));
+        bind(BZip2DataPool.class).toInstance(new BZip2DataPool(size.bytes()));
+    }
+}
@@ -20,14 +20,20 @@
 package org.elasticsearch.river.wikipedia;
 
 import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkProcessor;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.index.IndexRequest;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.update.UpdateResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.common.Strings;
 import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.common.xcontent.XContentBuilder;
@@ -36,27 +42,59 @@ import org.elasticsearch.common.xcontent.support.XContentMapValues;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.river.AbstractRiverComponent;
 import org.elasticsearch.river.River;
+import org.elasticsearch.river.RiverIndexName;
 import org.elasticsearch.river.RiverName;
 import org.elasticsearch.river.RiverSettings;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DataPool;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DecoderStats;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CRCCheck;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CorruptBlockListener;
+import org.elasticsearch.river.wikipedia.support.DumpCache;
+import org.elasticsearch.river.wikipedia.support.DumpCodec;
+import org.elasticsearch.river.wikipedia.support.DumpCodecs;
+import org.elasticsearch.river.wikipedia.support.DumpFiles;
+import org.elasticsearch.river.wikipedia.support.DumpProgress;
+import org.elasticsearch.river.wikipedia.support.MultistreamIndex;
 import org.elasticsearch.river.wikipedia.support.PageCallbackHandler;
+import org.elasticsearch.river.wikipedia.support.ReadAheadInputStream;
+import org.elasticsearch.river.wikipedia.support.ReconnectListener;
+import org.elasticsearch.river.wikipedia.support.ReconnectPolicy;
 import org.elasticsearch.river.wikipedia.support.WikiPage;
+import org.elasticsearch.river.wikipedia.support.WikiPageFilter;
 import org.elasticsearch.river.wikipedia.support.WikiXMLParser;
 import org.elasticsearch.river.wikipedia.support.WikiXMLParserFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  *
  */
 public class WikipediaRiver extends AbstractRiverComponent implements River {
 
-    private StringBuilder sb = new StringBuilder();
-
     private final Client client;
 
-    private final URL url;
+    private final String riverIndexName;
+
+    private final BZip2DataPool decoderPool;
+
+    private final List<String> urls;
+
+    private final int concurrentFiles;
 
     private final String indexName;
 
@@ -64,29 +102,213 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
 
     private final int bulkSize;
 
+    private final int decoderThreads;
+
+    private final boolean smallDecoder;
+
+    private final String decoderCRC;
+
+    private final boolean decoderRecover;
+
+    private final BZip2DecoderStats decoderStats = new BZip2DecoderStats();
+
+    private final List<DumpCodec> codecs;
+
+    private final TimeValue statusInterval;
+
+    private final URL indexUrl;
+
+    private final URL gzipIndexUrl;
+
+    private final ByteSizeValue readAhead;
+
+    private final File cacheDir;
+
+    private final URL checksumUrl;
+
+    private final int reconnectAttempts;
+
+    private final TimeValue reconnectDelay;
+
+    private final WikiPageFilter pageFilter;
+
+    private final boolean resume;
+
+    private final TimeValue checkpointInterval;
+
+    /**
+     * One reader per dump file, set once the urls are expanded.
+     */
+    private volatile List<DumpReader> readers = Collections.emptyList();
+
+    private volatile boolean finished = false;
+
     private volatile Thread thread;
 
+    private volatile ExecutorService parserExecutor;
+
+    private volatile ExecutorService decoderExecutor;
+
+    private volatile ExecutorService readAheadExecutor;
+
+    private volatile ScheduledExecutorService statusExecutor;
+
+    private volatile long startNanos;
+
+    /**
+     * Figures of the last status report, for the throughput since then.
+     */
+    private long lastReportNanos;
+    private long lastReportBytes;
+    private long lastReportPages;
+
     private volatile boolean closed = false;
 
     private final TimeValue bulkFlushInterval;
     private volatile BulkProcessor bulkProcessor;
     private final int maxConcurrentBulk;
 
+    private enum DumpState {
+        PENDING, READING, DONE, FAILED
+    }
+
 
     @SuppressWarnings({"unchecked"})
     @Inject
-    public WikipediaRiver(RiverName riverName, RiverSettings settings, Client client) throws MalformedURLException {
+    public WikipediaRiver(RiverName riverName, RiverSettings settings, @RiverIndexName String riverIndexName,
+                          Client client, BZip2DataPool decoderPool) throws MalformedURLException {
         super(riverName, settings);
         this.client = client;
+        this.riverIndexName = riverIndexName;
+        this.decoderPool = decoderPool;
 
         String url = "http://download.wikimedia.org/enwiki/latest/enwiki-latest-pages-articles.xml.bz2";
+        List<String> urls = null;
+        int concurrentFiles = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        int decoderThreads = 1;
+        String decoderMode = "fast";
+        String decoderCRC = "verify";
+        boolean decoderRecover = false;
+        String indexUrl = null;
+        String gzipIndexUrl = null;
+        String readAhead = "16mb";
+        String cacheDir = null;
+        String checksumUrl = null;
+        int reconnectAttempts = 10;
+        String reconnectDelay = "5s";
+        long fromId = -1;
+        long toId = -1;
+        List<String> titles = null;
+        List<String> codecs = null;
+        boolean resume = true;
+        String checkpointInterval = "30s";
+        String statusInterval = "1m";
         if (settings.settings().containsKey("wikipedia")) {
             Map<String, Object> wikipediaSettings = (Map<String, Object>) settings.settings().get("wikipedia");
             url = XContentMapValues.nodeStringValue(wikipediaSettings.get("url"), url);
+            concurrentFiles = XContentMapValues.nodeIntegerValue(wikipediaSettings.get("concurrent_files"), concurrentFiles);
+            decoderThreads = XContentMapValues.nodeIntegerValue(wikipediaSettings.get("decoder_threads"), decoderThreads);
+            decoderMode = XContentMapValues.nodeStringValue(wikipediaSettings.get("decoder_mode"), decoderMode);
+            decoderCRC = XContentMapValues.nodeStringValue(wikipediaSettings.get("decoder_crc"), decoderCRC);
+            decoderRecover = XContentMapValues.nodeBooleanValue(wikipediaSettings.get("decoder_recover"), decoderRecover);
+            indexUrl = XContentMapValues.nodeStringValue(wikipediaSettings.get("index_url"), null);
+            gzipIndexUrl = XContentMapValues.nodeStringValue(wikipediaSettings.get("gzip_index_url"), null);
+            readAhead = XContentMapValues.nodeStringValue(wikipediaSettings.get("read_ahead"), readAhead);
+            cacheDir = XContentMapValues.nodeStringValue(wikipediaSettings.get("cache_dir"), null);
+            checksumUrl = XContentMapValues.nodeStringValue(wikipediaSettings.get("checksum_url"), null);
+            reconnectAttempts = XContentMapValues.nodeIntegerValue(wikipediaSettings.get("reconnect_attempts"), reconnectAttempts);
+            reconnectDelay = XContentMapValues.nodeStringValue(wikipediaSettings.get("reconnect_delay"), reconnectDelay);
+            fromId = XContentMapValues.nodeLongValue(wikipediaSettings.get("from_id"), fromId);
+            toId = XContentMapValues.nodeLongValue(wikipediaSettings.get("to_id"), toId);
+            resume = XContentMapValues.nodeBooleanValue(wikipediaSettings.get("resume"), resume);
+            checkpointInterval = XContentMapValues.nodeStringValue(wikipediaSettings.get("checkpoint_interval"), checkpointInterval);
+            statusInterval = XContentMapValues.nodeStringValue(wikipediaSettings.get("status_interval"), statusInterval);
+            Object urlsNode = wikipediaSettings.get("urls");
+            if (XContentMapValues.isArray(urlsNode)) {
+                urls = new ArrayList<String>();
+                for (Object node : (List<Object>) urlsNode) {
+                    urls.add(XContentMapValues.nodeStringValue(node, null).trim());
+                }
+            } else if (urlsNode != null) {
+                urls = new ArrayList<String>();
+                for (String node : Strings.commaDelimitedListToStringArray(urlsNode.toString())) {
+                    urls.add(node.trim());
+                }
+            }
+            Object titlesNode = wikipediaSettings.get("titles");
+            if (XContentMapValues.isArray(titlesNode)) {
+                titles = new ArrayList<String>();
+                for (Object title : (List<Object>) titlesNode) {
+                    titles.add(XContentMapValues.nodeStringValue(title, null));
+                }
+            } else if (titlesNode != null) {
+                titles = Arrays.asList(Strings.commaDelimitedListToStringArray(titlesNode.toString()));
+            }
+            Object codecsNode = wikipediaSettings.get("codecs");
+            if (XContentMapValues.isArray(codecsNode)) {
+                codecs = new ArrayList<String>();
+                for (Object codec : (List<Object>) codecsNode) {
+                    codecs.add(XContentMapValues.nodeStringValue(codec, null));
+                }
+            } else if (codecsNode != null) {
+                codecs = Arrays.asList(Strings.commaDelimitedListToStringArray(codecsNode.toString()));
+            }
+        }
+        if (concurrentFiles < 1) {
+            throw new IllegalArgumentException("concurrent_files must be at least 1, got [" + concurrentFiles + "]");
+        }
+        this.concurrentFiles = concurrentFiles;
+        this.decoderThreads = decoderThreads;
+        if ("small".equals(decoderMode)) {
+            this.smallDecoder = true;
+        } else if ("fast".equals(decoderMode)) {
+            this.smallDecoder = false;
+        } else {
+            throw new IllegalArgumentException("unknown decoder_mode [" + decoderMode + "], expected [fast] or [small]");
+        }
+        if (!"verify".equals(decoderCRC) && !"async".equals(decoderCRC) && !"skip".equals(decoderCRC)) {
+            throw new IllegalArgumentException("unknown decoder_crc [" + decoderCRC + "], expected [verify], [async] or [skip]");
+        }
+        this.decoderCRC = decoderCRC;
+        if (codecs == null) {
+            this.codecs = DumpCodecs.defaults();
+        } else {
+            this.codecs = new ArrayList<DumpCodec>();
+            for (String codec : codecs) {
+                this.codecs.add(DumpCodecs.get(codec.trim()));
+            }
         }
+        this.decoderRecover = decoderRecover;
+        this.readAhead = ByteSizeValue.parseBytesSizeValue(readAhead);
+        this.reconnectAttempts = reconnectAttempts;
+        this.reconnectDelay = TimeValue.parseTimeValue(reconnectDelay, TimeValue.timeValueSeconds(5));
+        this.resume = resume;
+        this.checkpointInterval = TimeValue.parseTimeValue(checkpointInterval, TimeValue.timeValueSeconds(30));
+        this.statusInterval = TimeValue.parseTimeValue(statusInterval, TimeValue.timeValueMinutes(1));
 
-        logger.info("creating wikipedia stream river for [{}]", url);
-        this.url = new URL(url);
+        if (fromId >= 0 || toId >= 0 || titles != null) {
+            this.pageFilter = new WikiPageFilter(fromId, toId, titles);
+        } else {
+            this.pageFilter = null;
+        }
+        if (indexUrl != null && this.pageFilter == null) {
+            logger.warn("ignoring [index_url] as neither [from_id], [to_id] nor [titles] is set");
+            indexUrl = null;
+        }
+        this.indexUrl = indexUrl == null ? null : new URL(indexUrl);
+        this.gzipIndexUrl = gzipIndexUrl == null ? null : new URL(gzipIndexUrl);
+
+        if (urls == null || urls.isEmpty()) {
+            urls = Collections.singletonList(url);
+        }
+        for (String dump : urls) {
+            // patterns are expanded when the river starts
+            new URL(dump);
+        }
+        logger.info("creating wikipedia stream river for {}", urls);
+        this.urls = urls;
+        this.cacheDir = cacheDir == null ? null : new File(cacheDir);
+        this.checksumUrl = checksumUrl == null ? null : new URL(checksumUrl);
 
         if (settings.settings().containsKey("index")) {
             Map<String, Object> indexSettings = (Map<String, Object>) settings.settings().get("index");
@@ -121,19 +343,17 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
                 return;
             }
         }
-        WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(url);
-        try {
-            parser.setPageCallback(new PageCallback());
-        } catch (Exception e) {
-            logger.error("failed to create parser", e);
-            return;
-        }
 
         // Creating bulk processor
         this.bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
             @Override
             public void beforeBulk(long executionId, BulkRequest request) {
                 logger.debug("Going to execute new bulk composed of {} actions", request.numberOfActions());
+                if (resume) {
+                    for (DumpReader reader : readers) {
+                        reader.beforeBulk(executionId);
+                    }
+                }
             }
 
             @Override
@@ -150,11 +370,17 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
                         }
                     }
                 }
+                for (DumpReader reader : readers) {
+                    reader.afterBulk(executionId);
+                }
             }
 
             @Override
             public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
                 logger.warn("Error executing bulk", failure);
+                for (DumpReader reader : readers) {
+                    reader.resumeTracker.bulkFailed(executionId);
+                }
             }
         })
                 .setBulkActions(bulkSize)
@@ -162,8 +388,19 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
                 .setFlushInterval(bulkFlushInterval)
                 .build();
 
-        thread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_slurper").newThread(new Parser(parser));
+        thread = EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_slurper").newThread(new Slurper());
         thread.start();
+
+        if (statusInterval.millis() > 0) {
+            statusExecutor = Executors.newSingleThreadScheduledExecutor(
+                    EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_status"));
+            statusExecutor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    reportStatus();
+                }
+            }, statusInterval.millis(), statusInterval.millis(), TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
@@ -173,39 +410,558 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
         if (thread != null) {
             thread.interrupt();
         }
+        shutdownExecutors();
+        if (statusExecutor != null) {
+            statusExecutor.shutdownNow();
+        }
 
         if (this.bulkProcessor != null) {
             this.bulkProcessor.close();
         }
     }
 
-    private class Parser implements Runnable {
-        private final WikiXMLParser parser;
+    private void shutdownExecutors() {
+        if (parserExecutor != null) {
+            parserExecutor.shutdownNow();
+        }
+        if (decoderExecutor != null) {
+            decoderExecutor.shutdownNow();
+        }
+        if (readAheadExecutor != null) {
+            readAheadExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Expands the urls and reads up to <tt>concurrent_files</tt> of the dump
+     * files at a time.
+     */
+    private class Slurper implements Runnable {
+
+        @Override
+        public void run() {
+            List<URL> files;
+            try {
+                files = DumpFiles.expand(urls);
+            } catch (Exception e) {
+                if (!closed) {
+                    logger.error("failed to list dump files of {}", e, urls);
+                }
+                return;
+            }
+            boolean split = files.size() > 1;
+            if (split && (indexUrl != null || gzipIndexUrl != null)) {
+                logger.warn("ignoring [index_url] and [gzip_index_url] as {} matches {} files", urls, files.size());
+            }
+
+            List<DumpReader> readers = new ArrayList<DumpReader>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                DumpReader reader = new DumpReader(files.get(i), split ? "_position_" + i : "_position", split);
+                if (split) {
+                    // the size of all files for the time left, the parser only looks it up when it starts
+                    try {
+                        reader.progress.setSize(DumpProgress.size(reader.url));
+                    } catch (IOException e) {
+                        logger.debug("failed to get the size of [{}]", e, reader.url);
+                    }
+                }
+                readers.add(reader);
+            }
+            startNanos = System.nanoTime();
+            WikipediaRiver.this.readers = readers;
+
+            // every executor is shared by the files read at the same time
+            int concurrent = Math.min(concurrentFiles, files.size());
+            if (split) {
+                logger.info("reading {} dump files, {} at a time", files.size(), concurrent);
+            }
+            parserExecutor = Executors.newFixedThreadPool(concurrent,
+                    EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_parser"));
+            if (decoderThreads > 1) {
+                decoderExecutor = Executors.newFixedThreadPool(decoderThreads * concurrent,
+                        EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_decoder"));
+            } else if ("async".equals(decoderCRC)) {
+                decoderExecutor = Executors.newFixedThreadPool(concurrent,
+                        EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_crc"));
+            }
+            if (readAhead.bytes() > 0) {
+                readAheadExecutor = Executors.newFixedThreadPool(concurrent,
+                        EsExecutors.daemonThreadFactory(settings.globalSettings(), "wikipedia_read_ahead"));
+            }
+            if (closed) {
+                // close() might have missed them
+                shutdownExecutors();
+                return;
+            }
+
+            List<Future<?>> futures = new ArrayList<Future<?>>(readers.size());
+            try {
+                for (DumpReader reader : readers) {
+                    futures.add(parserExecutor.submit(reader));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (Exception e) {
+                // closed while waiting
+                return;
+            }
+            if (closed) {
+                return;
+            }
+
+            int failed = 0;
+            for (DumpReader reader : readers) {
+                if (reader.state == DumpState.FAILED) {
+                    failed++;
+                }
+            }
+            if (failed > 0) {
+                // positions are kept to resume the failed files
+                logger.warn("failed to read {} of {} dump files", failed, readers.size());
+                return;
+            }
+            if (decoderStats.getCorruptBlocks() > 0) {
+                logger.warn("skipped {} corrupt blocks of {}", decoderStats.getCorruptBlocks(), urls);
+            }
+            if (!decoderRecover && decoderStats.getCRCErrors() > 0) {
+                logger.warn("indexed {} blocks of {} despite a CRC error", decoderStats.getCRCErrors(), urls);
+            }
+            if (split) {
+                logger.info("finished reading {} dump files", readers.size());
+            }
+            if (statusExecutor != null) {
+                statusExecutor.shutdownNow();
+            }
+            reportStatus();
+            finished = true;
+            if (resume) {
+                for (DumpReader reader : readers) {
+                    client.prepareDelete(riverIndexName, riverName.name(), reader.positionId).execute().actionGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads one dump file, on a thread of the parser executor. Pages of all
+     * files go to the same bulk processor, each file keeps its own restart
+     * point.
+     */
+    private class DumpReader implements Runnable {
+
+        private final URL url;
+
+        /**
+         * Id of the document holding the restart point in the river index.
+         */
+        private final String positionId;
 
-        private Parser(WikiXMLParser parser) {
-            this.parser = parser;
+        /**
+         * Whether the dump is split into several files.
+         */
+        private final boolean split;
+
+        private final ResumeTracker resumeTracker = new ResumeTracker();
+
+        private volatile long lastCheckpointTime;
+
+        private final DumpProgress progress = new DumpProgress();
+
+        private volatile DumpState state = DumpState.PENDING;
+
+        /**
+         * Pages up to this id have been indexed before the river was restarted.
+         */
+        private long skipToId = -1;
+
+        private volatile WikiXMLParser parser;
+
+        private DumpReader(URL url, String positionId, boolean split) {
+            this.url = url;
+            this.positionId = positionId;
+            this.split = split;
         }
 
         @Override
         public void run() {
+            if (closed) {
+                return;
+            }
+            state = DumpState.READING;
             try {
+                WikiXMLParser parser = createParser();
+                if (parser == null) {
+                    state = DumpState.FAILED;
+                    return;
+                }
+                if (indexUrl != null && !split) {
+                    List<MultistreamIndex.Range> ranges = MultistreamIndex.select(indexUrl, pageFilter);
+                    if (ranges.isEmpty()) {
+                        logger.info("no pages selected by [{}]", indexUrl);
+                        state = DumpState.DONE;
+                        return;
+                    }
+                    logger.info("reading {} stream ranges selected by [{}]", ranges.size(), indexUrl);
+                    parser.setStreamRanges(ranges);
+                } else if (resume && !restorePosition(parser)) {
+                    logger.info("skipping [{}], it was read before the restart", url);
+                    state = DumpState.DONE;
+                    return;
+                }
+                if (split) {
+                    logger.info("reading [{}]", url);
+                }
+                this.parser = parser;
                 parser.parse();
+                if (!closed) {
+                    logger.info("finished reading [{}], [{}] pages in [{}]", url, progress.getPages(),
+                            TimeValue.timeValueMillis(progress.getElapsedMillis()));
+                    if (split) {
+                        resumeTracker.dumpFinished();
+                    }
+                    state = DumpState.DONE;
+                }
             } catch (Exception e) {
+                state = DumpState.FAILED;
                 if (closed) {
                     return;
                 }
-                logger.error("failed to parse stream", e);
+                logger.error("failed to parse stream [{}]", e, url);
+            }
+        }
+
+        /**
+         * @return the parser for the file, <tt>null</tt> if it can't be read
+         */
+        private WikiXMLParser createParser() throws Exception {
+            URL dumpUrl = url;
+            DumpCache dumpCache = null;
+            if (cacheDir != null && !"file".equals(url.getProtocol())) {
+                dumpCache = new DumpCache(url, cacheDir, checksumUrl);
+                if (dumpCache.isComplete()) {
+                    logger.info("reading cached copy [{}] of [{}]", dumpCache.getFile(), url);
+                    try {
+                        dumpUrl = dumpCache.getFile().toURI().toURL();
+                    } catch (MalformedURLException e) {
+                        logger.error("failed to read cached copy [{}]", e, dumpCache.getFile());
+                        return null;
+                    }
+                    dumpCache = null;
+                } else {
+                    logger.info("caching [{}] as [{}]", url, dumpCache.getFile());
+                }
+            }
+            WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(dumpUrl);
+            if (dumpCache != null) {
+                parser.setDumpCache(dumpCache);
+            }
+            parser.setDecoderPool(smallDecoder ? decoderPool.smallMode() : decoderPool);
+            parser.setPageCallback(new PageCallback(this));
+            parser.setTrackPageOffsets(resume);
+            if (decoderThreads > 1) {
+                parser.setDecoderExecutor(decoderExecutor, decoderThreads);
+                if (!split) {
+                    parser.setGZipMemberIndex(gzipIndexUrl);
+                }
+            }
+            if ("skip".equals(decoderCRC)) {
+                parser.setCRCCheck(BZip2CRCCheck.SKIP);
+            } else if ("async".equals(decoderCRC)) {
+                parser.setCRCCheck(BZip2CRCCheck.async(decoderExecutor));
+            }
+            if (decoderRecover) {
+                parser.setCorruptBlockListener(new CorruptBlockListener());
+            }
+            parser.setDecoderStats(decoderStats);
+            parser.setProgress(progress);
+            parser.setCodecs(codecs);
+            if (reconnectAttempts > 0) {
+                parser.setReconnectPolicy(new ReconnectPolicy(reconnectAttempts, reconnectDelay.millis(), new ReconnectListener() {
+                    @Override
+                    public void reconnecting(URL url, long offset, int attempt, IOException cause) {
+                        logger.warn("reading [{}] failed at offset [{}], reconnecting (attempt {} of {}): {}",
+                                url, offset, attempt, reconnectAttempts, cause.toString());
+                    }
+                }));
+            }
+            if (readAheadExecutor != null && !"file".equals(dumpUrl.getProtocol())) {
+                parser.setReadAhead(readAheadExecutor,
+                        (int) Math.max(2, readAhead.bytes() / ReadAheadInputStream.BUFFER_SIZE));
+            }
+            return parser;
+        }
+
+        /**
+         * @return <tt>false</tt> if the whole file was read before the restart
+         */
+        private boolean restorePosition(WikiXMLParser parser) {
+            GetResponse position = client.prepareGet(riverIndexName, riverName.name(), positionId).execute().actionGet();
+            if (!position.isExists()) {
+                return true;
+            }
+            Map<String, Object> source = position.getSourceAsMap();
+            if (!url.toExternalForm().equals(source.get("url"))) {
+                logger.info("ignoring position of previous url [{}]", source.get("url"));
+                return true;
+            }
+            if (XContentMapValues.nodeBooleanValue(source.get("finished"), false)) {
+                return false;
+            }
+            long blockOffset = XContentMapValues.nodeLongValue(source.get("block_offset"), -1);
+            int blockSize = XContentMapValues.nodeIntegerValue(source.get("block_size"), 9);
+            skipToId = XContentMapValues.nodeLongValue(source.get("page_id"), -1);
+            logger.info("resuming [{}] at compressed bit offset [{}], after page [{}]", url, blockOffset, skipToId);
+            parser.setResumePosition(blockOffset, blockSize);
+            return true;
+        }
+
+        private void beforeBulk(long executionId) {
+            resumeTracker.beforeBulk(executionId);
+        }
+
+        private void afterBulk(long executionId) {
+            ResumeTracker.Checkpoint checkpoint = resumeTracker.afterBulk(executionId);
+            if (checkpoint != null) {
+                persistCheckpoint(checkpoint);
+            }
+        }
+
+        private void persistCheckpoint(final ResumeTracker.Checkpoint checkpoint) {
+            long now = System.currentTimeMillis();
+            if (finished || closed || (now - lastCheckpointTime < checkpointInterval.millis() && checkpoint != ResumeTracker.END)) {
+                return;
+            }
+            lastCheckpointTime = now;
+            try {
+                XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+                builder.field("url", url.toExternalForm());
+                if (checkpoint == ResumeTracker.END) {
+                    builder.field("finished", true);
+                    resumeTracker.checkpointSaved(checkpoint);
+                } else {
+                    builder.field("block_offset", checkpoint.blockBitOffset);
+                    builder.field("block_size", checkpoint.blockSize100k);
+                    builder.field("page_id", checkpoint.pageId);
+                }
+                builder.endObject();
+                client.prepareIndex(riverIndexName, riverName.name(), positionId).setSource(builder)
+                        .execute(new ActionListener<IndexResponse>() {
+                            @Override
+                            public void onResponse(IndexResponse response) {
+                                logger.debug("saved position of [{}] after page [{}]", url, checkpoint.pageId);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable e) {
+                                logger.warn("failed to save position", e);
+                            }
+                        });
+            } catch (Exception e) {
+                logger.warn("failed to save position", e);
+            }
+        }
+    }
+
+    /**
+     * Logs the progress and decoder statistics and merges them into the
+     * <tt>_status</tt> document of the river, along with the progress of
+     * every file of a split dump. Throughput is given for the time since
+     * the last report and on average, the time left is estimated from the
+     * average.
+     */
+    private synchronized void reportStatus() {
+        BZip2DecoderStats stats = decoderStats;
+        List<DumpReader> readers = this.readers;
+        if (readers.isEmpty()) {
+            // the dump files are not listed yet
+            return;
+        }
+        // nothing read from a bzip2 compressed dump yet
+        boolean decoder = stats.getCompressedBytes() > 0;
+        boolean split = readers.size() > 1;
+
+        long size = 0;
+        long position = 0;
+        long bytesRead = 0;
+        long pages = 0;
+        int done = 0;
+        for (DumpReader reader : readers) {
+            DumpProgress progress = reader.progress;
+            if (size >= 0) {
+                size = progress.getSize() < 0 ? -1 : size + progress.getSize();
+            }
+            if (reader.state == DumpState.DONE) {
+                // might have been read before the restart
+                position += Math.max(progress.getSize(), progress.getPosition());
+                done++;
+            } else {
+                position += progress.getPosition();
+            }
+            bytesRead += progress.getBytesRead();
+            pages += progress.getPages();
+        }
+        long now = System.nanoTime();
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+        long intervalMillis = TimeUnit.NANOSECONDS.toMillis(now - (lastReportNanos == 0 ? startNanos : lastReportNanos));
+        double bytesPerSecond = perSecond(bytesRead - lastReportBytes, intervalMillis);
+        double pagesPerSecond = perSecond(pages - lastReportPages, intervalMillis);
+        lastReportNanos = now;
+        lastReportBytes = bytesRead;
+        lastReportPages = pages;
+        long remainingMillis = DumpProgress.remainingMillis(size < 0 ? -1 : size - position, bytesRead, elapsedMillis);
+
+        if (size >= 0) {
+            logger.info("read [{}] of [{}] ({}%), [{}] pages, [{}] pages/s, [{}/s], eta [{}]", new ByteSizeValue(position),
+                    new ByteSizeValue(size), percent(position, size), pages, round(pagesPerSecond),
+                    new ByteSizeValue((long) bytesPerSecond),
+                    remainingMillis < 0 ? "unknown" : TimeValue.timeValueMillis(remainingMillis));
+        } else {
+            logger.info("read [{}], [{}] pages, [{}] pages/s, [{}/s]", new ByteSizeValue(position), pages,
+                    round(pagesPerSecond), new ByteSizeValue((long) bytesPerSecond));
+        }
+        if (split) {
+            for (DumpReader reader : readers) {
+                if (reader.state == DumpState.READING) {
+                    DumpProgress progress = reader.progress;
+                    logger.info("reading [{}], [{}] of [{}], [{}] pages", reader.url, new ByteSizeValue(progress.getPosition()),
+                            progress.getSize() < 0 ? "unknown" : new ByteSizeValue(progress.getSize()), progress.getPages());
+                }
+            }
+            logger.info("read [{}] of [{}] dump files", done, readers.size());
+        }
+        if (decoder) {
+            logger.info("decoded [{}] blocks, [{}] compressed to [{}], huffman/mtf [{}], inverse bwt [{}], crc [{}], " +
+                    "[{}] crc errors, [{}] corrupt blocks", stats.getBlocks(),
+                    new ByteSizeValue(stats.getCompressedBytes()), new ByteSizeValue(stats.getDecodedBytes()),
+                    TimeValue.timeValueNanos(stats.getHuffmanNanos()), TimeValue.timeValueNanos(stats.getBWTNanos()),
+                    TimeValue.timeValueNanos(stats.getCRCNanos()), stats.getCRCErrors(), stats.getCorruptBlocks());
+        }
+        try {
+            XContentBuilder builder = XContentFactory.jsonBuilder().startObject();
+            builder.startObject("wikipedia");
+            builder.startObject("progress");
+            builder.field("bytes", position);
+            if (size >= 0) {
+                builder.field("total_bytes", size);
+                builder.field("percent", percent(position, size));
+            }
+            builder.field("pages", pages);
+            builder.field("bytes_per_second", (long) bytesPerSecond);
+            builder.field("pages_per_second", round(pagesPerSecond));
+            builder.field("avg_bytes_per_second", (long) perSecond(bytesRead, elapsedMillis));
+            builder.field("avg_pages_per_second", round(perSecond(pages, elapsedMillis)));
+            builder.field("elapsed_millis", elapsedMillis);
+            if (remainingMillis >= 0) {
+                builder.field("eta_millis", remainingMillis);
+            }
+            builder.endObject();
+            if (decoder) {
+                builder.startObject("decoder");
+                builder.field("compressed_bytes", stats.getCompressedBytes());
+                builder.field("decoded_bytes", stats.getDecodedBytes());
+                builder.field("blocks", stats.getBlocks());
+                builder.startArray("block_sizes");
+                for (long blocks : stats.getBlockSizes()) {
+                    builder.value(blocks);
+                }
+                builder.endArray();
+                builder.field("crc_errors", stats.getCRCErrors());
+                builder.field("corrupt_blocks", stats.getCorruptBlocks());
+                builder.field("huffman_millis", TimeUnit.NANOSECONDS.toMillis(stats.getHuffmanNanos()));
+                builder.field("bwt_millis", TimeUnit.NANOSECONDS.toMillis(stats.getBWTNanos()));
+                builder.field("crc_millis", TimeUnit.NANOSECONDS.toMillis(stats.getCRCNanos()));
+                builder.endObject();
+            }
+            if (split) {
+                builder.startArray("files");
+                for (DumpReader reader : readers) {
+                    DumpProgress progress = reader.progress;
+                    builder.startObject();
+                    builder.field("url", reader.url.toExternalForm());
+                    builder.field("state", reader.state.name().toLowerCase(Locale.ROOT));
+                    builder.field("bytes", progress.getPosition());
+                    if (progress.getSize() >= 0) {
+                        builder.field("total_bytes", progress.getSize());
+                        builder.field("percent", percent(progress.getPosition(), progress.getSize()));
+                    }
+                    builder.field("pages", progress.getPages());
+                    builder.field("avg_bytes_per_second", (long) progress.getBytesPerSecond());
+                    builder.field("avg_pages_per_second", round(progress.getPagesPerSecond()));
+                    if (reader.state == DumpState.READING && progress.getRemainingMillis() >= 0) {
+                        builder.field("eta_millis", progress.getRemainingMillis());
+                    }
+                    builder.endObject();
+                }
+                builder.endArray();
+            }
+            builder.endObject();
+            builder.endObject();
+            // keep what the river service put there
+            client.prepareUpdate(riverIndexName, riverName.name(), "_status").setDoc(builder).setDocAsUpsert(true)
+                    .execute(new ActionListener<UpdateResponse>() {
+                        @Override
+                        public void onResponse(UpdateResponse response) {
+                        }
+
+                        @Override
+                        public void onFailure(Throwable e) {
+                            logger.debug("failed to update status", e);
+                        }
+                    });
+        } catch (Exception e) {
+            logger.debug("failed to update status", e);
+        }
+    }
+
+    private static double perSecond(long count, long millis) {
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    private static double percent(long position, long size) {
+        return size == 0 ? 100 : round(Math.min(100, 100.0 * position / size));
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private class CorruptBlockListener implements BZip2CorruptBlockListener {
+
+        @Override
+        public void corruptBlock(long blockBitOffset, long nextBitOffset, long outputOffset, Throwable cause) {
+            if (nextBitOffset < 0) {
+                logger.warn("skipping corrupt block at compressed bit offset [{}] up to the end, after [{}] decoded bytes: {}",
+                        blockBitOffset, outputOffset, cause.toString());
+            } else {
+                logger.warn("skipping corrupt block at compressed bit offset [{}] up to [{}], after [{}] decoded bytes: {}",
+                        blockBitOffset, nextBitOffset, outputOffset, cause.toString());
             }
         }
     }
 
     private class PageCallback implements PageCallbackHandler {
 
+        private final DumpReader reader;
+
+        private final StringBuilder sb = new StringBuilder();
+
+        private PageCallback(DumpReader reader) {
+            this.reader = reader;
+        }
+
         @Override
         public void process(WikiPage page) {
             if (closed) {
                 return;
             }
+            if (pageFilter != null && !pageFilter.accept(page)) {
+                return;
+            }
+            long pageId = parsePageId(page);
+            if (pageId >= 0 && pageId <= reader.skipToId) {
+                return;
+            }
             String title = stripTitle(page.getTitle());
             if (logger.isTraceEnabled()) {
                 logger.trace("page {} : {}", page.getID(), page.getTitle());
@@ -234,20 +990,40 @@ public class WikipediaRiver extends AbstractRiverComponent implements River {
 
                 builder.endObject();
 
-                bulkProcessor.add(new IndexRequest(indexName, typeName, page.getID()).source(builder));
+                BZip2BlockPosition position = reader.parser.getBlockPosition();
+                long pageOffset = reader.parser.getPageOffset();
+                IndexRequest request = new IndexRequest(indexName, typeName, page.getID()).source(builder);
+                // a bulk flushed by the reader of another file must not take
+                // a checkpoint of this file whose page is not added yet
+                synchronized (bulkProcessor) {
+                    if (resume && position != null && pageOffset >= 0 && pageId >= 0) {
+                        // track before adding, the request might be flushed right away
+                        reader.resumeTracker.pageProcessed(position, pageOffset, pageId);
+                    }
+                    bulkProcessor.add(request);
+                }
+                reader.progress.pageProcessed();
             } catch (Exception e) {
                 logger.warn("failed to construct index request", e);
             }
         }
+
+        private String stripTitle(String title) {
+            sb.setLength(0);
+            sb.append(title);
+            while (sb.length() > 0 && (sb.charAt(sb.length() - 1) == '\n' || (sb.charAt(sb.length() - 1) == ' '))) {
+                sb.deleteCharAt(sb.length() - 1);
+            }
+            return sb.toString();
+        }
     }
 
 
-    private String stripTitle(String title) {
-        sb.setLength(0);
-        sb.append(title);
-        while (sb.length() > 0 && (sb.charAt(sb.length() - 1) == '\n' || (sb.charAt(sb.length() - 1) == ' '))) {
-            sb.deleteCharAt(sb.length() - 1);
+    private long parsePageId(WikiPage page) {
+        try {
+            return Long.parseLong(page.getID().trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
-        return sb.toString();
     }
 }
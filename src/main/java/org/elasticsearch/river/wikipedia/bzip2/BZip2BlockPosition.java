@@ -0,0 +1,49 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+/**
+ * Position of a BZip2 decoding stream in terms of compressed blocks.
+ * <p/>
+ * <p>Bit offsets count from the first byte after the <tt>"BZ"</tt> magic
+ * of the first stream. Decoding can be restarted at any block bit offset
+ * reported, see {@link BZip2DecoderOptions#startAt(int, long)}.</p>
+ */
+public interface BZip2BlockPosition {
+
+    /**
+     * @return compressed bit offset of the block the next byte is read from
+     */
+    long getBlockBitOffset();
+
+    /**
+     * @return block size of the stream containing the current block
+     */
+    int getBlockSize100k();
+
+    /**
+     * @return number of bytes decoded before the current block
+     */
+    long getBlockOutputOffset();
+
+    /**
+     * @return number of bytes read from the stream
+     */
+    long getOutputOffset();
+}
@@ -0,0 +1,488 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Splits a BZip2 stream (without the file header chars) into its
+ * compressed blocks without decoding them.
+ * <p/>
+ * <p>Blocks are not byte aligned, so the scanner looks for the 48 bit
+ * block header magic <tt>0x314159265359</tt> and the end of stream magic
+ * <tt>0x177245385090</tt> at every bit offset. A block spans from its
+ * header magic up to the next magic. Every returned {@link Block} can
+ * be decoded on its own, see {@link CBZip2InputStream#CBZip2InputStream(InputStream, int, int, BZip2DecoderOptions)}.</p>
+ * <p/>
+ * <p>The magics might show up within the compressed data of a block as
+ * well. A block magic splits the block in two, the first part fails to
+ * decode and has to be joined with the parts following it, see
+ * {@link #join(Block, Block)}. An end of stream magic is only taken for
+ * one if another stream or the end of the input follows it.</p>
+ * <p/>
+ * <p>Concatenated streams, like the Wikimedia multistream dumps, are
+ * split as well. The end of each stream is reported by a block for which
+ * {@link Block#isStreamEnd()} is <tt>true</tt>.</p>
+ * <p/>
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+final class BZip2BlockScanner {
+
+    static final long BLOCK_MAGIC = 0x314159265359L;
+    static final long EOS_MAGIC = 0x177245385090L;
+
+    private static final long MAGIC_MASK = 0xffffffffffffL;
+
+    /**
+     * Byte values that can show up at bit 16..23 of the bit window when
+     * a magic ends within the last byte read. Only for those the window
+     * has to be compared against the magics at all eight bit offsets.
+     */
+    private static final boolean[] CANDIDATES = new boolean[256];
+
+    static {
+        for (int shift = 0; shift < 8; shift++) {
+            CANDIDATES[(int) (((BLOCK_MAGIC << shift) >>> 16) & 0xff)] = true;
+            CANDIDATES[(int) (((EOS_MAGIC << shift) >>> 16) & 0xff)] = true;
+        }
+    }
+
+    private static final int INITIAL_BLOCK_BUFFER = 256 * 1024;
+
+    /**
+     * A compressed block cut out of the stream.
+     */
+    static final class Block {
+
+        /**
+         * Bytes of the block, starting with the byte containing the
+         * first bit of the block header magic.
+         */
+        final byte[] data;
+        final int length;
+
+        /**
+         * Position of the first magic bit within <tt>data[0]</tt>.
+         */
+        final int bitOffset;
+
+        /**
+         * Position of the first magic bit within the compressed stream.
+         */
+        final long streamBitOffset;
+
+        final int blockSize100k;
+
+        /**
+         * Block CRC as stored in the block header, or the combined CRC of
+         * the stream for an end of stream marker.
+         */
+        final int storedCRC;
+
+        Block(byte[] data, int length, long streamBitOffset, int blockSize100k, int storedCRC) {
+            this.data = data;
+            this.length = length;
+            this.bitOffset = (int) (streamBitOffset & 7);
+            this.streamBitOffset = streamBitOffset;
+            this.blockSize100k = blockSize100k;
+            this.storedCRC = storedCRC;
+        }
+
+        /**
+         * @return <tt>true</tt> if this is no block but marks the end of
+         *         a stream.
+         */
+        boolean isStreamEnd() {
+            return this.data == null;
+        }
+    }
+
+    private final CompressedInput in;
+    private final BZip2DecoderStats stats;
+    private final byte[] readBuf = new byte[64 * 1024];
+    private int readPos;
+    private int readLimit;
+
+    private int blockSize100k;
+
+    /**
+     * The last 64 bits read, the most recent bit is the lowest one.
+     */
+    private long window;
+
+    /**
+     * Number of bits read so far.
+     */
+    private long bitsIn;
+
+    private byte[] blockBuf;
+    private int blockLen;
+
+    /**
+     * Bit position of the current block magic or <tt>-1</tt>
+     * if no block has been started yet.
+     */
+    private long blockStart = -1;
+
+    /**
+     * Block size of the stream the current block belongs to. The header of
+     * the next stream is read before the last block of a stream is ended.
+     */
+    private int blockStartSize100k;
+
+    /**
+     * Bit position of the end of stream magic or <tt>-1</tt>
+     * if it has not been seen yet.
+     */
+    private long eosStart = -1;
+
+    /**
+     * Length of the current block up to the end of stream magic.
+     */
+    private int eosBlockLength;
+
+    /**
+     * The end of stream marker once the stored CRC following the end of
+     * stream magic has been read. While the current block goes on, it is
+     * not known yet whether the magic really ended the stream.
+     */
+    private Block streamEnd;
+
+    /**
+     * Magics starting before this bit position belong to the stream header.
+     */
+    private long scanFrom;
+
+    private boolean finished;
+
+    /**
+     * Bit position the lost tail of a truncated stream starts at, or
+     * <tt>-1</tt> if the input did not end unexpectedly.
+     */
+    private long truncatedBitOffset = -1;
+
+    /**
+     * Creates a scanner reading from a stream which is positioned right
+     * after the <tt>"BZ"</tt> file header chars.
+     *
+     * @param stats counters of compressed bytes read, may be <tt>null</tt>
+     * @throws IOException if the stream header is malformed or an I/O error occurs.
+     */
+    BZip2BlockScanner(CompressedInput in, BZip2DecoderStats stats) throws IOException {
+        this.in = in;
+        this.stats = stats;
+        readStreamHeader(shiftIn(), shiftIn());
+    }
+
+    /**
+     * Creates a scanner starting at a block boundary. The stream has to be
+     * positioned at byte <tt>blockBitOffset / 8</tt> of the compressed
+     * stream.
+     *
+     * @param blockSize100k block size of the stream containing the block
+     * @param stats         counters of compressed bytes read, may be <tt>null</tt>
+     */
+    BZip2BlockScanner(CompressedInput in, int blockSize100k, long blockBitOffset, BZip2DecoderStats stats) {
+        this.in = in;
+        this.stats = stats;
+        this.blockSize100k = blockSize100k;
+        this.bitsIn = (blockBitOffset >>> 3) << 3;
+        this.scanFrom = this.bitsIn;
+    }
+
+    /**
+     * @return the next compressed block or end of stream marker,
+     *         <tt>null</tt> once the last stream has ended.
+     * @throws IOException if the input ends unexpectedly, once all
+     *                     complete blocks have been returned, or an I/O
+     *                     error occurs.
+     */
+    Block next() throws IOException {
+        if (this.streamEnd != null && this.eosStart < 0) {
+            final Block end = this.streamEnd;
+            this.streamEnd = null;
+            return end;
+        }
+        while (!this.finished) {
+            final int thech = shiftIn();
+            if (thech < 0) {
+                if (this.streamEnd != null) {
+                    // trailing garbage after all
+                    this.finished = true;
+                    return endStream();
+                }
+                this.finished = true;
+                if (this.eosStart >= 0) {
+                    // only the combined CRC is cut off, the last block
+                    // of the stream is complete
+                    this.truncatedBitOffset = this.eosStart;
+                    final Block block = endStream();
+                    if (block != null) {
+                        return block;
+                    }
+                } else {
+                    this.truncatedBitOffset = this.blockStart >= 0 ? this.blockStart : this.scanFrom;
+                }
+                break;
+            }
+
+            final long windowShadow = this.window;
+            if (this.blockStart >= 0) {
+                append((byte) thech);
+            }
+
+            if (this.eosStart >= 0 && this.streamEnd == null) {
+                final int trailing = (int) (this.bitsIn - this.eosStart - 80);
+                if (trailing >= 0) {
+                    // the rest of this byte is padding
+                    final int storedCombinedCRC = (int) (windowShadow >>> trailing);
+                    this.streamEnd = new Block(null, 0, this.bitsIn, this.blockSize100k, storedCombinedCRC);
+                    if (nextStream() || this.blockStart < 0) {
+                        return endStream();
+                    }
+                    // trailing garbage, or the magic was part of the
+                    // compressed data: the next magic will tell
+                }
+                continue;
+            }
+            if (this.streamEnd != null && this.blockLen > maxBlockLength(this.blockSize100k)) {
+                this.finished = true;
+                return endStream();
+            }
+
+            if (!CANDIDATES[(int) (windowShadow >>> 16) & 0xff]) {
+                continue;
+            }
+
+            for (int shift = 0; shift < 8; shift++) {
+                final long magic = (windowShadow >>> shift) & MAGIC_MASK;
+                if (magic != BLOCK_MAGIC && magic != EOS_MAGIC) {
+                    continue;
+                }
+                final long start = this.bitsIn - 48 - shift;
+                if (start < this.scanFrom) {
+                    // the window still holds the stream header
+                    continue;
+                }
+
+                // an end of stream magic not followed by another stream
+                // was part of the compressed data of the current block
+                this.eosStart = -1;
+                this.streamEnd = null;
+                if (magic == BLOCK_MAGIC) {
+                    final Block block = endBlock(this.blockLen);
+                    startBlock(start);
+                    if (block != null) {
+                        return block;
+                    }
+                } else {
+                    this.eosStart = start;
+                    this.eosBlockLength = this.blockLen;
+                }
+                break;
+            }
+        }
+        if (this.truncatedBitOffset >= 0) {
+            throw new IOException("unexpected end of stream");
+        }
+        return null;
+    }
+
+    /**
+     * @return compressed bit offset the lost tail of a truncated stream
+     *         starts at, or <tt>-1</tt> if the input did not end
+     *         unexpectedly
+     */
+    long getTruncatedBitOffset() {
+        return this.truncatedBitOffset;
+    }
+
+    /**
+     * Joins a block with the one following it, as if the magic starting
+     * the second one was part of the compressed data of the first.
+     */
+    static Block join(final Block first, final Block second) {
+        final int split = (int) ((second.streamBitOffset >>> 3) - (first.streamBitOffset >>> 3));
+        final byte[] data = new byte[split + second.length];
+        System.arraycopy(first.data, 0, data, 0, split);
+        System.arraycopy(second.data, 0, data, split, second.length);
+        return new Block(data, data.length, first.streamBitOffset, first.blockSize100k, first.storedCRC);
+    }
+
+    /**
+     * Upper bound of the compressed size of a block: at most one symbol per
+     * byte of the block, each Huffman code at most 20 bits long, and the
+     * tables.
+     */
+    static int maxBlockLength(final int blockSize100k) {
+        return blockSize100k * BZip2Constants.baseBlockSize / 8 * 20 + 64 * 1024;
+    }
+
+    /**
+     * Ends the stream at the end of stream magic. Returns the last block of
+     * the stream first, if there is one, and the end of stream marker on
+     * the next call.
+     */
+    private Block endStream() {
+        final Block block = endBlock(this.eosBlockLength);
+        this.eosStart = -1;
+        if (block != null) {
+            return block;
+        }
+        final Block end = this.streamEnd;
+        this.streamEnd = null;
+        return end;
+    }
+
+    /**
+     * Reads the header of a concatenated stream if there is one. Anything
+     * else following a stream is ignored, like the bzip2 tool does, unless
+     * a block is still open: then the end of stream magic might have been
+     * part of its compressed data.
+     *
+     * @return <tt>false</tt> if neither another stream nor the end of the
+     *         input follows
+     */
+    private boolean nextStream() throws IOException {
+        final int magic0 = shiftIn();
+        final int magic1 = magic0 < 0 ? -1 : shiftIn();
+        if (this.blockStart >= 0) {
+            if (magic0 >= 0) {
+                append((byte) magic0);
+            }
+            if (magic1 >= 0) {
+                append((byte) magic1);
+            }
+        }
+        if (magic0 < 0 || magic1 < 0) {
+            this.finished = true;
+            return true;
+        }
+        if (magic0 != 'B' || magic1 != 'Z') {
+            if (this.blockStart < 0) {
+                this.finished = true;
+            }
+            return false;
+        }
+        final long streamStart = this.bitsIn - 16;
+        final int magic2 = shiftIn();
+        final int blockSize = magic2 < 0 ? -1 : shiftIn();
+        if (blockSize < 0) {
+            // the previous stream is complete, the next one is cut off
+            this.truncatedBitOffset = streamStart;
+            this.finished = true;
+            return true;
+        }
+        readStreamHeader(magic2, blockSize);
+        return true;
+    }
+
+    private void readStreamHeader(int magic2, int blockSize) throws IOException {
+        if (magic2 != 'h') {
+            throw new IOException("Stream is not BZip2 formatted: expected 'h'"
+                    + " as first byte but got '" + (char) magic2
+                    + "'");
+        }
+        if ((blockSize < '1') || (blockSize > '9')) {
+            throw new IOException("Stream is not BZip2 formatted: illegal "
+                    + "blocksize " + (char) blockSize);
+        }
+        this.blockSize100k = blockSize - '0';
+        this.scanFrom = this.bitsIn;
+    }
+
+    /**
+     * Ends the current block at the magic ending within its first
+     * <tt>length</tt> bytes. The magic is kept at the end of the block, so
+     * the decoder can read ahead beyond the last Huffman code of the block.
+     */
+    private Block endBlock(final int length) {
+        if (this.blockStart < 0) {
+            return null;
+        }
+        final int bitOffset = (int) (this.blockStart & 7);
+        final byte[] data = this.blockBuf;
+        final long streamBitOffset = this.blockStart;
+
+        // the block CRC directly follows the block magic
+        int storedCRC = 0;
+        for (int i = 0; i < 32; i++) {
+            final int bit = bitOffset + 48 + i;
+            storedCRC = (storedCRC << 1) | ((data[bit >>> 3] >>> (7 - (bit & 7))) & 1);
+        }
+
+        this.blockStart = -1;
+        return new Block(data, length, streamBitOffset, this.blockStartSize100k, storedCRC);
+    }
+
+    private void startBlock(long start) {
+        final long firstByte = start >>> 3;
+        final int carry = (int) ((this.bitsIn >>> 3) - firstByte);
+
+        // the magic is at most 55 bits away from the end of the window,
+        // so all bytes it touches are still in there
+        this.blockBuf = new byte[INITIAL_BLOCK_BUFFER];
+        this.blockLen = 0;
+        for (int i = carry; --i >= 0; ) {
+            append((byte) (this.window >>> (i << 3)));
+        }
+        this.blockStart = start;
+        this.blockStartSize100k = this.blockSize100k;
+    }
+
+    private void append(byte b) {
+        if (this.blockLen == this.blockBuf.length) {
+            final byte[] grown = new byte[this.blockBuf.length << 1];
+            System.arraycopy(this.blockBuf, 0, grown, 0, this.blockLen);
+            this.blockBuf = grown;
+        }
+        this.blockBuf[this.blockLen++] = b;
+    }
+
+    /**
+     * Reads the next byte into the bit window.
+     *
+     * @return the byte read or <tt>-1</tt> at the end of the stream
+     */
+    private int shiftIn() throws IOException {
+        final int thech = readByte();
+        if (thech >= 0) {
+            this.window = (this.window << 8) | thech;
+            this.bitsIn += 8;
+        }
+        return thech;
+    }
+
+    private int readByte() throws IOException {
+        if (this.readPos == this.readLimit) {
+            final int read = this.in.read(this.readBuf, 0, this.readBuf.length);
+            if (read <= 0) {
+                return -1;
+            }
+            this.readPos = 0;
+            this.readLimit = read;
+            if (this.stats != null) {
+                this.stats.compressedBytesRead(read);
+            }
+        }
+        return this.readBuf[this.readPos++] & 0xff;
+    }
+}
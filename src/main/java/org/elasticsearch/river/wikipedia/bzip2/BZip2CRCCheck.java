@@ -0,0 +1,80 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.util.concurrent.Executor;
+
+/**
+ * How the BZip2 decoders verify the CRC of decoded blocks.
+ * <p/>
+ * <p>Block CRCs that do not match are reported like before, by printing
+ * a message. With {@link #SKIP} and {@link #async(Executor)} the combined
+ * CRC of a stream is computed from the stored block CRCs, so it only
+ * detects corrupt block headers.</p>
+ */
+public final class BZip2CRCCheck {
+
+    /**
+     * Computes the CRC of every block on the decoding thread, right after
+     * the block has been decoded. This is the default.
+     */
+    public static final BZip2CRCCheck VERIFY = new BZip2CRCCheck(true, null);
+
+    /**
+     * Does not compute block CRCs at all, for trusted local files.
+     */
+    public static final BZip2CRCCheck SKIP = new BZip2CRCCheck(false, null);
+
+    /**
+     * Computes the CRC of every block on <tt>executor</tt> while the block
+     * is read. A mismatch is only reported once the block has been read
+     * up to its end.
+     * <p/>
+     * <p>{@link ParallelCBZip2InputStream} decodes blocks off the reading
+     * thread anyway and verifies them like {@link #VERIFY}.</p>
+     */
+    public static BZip2CRCCheck async(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        return new BZip2CRCCheck(true, executor);
+    }
+
+    final boolean verify;
+    final Executor executor;
+
+    private BZip2CRCCheck(boolean verify, Executor executor) {
+        this.verify = verify;
+        this.executor = executor;
+    }
+
+    public boolean isVerify() {
+        return this.verify;
+    }
+
+    public boolean isAsync() {
+        return this.executor != null;
+    }
+
+    @Override
+    public String toString() {
+        return !this.verify ? "skip" : (this.executor == null ? "verify" : "async");
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+/**
+ * Receives the blocks skipped by BZip2 decoders running in recovery mode.
+ * <p/>
+ * <p>Instead of failing, a decoder in recovery mode drops a block whose CRC
+ * does not match or which cannot be decoded at all, and continues with the
+ * next block header magic found in the compressed stream. The bytes of the
+ * dropped block are missing from the decoded output.</p>
+ * <p/>
+ * <p>Listeners are called on the thread reading from the decoder, before
+ * any byte following the gap is returned.</p>
+ */
+public interface BZip2CorruptBlockListener {
+
+    /**
+     * @param blockBitOffset compressed bit offset of the dropped block
+     * @param nextBitOffset  compressed bit offset decoding continues at, or
+     *                       <tt>-1</tt> if the rest of the stream is lost
+     * @param outputOffset   number of bytes decoded before the gap
+     * @param cause          why the block has been dropped
+     */
+    void corruptBlock(long blockBitOffset, long nextBitOffset, long outputOffset, Throwable cause);
+}
@@ -0,0 +1,172 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.util.ArrayDeque;
+
+/**
+ * A bounded pool of the buffers {@link CBZip2InputStream} needs to decode
+ * a block, about 5.5mb for the largest block size.
+ * <p/>
+ * <p>Decoders borrow buffers for the block size of the stream they decode
+ * and return them once they are closed or exhausted. Returned buffers are
+ * only kept as long as the pool stays within its memory budget, so the
+ * budget bounds the memory held by idle buffers, not by decoders in use.</p>
+ * <p/>
+ * <p>Decoders using the pool returned by {@link #smallMode()} decode in
+ * small mode, like <tt>bzip2 -s</tt>. It needs about 3.5 instead of
+ * 6 bytes per block byte, but decodes about a third slower.</p>
+ * <p/>
+ * <p>Instances of this class are threadsafe and meant to be shared by all
+ * decoders of a node.</p>
+ */
+public class BZip2DataPool {
+
+    /**
+     * Idle buffers and statistics, shared with the small mode view.
+     */
+    private static final class Shared {
+
+        final long maxSizeInBytes;
+
+        /**
+         * Idle buffers by block size, small mode buffers at
+         * <tt>blockSize100k + 10</tt>.
+         */
+        final ArrayDeque<CBZip2InputStream.Data>[] free;
+
+        long sizeInBytes;
+        long hits;
+        long misses;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Shared(long maxSizeInBytes) {
+            this.maxSizeInBytes = maxSizeInBytes;
+            this.free = new ArrayDeque[20];
+            for (int i = 0; i < this.free.length; i++) {
+                this.free[i] = new ArrayDeque<CBZip2InputStream.Data>();
+            }
+        }
+    }
+
+    private final Shared shared;
+    private final boolean small;
+
+    /**
+     * @param maxSizeInBytes memory budget for idle buffers
+     */
+    public BZip2DataPool(long maxSizeInBytes) {
+        this(new Shared(maxSizeInBytes), false);
+    }
+
+    private BZip2DataPool(Shared shared, boolean small) {
+        this.shared = shared;
+        this.small = small;
+    }
+
+    /**
+     * @return a pool sharing the budget of this pool, decoders using it
+     *         decode in small mode
+     */
+    public BZip2DataPool smallMode() {
+        return this.small ? this : new BZip2DataPool(this.shared, true);
+    }
+
+    /**
+     * @return <tt>true</tt> if decoders using this pool decode in small mode
+     */
+    public boolean isSmallMode() {
+        return this.small;
+    }
+
+    CBZip2InputStream.Data acquire(int blockSize100k) {
+        final Shared sharedShadow = this.shared;
+        synchronized (sharedShadow) {
+            final CBZip2InputStream.Data data = sharedShadow.free[slot(blockSize100k, this.small)].pollLast();
+            if (data != null) {
+                sharedShadow.sizeInBytes -= data.sizeInBytes();
+                sharedShadow.hits++;
+                return data;
+            }
+            sharedShadow.misses++;
+        }
+        return new CBZip2InputStream.Data(blockSize100k, this.small);
+    }
+
+    void release(CBZip2InputStream.Data data) {
+        final Shared sharedShadow = this.shared;
+        final long size = data.sizeInBytes();
+        synchronized (sharedShadow) {
+            if (sharedShadow.sizeInBytes + size <= sharedShadow.maxSizeInBytes) {
+                sharedShadow.free[slot(data.blockSize100k, data.small)].addLast(data);
+                sharedShadow.sizeInBytes += size;
+            }
+        }
+    }
+
+    private static int slot(int blockSize100k, boolean small) {
+        return small ? blockSize100k + 10 : blockSize100k;
+    }
+
+    /**
+     * @return the memory budget for idle buffers
+     */
+    public long getMaxSizeInBytes() {
+        return this.shared.maxSizeInBytes;
+    }
+
+    /**
+     * @return the memory held by idle buffers
+     */
+    public long getSizeInBytes() {
+        synchronized (this.shared) {
+            return this.shared.sizeInBytes;
+        }
+    }
+
+    /**
+     * @return how often buffers could be reused
+     */
+    public long getHits() {
+        synchronized (this.shared) {
+            return this.shared.hits;
+        }
+    }
+
+    /**
+     * @return how often buffers had to be allocated
+     */
+    public long getMisses() {
+        synchronized (this.shared) {
+            return this.shared.misses;
+        }
+    }
+
+    /**
+     * Drops all idle buffers.
+     */
+    public void clear() {
+        synchronized (this.shared) {
+            for (int i = 0; i < this.shared.free.length; i++) {
+                this.shared.free[i].clear();
+            }
+            this.shared.sizeInBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+/**
+ * Optional settings of {@link CBZip2InputStream} and
+ * {@link ParallelCBZip2InputStream}. The defaults allocate the decoding
+ * buffers for every decoder, verify block CRCs, fail on corrupt blocks,
+ * keep no statistics and start at the beginning of the stream.
+ * <p/>
+ * <p>Settings are read when a decoder is constructed, so one instance
+ * can be changed and used for several decoders.</p>
+ */
+public class BZip2DecoderOptions {
+
+    private BZip2DataPool pool;
+    private BZip2CRCCheck crcCheck = BZip2CRCCheck.VERIFY;
+    private BZip2CorruptBlockListener listener;
+    private BZip2DecoderStats stats;
+    private int blockSize100k;
+    private long blockBitOffset = -1;
+
+    /**
+     * @param pool pool to borrow the decoding buffers from, or <tt>null</tt>
+     *             to allocate them
+     */
+    public BZip2DecoderOptions pool(BZip2DataPool pool) {
+        this.pool = pool;
+        return this;
+    }
+
+    /**
+     * @param crcCheck how to verify block CRCs, asynchronous verification
+     *                 is done on the decoding threads in recovery mode and
+     *                 by {@link ParallelCBZip2InputStream}
+     */
+    public BZip2DecoderOptions crcCheck(BZip2CRCCheck crcCheck) {
+        if (crcCheck == null) {
+            throw new NullPointerException("crcCheck");
+        }
+        this.crcCheck = crcCheck;
+        return this;
+    }
+
+    /**
+     * Enables the recovery mode if <tt>listener</tt> is not <tt>null</tt>.
+     *
+     * @param listener listener to report dropped blocks to, or <tt>null</tt>
+     *                 to fail on corrupt blocks
+     */
+    public BZip2DecoderOptions listener(BZip2CorruptBlockListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param stats counters to update, or <tt>null</tt>
+     */
+    public BZip2DecoderOptions stats(BZip2DecoderStats stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Starts to decompress at a block boundary, as reported by
+     * {@link BZip2BlockPosition#getBlockBitOffset()}. The compressed input
+     * has to be positioned at byte <tt>blockBitOffset / 8</tt> of the
+     * compressed stream (not counting the <tt>"BZ"</tt> magic). The
+     * combined CRC of the stream entered this way is not checked. Bit
+     * offsets reported by the decoder are relative to the start of the
+     * compressed stream, output offsets to the given block.
+     *
+     * @param blockSize100k  block size of the stream containing the block
+     * @param blockBitOffset compressed bit offset of the block header magic
+     */
+    public BZip2DecoderOptions startAt(int blockSize100k, long blockBitOffset) {
+        if ((blockSize100k < 1) || (blockSize100k > 9)) {
+            throw new IllegalArgumentException("blockSize100k(" + blockSize100k + ") out of range.");
+        }
+        if (blockBitOffset < 0) {
+            throw new IllegalArgumentException("blockBitOffset(" + blockBitOffset + ") < 0.");
+        }
+        this.blockSize100k = blockSize100k;
+        this.blockBitOffset = blockBitOffset;
+        return this;
+    }
+
+    public BZip2DataPool getPool() {
+        return this.pool;
+    }
+
+    public BZip2CRCCheck getCRCCheck() {
+        return this.crcCheck;
+    }
+
+    public BZip2CorruptBlockListener getListener() {
+        return this.listener;
+    }
+
+    public BZip2DecoderStats getStats() {
+        return this.stats;
+    }
+
+    /**
+     * @return block size of the stream containing the start block, only
+     *         valid if {@link #getBlockBitOffset()} is not negative
+     */
+    public int getBlockSize100k() {
+        return this.blockSize100k;
+    }
+
+    /**
+     * @return compressed bit offset of the block to start at, or <tt>-1</tt>
+     *         to start at the beginning of the stream
+     */
+    public long getBlockBitOffset() {
+        return this.blockBitOffset;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of BZip2 decoders, updated once per block and once per chunk
+ * of compressed input.
+ * <p/>
+ * <p>Times are summed up over all decoding threads, so with
+ * {@link ParallelCBZip2InputStream} they are CPU times rather than wall
+ * clock times.</p>
+ * <p/>
+ * <p>Instances of this class are threadsafe and can be shared by several
+ * decoders.</p>
+ */
+public class BZip2DecoderStats {
+
+    /**
+     * Number of buckets of the block size distribution, each covering
+     * 100k of decoded bytes. The last one holds all larger blocks.
+     */
+    public static final int BLOCK_SIZE_BUCKETS = 10;
+
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong decodedBytes = new AtomicLong();
+    private final AtomicLong blocks = new AtomicLong();
+    private final AtomicLongArray blockSizes = new AtomicLongArray(BLOCK_SIZE_BUCKETS);
+    private final AtomicLong crcErrors = new AtomicLong();
+    private final AtomicLong corruptBlocks = new AtomicLong();
+    private final AtomicLong huffmanNanos = new AtomicLong();
+    private final AtomicLong bwtNanos = new AtomicLong();
+    private final AtomicLong crcNanos = new AtomicLong();
+
+    void compressedBytesRead(int bytes) {
+        this.compressedBytes.addAndGet(bytes);
+    }
+
+    void blockDecoded(int size, long huffmanNanos, long bwtNanos, long crcNanos) {
+        this.decodedBytes.addAndGet(size);
+        this.blocks.incrementAndGet();
+        this.blockSizes.incrementAndGet(Math.min(size / BZip2Constants.baseBlockSize, BLOCK_SIZE_BUCKETS - 1));
+        this.huffmanNanos.addAndGet(huffmanNanos);
+        this.bwtNanos.addAndGet(bwtNanos);
+        this.crcNanos.addAndGet(crcNanos);
+    }
+
+    void crcError() {
+        this.crcErrors.incrementAndGet();
+    }
+
+    void corruptBlock() {
+        this.corruptBlocks.incrementAndGet();
+    }
+
+    /**
+     * @return number of compressed bytes read from the source stream
+     */
+    public long getCompressedBytes() {
+        return this.compressedBytes.get();
+    }
+
+    /**
+     * @return number of bytes decoded, not counting dropped blocks
+     */
+    public long getDecodedBytes() {
+        return this.decodedBytes.get();
+    }
+
+    /**
+     * @return number of blocks decoded, not counting dropped blocks
+     */
+    public long getBlocks() {
+        return this.blocks.get();
+    }
+
+    /**
+     * @return number of decoded blocks by decoded size, in steps of 100k
+     */
+    public long[] getBlockSizes() {
+        final long[] sizes = new long[BLOCK_SIZE_BUCKETS];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = this.blockSizes.get(i);
+        }
+        return sizes;
+    }
+
+    /**
+     * @return number of block and stream CRCs that did not match
+     */
+    public long getCRCErrors() {
+        return this.crcErrors.get();
+    }
+
+    /**
+     * @return number of blocks dropped in recovery mode
+     */
+    public long getCorruptBlocks() {
+        return this.corruptBlocks.get();
+    }
+
+    /**
+     * @return time spent reading the Huffman coded symbols and undoing the
+     *         move to front transform
+     */
+    public long getHuffmanNanos() {
+        return this.huffmanNanos.get();
+    }
+
+    /**
+     * @return time spent on the inverse Burrows-Wheeler transform, including
+     *         the run length decoding
+     */
+    public long getBWTNanos() {
+        return this.bwtNanos.get();
+    }
+
+    /**
+     * @return time spent computing block CRCs on the decoding threads
+     */
+    public long getCRCNanos() {
+        return this.crcNanos.get();
+    }
+}
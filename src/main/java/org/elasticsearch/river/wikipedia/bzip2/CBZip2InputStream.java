@@ -21,6 +21,12 @@ package org.elasticsearch.river.wikipedia.bzip2;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * An input stream that decompresses from the BZip2 format (without the file
@@ -32,21 +38,36 @@ import java.io.InputStream;
  * allocated memory.  See {@link CBZip2OutputStream
  * CBZip2OutputStream} for information about memory usage.</p>
  * <p/>
- * <p><tt>CBZip2InputStream</tt> reads bytes from the compressed
- * source stream via the single byte {@link java.io.InputStream#read()
- * read()} method exclusively. Thus you should consider to use a
- * buffered source stream.</p>
+ * <p><tt>CBZip2InputStream</tt> reads the compressed source stream in
+ * chunks of {@link #IN_BUF_SIZE} bytes into an internal buffer, there is
+ * no need to use a buffered source stream. The stream reads ahead, so
+ * the source stream is not positioned at the end of the compressed data
+ * once this stream is exhausted.</p>
+ * <p/>
+ * <p>The compressed bytes can also be read from a {@link ReadableByteChannel},
+ * without an <tt>InputStream</tt> in between, and the decoded bytes can be
+ * read into a {@link ByteBuffer}, this stream is a channel as well.</p>
+ * <p/>
+ * <p>Given a {@link BZip2CorruptBlockListener} the stream runs in recovery
+ * mode: blocks with a CRC mismatch or a malformed structure are dropped,
+ * and decoding continues with the next block header magic found in the
+ * compressed stream. A structural error might only be detected after
+ * reading beyond the end of the corrupt block, in that case the following
+ * block is lost as well.</p>
  * <p/>
  * <p>Instances of this class are not threadsafe.</p>
  */
-public class CBZip2InputStream extends InputStream implements BZip2Constants {
+public class CBZip2InputStream extends InputStream
+        implements ReadableByteChannel, BZip2Constants, BZip2BlockPosition {
 
-    private static void reportCRCError() throws IOException {
-        // The clean way would be to throw an exception.
-        //throw new IOException("crc error");
-
-        // Just print a message, like the previous versions of this class did
-        System.err.println("BZip2 CRC error");
+    /**
+     * Counts a CRC mismatch outside of the recovery mode, the decoded bytes
+     * are returned anyway.
+     */
+    private void reportCRCError() {
+        if (this.stats != null) {
+            this.stats.crcError();
+        }
     }
 
     private void makeMaps() {
@@ -81,41 +102,110 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
 
     private boolean blockRandomised;
 
-    private int bsBuff;
+    /**
+     * Size of the internal buffer for compressed bytes.
+     */
+    static final int IN_BUF_SIZE = 64 * 1024;
+
+    /**
+     * Bit accumulator, the lowest {@link #bsLive} bits are not consumed yet.
+     */
+    private long bsBuff;
     private int bsLive;
+
+    /**
+     * Number of zero bits appended to {@link #bsBuff} after the end of the
+     * compressed stream, see {@link #bsFillHuffman()}.
+     */
+    private int bsPadding;
+
+    private final byte[] inBuf = new byte[IN_BUF_SIZE];
+    private int inPos;
+    private int inLimit;
+
+    /**
+     * Number of compressed bytes read before the first byte of {@link #inBuf}.
+     */
+    private long inBase;
     private final CRC crc = new CRC();
 
     private int nInUse;
 
-    private InputStream in;
+    private CompressedInput in;
+
+    /**
+     * Number of bits resolved by a single probe of the Huffman lookup
+     * tables. Longer codes are decoded bitwise.
+     */
+    private static final int HUFFMAN_LOOKUP_BITS = 10;
+    private static final int HUFFMAN_LOOKUP_MASK = (1 << HUFFMAN_LOOKUP_BITS) - 1;
+
+    /**
+     * Lookup table entries hold the code length in the lowest bits and
+     * the decoded symbol above.
+     */
+    private static final int CODE_SYMBOL_SHIFT = 5;
+    private static final int CODE_LENGTH_MASK = (1 << CODE_SYMBOL_SHIFT) - 1;
 
-    private int currentChar = -1;
+    /**
+     * Chunk size and total size of the MTF list, see
+     * {@link #moveToFront(byte[], int[], int)}.
+     */
+    private static final int MTFL_SIZE = 16;
+    private static final int MTFA_SIZE = 4096;
+
+    private static final long BLOCK_MAGIC = 0x314159265359L;
+    private static final long EOS_MAGIC = 0x177245385090L;
+    private static final long MAGIC_MASK = 0xffffffffffffL;
 
     private static final int EOF = 0;
     private static final int START_BLOCK_STATE = 1;
-    private static final int RAND_PART_A_STATE = 2;
-    private static final int RAND_PART_B_STATE = 3;
-    private static final int RAND_PART_C_STATE = 4;
-    private static final int NO_RAND_PART_A_STATE = 5;
-    private static final int NO_RAND_PART_B_STATE = 6;
-    private static final int NO_RAND_PART_C_STATE = 7;
 
     private int currentState = START_BLOCK_STATE;
 
+    /**
+     * If set, the stream ends after the first block instead of reading
+     * the next block header. Used to decode blocks cut out of a stream
+     * by {@link BZip2BlockScanner}.
+     */
+    private final boolean singleBlock;
+
+    /**
+     * If set, streams following the end of stream marker are decoded as
+     * well. Wikimedia multistream dumps consist of many such streams.
+     */
+    private final boolean decompressConcatenated;
+
     private int storedBlockCRC, storedCombinedCRC;
     private int computedBlockCRC, computedCombinedCRC;
 
-    // Variables used by setup* methods exclusively
+    /**
+     * Set while decoding a stream which has been entered at a block
+     * boundary, its combined CRC cannot be checked.
+     */
+    private boolean ignoreCombinedCRC;
+
+    /**
+     * Compressed bit offset of the last block header read, even if it
+     * turned out to be malformed.
+     */
+    private long headerBitOffset;
 
-    private int su_count;
-    private int su_ch2;
-    private int su_chPrev;
-    private int su_i2;
-    private int su_j2;
-    private int su_rNToGo;
-    private int su_rTPos;
-    private int su_tPos;
-    private char su_z;
+    /**
+     * Compressed bit offset of the current block and number of bytes
+     * decoded before it.
+     */
+    private long blockBitOffset;
+    private long blockOutputOffset;
+
+    /**
+     * The decoded bytes of the current block, {@link Data#outBuf}. The
+     * buffer is reused for all blocks and only grows if a block expands
+     * beyond its size.
+     */
+    private byte[] outBuf;
+    private int outPos;
+    private int outLimit;
 
     /**
      * All memory intensive stuff.
@@ -123,6 +213,45 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
      */
     private Data data;
 
+    /**
+     * Pool to borrow {@link #data} from, may be <tt>null</tt>.
+     */
+    private final BZip2DataPool pool;
+
+    private final BZip2CRCCheck crcCheck;
+
+    /**
+     * CRC of the current block being computed in the background, see
+     * {@link BZip2CRCCheck#async(java.util.concurrent.Executor)}.
+     */
+    private FutureTask<Integer> pendingBlockCRC;
+    private int pendingStoredBlockCRC;
+
+    /**
+     * Enables the recovery mode if not <tt>null</tt>.
+     */
+    private final BZip2CorruptBlockListener listener;
+
+    /**
+     * Set if reading from {@link #in} failed, such errors are not
+     * recovered from.
+     */
+    private boolean inputFailed;
+
+    private long corruptBlocks;
+
+    /**
+     * Counters to update, may be <tt>null</tt>.
+     */
+    private final BZip2DecoderStats stats;
+
+    /**
+     * Time spent on the phases of the current block, only measured if
+     * there are {@link #stats}.
+     */
+    private long huffmanNanos;
+    private long bwtStartNanos;
+
     /**
      * Constructs a new CBZip2InputStream which decompresses bytes read from
      * the specified stream.
@@ -133,19 +262,160 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
      * to skip the first two bytes. Otherwise this constructor will
      * throw an exception. </p>
      *
+     * <p/>
+     * <p>Concatenated streams are decoded as a whole, the <tt>"BZ"</tt>
+     * magic of all but the first stream is skipped by this stream.</p>
+     *
      * @throws java.io.IOException  if the stream content is malformed or an I/O error occurs.
      * @throws NullPointerException if <tt>in == null</tt>
      */
     public CBZip2InputStream(final InputStream in) throws IOException {
+        this(in, true);
+    }
+
+    /**
+     * Constructs a new CBZip2InputStream which decompresses bytes read from
+     * the specified stream.
+     *
+     * @param decompressConcatenated if <tt>false</tt> this stream ends at
+     *                               the first end of stream marker
+     * @throws java.io.IOException  if the stream content is malformed or an I/O error occurs.
+     * @throws NullPointerException if <tt>in == null</tt>
+     * @see #CBZip2InputStream(java.io.InputStream)
+     */
+    public CBZip2InputStream(final InputStream in, final boolean decompressConcatenated)
+            throws IOException {
+        this(in, decompressConcatenated, new BZip2DecoderOptions());
+    }
+
+    /**
+     * Constructs a new CBZip2InputStream which decompresses bytes read from
+     * the specified stream.
+     *
+     * @param decompressConcatenated if <tt>false</tt> this stream ends at
+     *                               the first end of stream marker
+     * @param options                buffer pool, CRC check, recovery mode,
+     *                               statistics and start block to use
+     * @throws java.io.IOException  if the stream content is malformed or an I/O error occurs.
+     * @throws NullPointerException if <tt>in == null</tt>
+     * @see #CBZip2InputStream(java.io.InputStream)
+     */
+    public CBZip2InputStream(final InputStream in, final boolean decompressConcatenated,
+                             final BZip2DecoderOptions options) throws IOException {
+        this(CompressedInput.of(in), decompressConcatenated, false, options.getBlockSize100k(),
+                options.getBlockBitOffset(), options);
+    }
+
+    /**
+     * Constructs a new CBZip2InputStream which decompresses bytes read from
+     * the specified channel, straight into the buffer for compressed bytes.
+     * Like a stream, the channel has to be positioned after the <tt>"BZ"</tt>
+     * magic. The channel has to be in blocking mode.
+     *
+     * @throws java.io.IOException      if the stream content is malformed or an I/O error occurs.
+     * @throws IllegalArgumentException if <tt>in</tt> is non-blocking
+     * @see #CBZip2InputStream(InputStream, boolean, BZip2DecoderOptions)
+     */
+    public CBZip2InputStream(final ReadableByteChannel in, final boolean decompressConcatenated,
+                             final BZip2DecoderOptions options) throws IOException {
+        this(CompressedInput.of(in), decompressConcatenated, false, options.getBlockSize100k(),
+                options.getBlockBitOffset(), options);
+    }
+
+    /**
+     * Constructs a new CBZip2InputStream which decompresses exactly one
+     * block. The stream has to be positioned at the byte containing the
+     * first bit of the block header magic, <tt>bitOffset</tt> is the
+     * position of this bit within that byte (counted from the most
+     * significant bit). The start block of <tt>options</tt> is ignored.
+     * <p/>
+     * <p>The block is not recovered from errors, but with a listener
+     * a CRC mismatch fails like any other error. Compressed bytes are not
+     * counted in the statistics, they are counted by whoever cuts out the
+     * block.</p>
+     *
+     * @throws java.io.IOException if the block is malformed or an I/O error occurs.
+     */
+    CBZip2InputStream(final InputStream in, final int blockSize100k, final int bitOffset,
+                      final BZip2DecoderOptions options) throws IOException {
+        this(CompressedInput.of(in), false, true, blockSize100k, bitOffset, options);
+    }
+
+    private CBZip2InputStream(final CompressedInput in, final boolean decompressConcatenated,
+                              final boolean singleBlock, final int blockSize100k,
+                              final long blockBitOffset, final BZip2DecoderOptions options) throws IOException {
         super();
 
         this.in = in;
-        init();
+        this.singleBlock = singleBlock;
+        this.decompressConcatenated = decompressConcatenated;
+        this.pool = options.getPool();
+        this.listener = options.getListener();
+        this.crcCheck = (this.listener != null && options.getCRCCheck().isAsync()) ?
+                BZip2CRCCheck.VERIFY : options.getCRCCheck();
+        this.stats = options.getStats();
+
+        if (blockBitOffset < 0) {
+            init();
+            return;
+        }
+        if ((blockSize100k < 1) || (blockSize100k > 9)) {
+            throw new IllegalArgumentException("blockSize100k(" + blockSize100k + ") out of range.");
+        }
+        this.blockSize100k = blockSize100k;
+        this.ignoreCombinedCRC = true;
+        this.inBase = blockBitOffset >>> 3;
+
+        final int skip = (int) (blockBitOffset & 7);
+        if (skip > 0) {
+            bsR(skip);
+        }
+
+        nextBlock();
+    }
+
+    /**
+     * @return compressed bit offset of the block the next byte is read from,
+     *         a valid start position for {@link BZip2DecoderOptions#startAt(int, long)}
+     */
+    public long getBlockBitOffset() {
+        return this.blockBitOffset;
+    }
+
+    /**
+     * @return block size of the stream containing the current block
+     */
+    public int getBlockSize100k() {
+        return this.blockSize100k;
+    }
+
+    /**
+     * @return number of bytes decoded before the current block
+     */
+    public long getBlockOutputOffset() {
+        return this.blockOutputOffset;
+    }
+
+    /**
+     * @return number of bytes read from this stream
+     */
+    public long getOutputOffset() {
+        return this.blockOutputOffset + this.outPos;
+    }
+
+    /**
+     * @return number of blocks dropped in recovery mode
+     */
+    public long getCorruptBlocks() {
+        return this.corruptBlocks;
     }
 
     public int read() throws IOException {
         if (this.in != null) {
-            return read0();
+            if ((this.outPos == this.outLimit) && !fillBuffer()) {
+                return -1;
+            }
+            return this.outBuf[this.outPos++] & 0xff;
         } else {
             throw new IOException("stream closed");
         }
@@ -167,70 +437,182 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
         if (this.in == null) {
             throw new IOException("stream closed");
         }
-
-        final int hi = offs + len;
-        int destOffs = offs;
-        for (int b; (destOffs < hi) && ((b = read0()) >= 0); ) {
-            dest[destOffs++] = (byte) b;
+        if (len == 0) {
+            return 0;
+        }
+        if ((this.outPos == this.outLimit) && !fillBuffer()) {
+            return -1;
         }
 
-        return (destOffs == offs) ? -1 : (destOffs - offs);
+        final int n = Math.min(len, this.outLimit - this.outPos);
+        System.arraycopy(this.outBuf, this.outPos, dest, offs, n);
+        this.outPos += n;
+        return n;
     }
 
-    private int read0() throws IOException {
-        final int retChar = this.currentChar;
+    /**
+     * Reads decoded bytes into <tt>dst</tt>, at most the rest of the current
+     * block. Like {@link #read(byte[], int, int)}, this blocks until at
+     * least one byte is read.
+     *
+     * @return number of bytes read, or <tt>-1</tt> at the end of the stream
+     * @throws ClosedChannelException if this stream is closed
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (this.in == null) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if ((this.outPos == this.outLimit) && !fillBuffer()) {
+            return -1;
+        }
 
-        switch (this.currentState) {
-            case EOF:
-                return -1;
+        final int n = Math.min(dst.remaining(), this.outLimit - this.outPos);
+        dst.put(this.outBuf, this.outPos, n);
+        this.outPos += n;
+        return n;
+    }
 
-            case START_BLOCK_STATE:
-                throw new IllegalStateException();
+    /**
+     * @return <tt>false</tt> once this stream is closed
+     */
+    public boolean isOpen() {
+        return this.in != null;
+    }
 
-            case RAND_PART_A_STATE:
-                throw new IllegalStateException();
+    /**
+     * @return the number of bytes left in the current block, they can be
+     *         read without blocking
+     */
+    public int available() throws IOException {
+        if (this.in == null) {
+            throw new IOException("stream closed");
+        }
+        return this.outLimit - this.outPos;
+    }
 
-            case RAND_PART_B_STATE:
-                setupRandPartB();
-                break;
+    /**
+     * Decodes blocks until there are bytes to read.
+     *
+     * @return <tt>false</tt> at the end of the stream
+     */
+    private boolean fillBuffer() throws IOException {
+        while (this.outPos == this.outLimit) {
+            if (this.currentState == EOF) {
+                return false;
+            }
+            if (this.singleBlock) {
+                this.currentState = EOF;
+                awaitBlockCRC();
+                releaseData();
+                return false;
+            }
+            nextBlock();
+        }
+        return true;
+    }
 
-            case RAND_PART_C_STATE:
-                setupRandPartC();
-                break;
+    /**
+     * Reads and decodes the next block, skipping corrupt blocks in
+     * recovery mode.
+     */
+    private void nextBlock() throws IOException {
+        if (this.listener == null || this.singleBlock) {
+            initBlock();
+            setupBlock();
+            return;
+        }
+        while (true) {
+            try {
+                initBlock();
+                setupBlock();
+                return;
+            } catch (IOException e) {
+                if (this.inputFailed) {
+                    throw e;
+                }
+                skipCorruptBlock(e);
+            } catch (RuntimeException e) {
+                // corrupt data can drive the decoder out of its tables
+                skipCorruptBlock(e);
+            }
+            if (this.currentState == EOF) {
+                return;
+            }
+        }
+    }
 
-            case NO_RAND_PART_A_STATE:
-                throw new IllegalStateException();
+    /**
+     * Drops what has been decoded of the current block and positions the
+     * stream at the next block header or end of stream magic.
+     */
+    private void skipCorruptBlock(final Throwable cause) throws IOException {
+        // the bytes of the previous block are accounted for by setupBlock(),
+        // if it did not get that far
+        this.blockOutputOffset += this.outPos;
+        this.outPos = 0;
+        this.outLimit = 0;
+        this.ignoreCombinedCRC = true;
+        this.corruptBlocks++;
+        if (this.stats != null) {
+            this.stats.corruptBlock();
+        }
 
-            case NO_RAND_PART_B_STATE:
-                setupNoRandPartB();
-                break;
+        if (this.bsPadding > 0) {
+            // drop the zero bits appended at the end of the stream
+            this.bsBuff >>>= this.bsPadding;
+            this.bsLive = Math.max(this.bsLive - this.bsPadding, 0);
+            this.bsPadding = 0;
+        }
 
-            case NO_RAND_PART_C_STATE:
-                setupNoRandPartC();
+        final long corruptBitOffset = this.headerBitOffset;
+        long nextBitOffset = -1;
+        while (bsTryFill(48)) {
+            final long magic = (this.bsBuff >>> (this.bsLive - 48)) & MAGIC_MASK;
+            if (magic == BLOCK_MAGIC || magic == EOS_MAGIC) {
+                nextBitOffset = ((this.inBase + this.inPos) << 3) - this.bsLive;
                 break;
-
-            default:
-                throw new IllegalStateException();
+            }
+            this.bsLive--;
         }
 
-        return retChar;
+        if (nextBitOffset < 0) {
+            this.currentState = EOF;
+            releaseData();
+        } else {
+            this.currentState = START_BLOCK_STATE;
+        }
+        this.listener.corruptBlock(corruptBitOffset, nextBitOffset, this.blockOutputOffset, cause);
     }
 
     private void init() throws IOException {
         if (null == in) {
             throw new IOException("No InputStream");
         }
-        if (in.available() == 0) {
+        // available() is not reliable for network and composed streams
+        if (!bsTryFill(16)) {
             throw new IOException("Empty InputStream");
         }
-        int magic2 = this.in.read();
+        readStreamHeader();
+
+        nextBlock();
+    }
+
+    /**
+     * Reads the <tt>'h'</tt> and block size chars following the
+     * <tt>"BZ"</tt> magic.
+     */
+    private void readStreamHeader() throws IOException {
+        int magic2 = bsGetUByte();
         if (magic2 != 'h') {
             throw new IOException("Stream is not BZip2 formatted: expected 'h'"
                     + " as first byte but got '" + (char) magic2
                     + "'");
         }
 
-        int blockSize = this.in.read();
+        int blockSize = bsGetUByte();
         if ((blockSize < '1') || (blockSize > '9')) {
             throw new IOException("Stream is not BZip2 formatted: illegal "
                     + "blocksize " + (char) blockSize);
@@ -238,59 +620,102 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
 
         this.blockSize100k = blockSize - '0';
 
-        initBlock();
-        setupBlock();
+        if ((this.data != null) && (this.data.ll8.length < this.blockSize100k * BZip2Constants.baseBlockSize)) {
+            releaseData();
+        }
     }
 
     private void initBlock() throws IOException {
-        char magic0 = bsGetUByte();
-        char magic1 = bsGetUByte();
-        char magic2 = bsGetUByte();
-        char magic3 = bsGetUByte();
-        char magic4 = bsGetUByte();
-        char magic5 = bsGetUByte();
-
-        if (magic0 == 0x17 &&
-                magic1 == 0x72 &&
-                magic2 == 0x45 &&
-                magic3 == 0x38 &&
-                magic4 == 0x50 &&
-                magic5 == 0x90) {
-            complete(); // end of file
-        } else if (magic0 != 0x31 || // '1'
-                magic1 != 0x41 || // ')'
-                magic2 != 0x59 || // 'Y'
-                magic3 != 0x26 || // '&'
-                magic4 != 0x53 || // 'S'
-                magic5 != 0x59   // 'Y'
-                ) {
-            this.currentState = EOF;
-            throw new IOException("bad block header");
-        } else {
-            this.storedBlockCRC = bsGetInt();
-            this.blockRandomised = bsR(1) == 1;
-
-            /**
-             * Allocate data here instead in constructor, so we do not
-             * allocate it if the input file is empty.
-             */
-            if (this.data == null) {
-                this.data = new Data(this.blockSize100k);
-            }
+        while (true) {
+            final long magicBitOffset = ((this.inBase + this.inPos) << 3) - this.bsLive;
+            this.headerBitOffset = magicBitOffset;
+            char magic0 = bsGetUByte();
+            char magic1 = bsGetUByte();
+            char magic2 = bsGetUByte();
+            char magic3 = bsGetUByte();
+            char magic4 = bsGetUByte();
+            char magic5 = bsGetUByte();
+
+            if (magic0 == 0x17 &&
+                    magic1 == 0x72 &&
+                    magic2 == 0x45 &&
+                    magic3 == 0x38 &&
+                    magic4 == 0x50 &&
+                    magic5 == 0x90) {
+                if (complete()) {
+                    // end of file
+                    return;
+                }
+            } else if (magic0 != 0x31 || // '1'
+                    magic1 != 0x41 || // ')'
+                    magic2 != 0x59 || // 'Y'
+                    magic3 != 0x26 || // '&'
+                    magic4 != 0x53 || // 'S'
+                    magic5 != 0x59   // 'Y'
+                    ) {
+                this.currentState = EOF;
+                throw new IOException("bad block header");
+            } else {
+                this.blockBitOffset = magicBitOffset;
+                this.storedBlockCRC = bsGetInt();
+                this.blockRandomised = bsR(1) == 1;
+
+                /**
+                 * Allocate data here instead in constructor, so we do not
+                 * allocate it if the input file is empty.
+                 */
+                if (this.data == null) {
+                    this.data = (this.pool == null) ? new Data(this.blockSize100k, false)
+                            : this.pool.acquire(this.blockSize100k);
+                    this.outBuf = this.data.outBuf;
+                }
 
-            // currBlockNo++;
-            getAndMoveToFrontDecode();
+                // currBlockNo++;
+                final long huffmanStart = (this.stats == null) ? 0 : System.nanoTime();
+                getAndMoveToFrontDecode();
+                if (this.stats != null) {
+                    this.huffmanNanos = System.nanoTime() - huffmanStart;
+                }
 
-            this.crc.initialiseCRC();
-            this.currentState = START_BLOCK_STATE;
+                this.currentState = START_BLOCK_STATE;
+                return;
+            }
         }
     }
 
     private void endBlock() throws IOException {
-        this.computedBlockCRC = this.crc.getFinalCRC();
+        final long crcStart = (this.stats == null) ? 0 : System.nanoTime();
+        if (this.crcCheck.executor != null) {
+            final byte[] buf = this.outBuf;
+            final int len = this.outLimit;
+            this.pendingStoredBlockCRC = this.storedBlockCRC;
+            this.pendingBlockCRC = new FutureTask<Integer>(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    final CRC blockCRC = new CRC();
+                    blockCRC.updateCRC(buf, 0, len);
+                    return blockCRC.getFinalCRC();
+                }
+            });
+            this.crcCheck.executor.execute(this.pendingBlockCRC);
+            this.computedBlockCRC = this.storedBlockCRC;
+        } else if (this.crcCheck.verify) {
+            this.crc.initialiseCRC();
+            this.crc.updateCRC(this.outBuf, 0, this.outLimit);
+            this.computedBlockCRC = this.crc.getFinalCRC();
+        } else {
+            this.computedBlockCRC = this.storedBlockCRC;
+        }
 
         // A bad CRC is considered a fatal error.
         if (this.storedBlockCRC != this.computedBlockCRC) {
+            if (this.listener != null) {
+                // the whole block gets dropped
+                if (this.stats != null) {
+                    this.stats.crcError();
+                }
+                throw new IOException("block CRC error");
+            }
             // make next blocks readable without error
             // (repair feature, not yet documented, not tested)
             this.computedCombinedCRC
@@ -305,74 +730,232 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
                 = (this.computedCombinedCRC << 1)
                 | (this.computedCombinedCRC >>> 31);
         this.computedCombinedCRC ^= this.computedBlockCRC;
+
+        if (this.stats != null) {
+            this.stats.blockDecoded(this.outLimit, this.huffmanNanos, crcStart - this.bwtStartNanos,
+                    System.nanoTime() - crcStart);
+        }
     }
 
-    private void complete() throws IOException {
+    /**
+     * Waits for the background CRC of the previous block, which has to be
+     * done before its output buffer gets reused.
+     */
+    private void awaitBlockCRC() throws IOException {
+        final FutureTask<Integer> pending = this.pendingBlockCRC;
+        if (pending == null) {
+            return;
+        }
+        this.pendingBlockCRC = null;
+        final int computed;
+        try {
+            computed = pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while verifying block CRC", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to verify block CRC", e.getCause());
+        }
+        if (computed != this.pendingStoredBlockCRC) {
+            reportCRCError();
+        }
+    }
+
+    /**
+     * Reads the stream trailer and the header of the next stream if there
+     * is one.
+     *
+     * @return <tt>true</tt> if this was the last stream
+     */
+    private boolean complete() throws IOException {
+        awaitBlockCRC();
         this.storedCombinedCRC = bsGetInt();
-        this.currentState = EOF;
-        this.data = null;
 
-        if (this.storedCombinedCRC != this.computedCombinedCRC) {
+        if (!this.ignoreCombinedCRC && (this.storedCombinedCRC != this.computedCombinedCRC)) {
             reportCRCError();
         }
+
+        if (this.decompressConcatenated && nextStream()) {
+            this.computedCombinedCRC = 0;
+            this.ignoreCombinedCRC = false;
+            return false;
+        }
+
+        this.currentState = EOF;
+        releaseData();
+        return true;
+    }
+
+    /**
+     * Skips the padding at the end of a stream and reads the header of
+     * the next concatenated stream.
+     *
+     * @return <tt>false</tt> if there is no further stream. Anything but a
+     *         <tt>"BZ"</tt> magic is ignored, as the bzip2 tool does.
+     */
+    private boolean nextStream() throws IOException {
+        this.bsLive &= ~7;
+        if (!bsTryFill(16)) {
+            return false;
+        }
+        if ((((int) (this.bsBuff >>> (this.bsLive - 16))) & 0xffff) != (('B' << 8) | 'Z')) {
+            return false;
+        }
+        this.bsLive -= 16;
+        readStreamHeader();
+        return true;
     }
 
     public void close() throws IOException {
-        InputStream inShadow = this.in;
+        CompressedInput inShadow = this.in;
         if (inShadow != null) {
             try {
-                if (inShadow != System.in) {
-                    inShadow.close();
-                }
+                inShadow.close();
             } finally {
-                this.data = null;
+                releaseData();
                 this.in = null;
             }
         }
     }
 
-    private int bsR(final int n) throws IOException {
-        int bsLiveShadow = this.bsLive;
-        int bsBuffShadow = this.bsBuff;
+    /**
+     * Hands the decoding buffers back to the pool, if there is one.
+     */
+    private void releaseData() {
+        if (this.pendingBlockCRC != null) {
+            // the block has not been read up to its end, so the result
+            // would not be looked at anyway
+            this.pendingBlockCRC.cancel(false);
+            this.pendingBlockCRC = null;
+        }
+        final Data dataShadow = this.data;
+        this.data = null;
+        this.outBuf = null;
+        if ((dataShadow != null) && (this.pool != null)) {
+            this.pool.release(dataShadow);
+        }
+    }
 
-        if (bsLiveShadow < n) {
-            final InputStream inShadow = this.in;
-            do {
-                int thech = inShadow.read();
+    /**
+     * Reads the next chunk of compressed bytes into {@link #inBuf}.
+     *
+     * @return <tt>false</tt> at the end of the compressed stream
+     */
+    private boolean bsRefill() throws IOException {
+        final int read;
+        try {
+            read = this.in.read(this.inBuf, 0, this.inBuf.length);
+        } catch (IOException e) {
+            this.inputFailed = true;
+            throw e;
+        }
+        if (read <= 0) {
+            return false;
+        }
+        this.inBase += this.inLimit;
+        this.inPos = 0;
+        this.inLimit = read;
+        if ((this.stats != null) && !this.singleBlock) {
+            this.stats.compressedBytesRead(read);
+        }
+        return true;
+    }
 
-                if (thech < 0) {
-                    throw new IOException("unexpected end of stream");
-                }
+    /**
+     * Makes sure at least <tt>n</tt> bits are buffered, <tt>n</tt> must
+     * not be larger than 57.
+     */
+    private void bsFill(final int n) throws IOException {
+        if (!bsTryFill(n)) {
+            throw new IOException("unexpected end of stream");
+        }
+    }
 
-                bsBuffShadow = (bsBuffShadow << 8) | thech;
+    /**
+     * Like {@link #bsFill(int)} but does not fail at the end of the stream.
+     *
+     * @return <tt>false</tt> if less than <tt>n</tt> bits are left
+     */
+    private boolean bsTryFill(final int n) throws IOException {
+        final byte[] inBufShadow = this.inBuf;
+        long bsBuffShadow = this.bsBuff;
+        int bsLiveShadow = this.bsLive;
+        int inPosShadow = this.inPos;
+        boolean filled = true;
+
+        while (bsLiveShadow < n) {
+            if (inPosShadow == this.inLimit) {
+                if (!bsRefill()) {
+                    filled = false;
+                    break;
+                }
+                inPosShadow = 0;
+            }
+            final int inLimitShadow = this.inLimit;
+            do {
+                bsBuffShadow = (bsBuffShadow << 8) | (inBufShadow[inPosShadow++] & 0xff);
                 bsLiveShadow += 8;
-            } while (bsLiveShadow < n);
-
-            this.bsBuff = bsBuffShadow;
+            } while ((bsLiveShadow <= 56) && (inPosShadow < inLimitShadow));
         }
 
-        this.bsLive = bsLiveShadow - n;
-        return (bsBuffShadow >> (bsLiveShadow - n)) & ((1 << n) - 1);
+        this.bsBuff = bsBuffShadow;
+        this.bsLive = bsLiveShadow;
+        this.inPos = inPosShadow;
+        return filled;
     }
 
-    private boolean bsGetBit() throws IOException {
+    /**
+     * Makes sure enough bits for the longest Huffman code are buffered.
+     * The last Huffman codes of a truncated stream might be shorter than
+     * that, so at the end of the stream zero bits are appended instead of
+     * failing right away. Only consuming those is an error.
+     */
+    private void bsFillHuffman() throws IOException {
+        if (this.bsLive < this.bsPadding) {
+            throw new IOException("unexpected end of stream");
+        }
+        final byte[] inBufShadow = this.inBuf;
+        long bsBuffShadow = this.bsBuff;
         int bsLiveShadow = this.bsLive;
-        int bsBuffShadow = this.bsBuff;
-
-        if (bsLiveShadow < 1) {
-            int thech = this.in.read();
-
-            if (thech < 0) {
-                throw new IOException("unexpected end of stream");
+        int inPosShadow = this.inPos;
+
+        while (bsLiveShadow <= 56) {
+            if (inPosShadow == this.inLimit) {
+                if (this.bsPadding > 0 || !bsRefill()) {
+                    if (bsLiveShadow <= MAX_CODE_LEN) {
+                        bsBuffShadow <<= 32;
+                        bsLiveShadow += 32;
+                        this.bsPadding += 32;
+                    }
+                    break;
+                }
+                inPosShadow = 0;
             }
-
-            bsBuffShadow = (bsBuffShadow << 8) | thech;
+            bsBuffShadow = (bsBuffShadow << 8) | (inBufShadow[inPosShadow++] & 0xff);
             bsLiveShadow += 8;
-            this.bsBuff = bsBuffShadow;
         }
 
-        this.bsLive = bsLiveShadow - 1;
-        return ((bsBuffShadow >> (bsLiveShadow - 1)) & 1) != 0;
+        this.bsBuff = bsBuffShadow;
+        this.bsLive = bsLiveShadow;
+        this.inPos = inPosShadow;
+    }
+
+    private int bsR(final int n) throws IOException {
+        if (this.bsLive < n) {
+            bsFill(n);
+        }
+        final int bsLiveShadow = this.bsLive - n;
+        this.bsLive = bsLiveShadow;
+        return (int) (this.bsBuff >>> bsLiveShadow) & ((1 << n) - 1);
+    }
+
+    private boolean bsGetBit() throws IOException {
+        if (this.bsLive < 1) {
+            bsFill(1);
+        }
+        final int bsLiveShadow = this.bsLive - 1;
+        this.bsLive = bsLiveShadow;
+        return ((this.bsBuff >>> bsLiveShadow) & 1) != 0;
     }
 
     private char bsGetUByte() throws IOException {
@@ -520,6 +1103,7 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
         final int[][] limit = dataShadow.limit;
         final int[][] base = dataShadow.base;
         final int[][] perm = dataShadow.perm;
+        final int[][] lookup = dataShadow.lookup;
 
         for (int t = 0; t < nGroups; t++) {
             int minLen = 32;
@@ -536,21 +1120,52 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
             }
             hbCreateDecodeTables(limit[t], base[t], perm[t], len[t], minLen,
                     maxLen, alphaSize);
+            hbCreateLookupTable(lookup[t], limit[t], base[t], perm[t], minLen);
             minLens[t] = minLen;
         }
     }
 
+    /**
+     * Fills the lookup table for codes of up to {@link #HUFFMAN_LOOKUP_BITS}
+     * bits. The entry for the next <tt>HUFFMAN_LOOKUP_BITS</tt> bits of the
+     * stream holds the symbol and the length of the code they start with,
+     * found exactly like the bitwise decoding would, or <tt>-1</tt> if the
+     * code is longer than that.
+     */
+    private static void hbCreateLookupTable(final int[] lookup,
+                                            final int[] limit,
+                                            final int[] base,
+                                            final int[] perm,
+                                            final int minLen) {
+        for (int peek = lookup.length; --peek >= 0; ) {
+            int code = -1;
+            for (int zn = minLen; zn <= HUFFMAN_LOOKUP_BITS; zn++) {
+                final int zvec = peek >>> (HUFFMAN_LOOKUP_BITS - zn);
+                if (zvec <= limit[zn]) {
+                    final int p = zvec - base[zn];
+                    if (p >= 0 && p < perm.length) {
+                        code = (perm[p] << CODE_SYMBOL_SHIFT) | zn;
+                    }
+                    // else leave it to the bitwise decoding to fail
+                    break;
+                }
+            }
+            lookup[peek] = code;
+        }
+    }
+
     private void getAndMoveToFrontDecode() throws IOException {
         this.origPtr = bsR(24);
         recvDecodingTables();
 
-        final InputStream inShadow = this.in;
         final Data dataShadow = this.data;
         final byte[] ll8 = dataShadow.ll8;
         final int[] unzftab = dataShadow.unzftab;
         final byte[] selector = dataShadow.selector;
         final byte[] seqToUnseq = dataShadow.seqToUnseq;
-        final char[] yy = dataShadow.getAndMoveToFrontDecode_yy;
+        final byte[] mtfa = dataShadow.mtfa;
+        final int[] mtfbase = dataShadow.mtfbase;
+        final int[][] lookup = dataShadow.lookup;
         final int[] minLens = dataShadow.minLens;
         final int[][] limit = dataShadow.limit;
         final int[][] base = dataShadow.base;
@@ -564,18 +1179,26 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
           cache misses.
         */
         for (int i = 256; --i >= 0; ) {
-            yy[i] = (char) i;
             unzftab[i] = 0;
         }
 
+        // the MTF list holds the symbols themselves, not their indexes
+        for (int ii = 256 / MTFL_SIZE, kk = MTFA_SIZE; --ii >= 0; ) {
+            for (int jj = MTFL_SIZE; --jj >= 0; ) {
+                mtfa[--kk] = seqToUnseq[ii * MTFL_SIZE + jj];
+            }
+            mtfbase[ii] = kk;
+        }
+
         int groupNo = 0;
         int groupPos = G_SIZE - 1;
         final int eob = this.nInUse + 1;
         int nextSym = getAndMoveToFrontDecode0(0);
-        int bsBuffShadow = this.bsBuff;
+        long bsBuffShadow = this.bsBuff;
         int bsLiveShadow = this.bsLive;
         int lastShadow = -1;
         int zt = selector[groupNo] & 0xff;
+        int[] lookup_zt = lookup[zt];
         int[] base_zt = base[zt];
         int[] limit_zt = limit[zt];
         int[] perm_zt = perm[zt];
@@ -597,6 +1220,7 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
                     if (groupPos == 0) {
                         groupPos = G_SIZE - 1;
                         zt = selector[++groupNo] & 0xff;
+                        lookup_zt = lookup[zt];
                         base_zt = base[zt];
                         limit_zt = limit[zt];
                         perm_zt = perm[zt];
@@ -605,42 +1229,23 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
                         groupPos--;
                     }
 
-                    int zn = minLens_zt;
-
-                    // Inlined:
-                    // int zvec = bsR(zn);
-                    while (bsLiveShadow < zn) {
-                        final int thech = inShadow.read();
-                        if (thech >= 0) {
-                            bsBuffShadow = (bsBuffShadow << 8) | thech;
-                            bsLiveShadow += 8;
-                            continue;
-                        } else {
-                            throw new IOException("unexpected end of stream");
-                        }
+                    if (bsLiveShadow < MAX_CODE_LEN) {
+                        this.bsBuff = bsBuffShadow;
+                        this.bsLive = bsLiveShadow;
+                        bsFillHuffman();
+                        bsBuffShadow = this.bsBuff;
+                        bsLiveShadow = this.bsLive;
                     }
-                    int zvec = (bsBuffShadow >> (bsLiveShadow - zn)) & ((1 << zn) - 1);
-                    bsLiveShadow -= zn;
-
-                    while (zvec > limit_zt[zn]) {
-                        zn++;
-                        while (bsLiveShadow < 1) {
-                            final int thech = inShadow.read();
-                            if (thech >= 0) {
-                                bsBuffShadow = (bsBuffShadow << 8) | thech;
-                                bsLiveShadow += 8;
-                                continue;
-                            } else {
-                                throw new IOException("unexpected end of stream");
-                            }
-                        }
-                        bsLiveShadow--;
-                        zvec = (zvec << 1) | ((bsBuffShadow >> bsLiveShadow) & 1);
+
+                    int code = lookup_zt[(int) (bsBuffShadow >>> (bsLiveShadow - HUFFMAN_LOOKUP_BITS)) & HUFFMAN_LOOKUP_MASK];
+                    if (code < 0) {
+                        code = decodeLongCode(bsBuffShadow, bsLiveShadow, limit_zt, base_zt, perm_zt, minLens_zt);
                     }
-                    nextSym = perm_zt[zvec - base_zt[zn]];
+                    bsLiveShadow -= code & CODE_LENGTH_MASK;
+                    nextSym = code >>> CODE_SYMBOL_SHIFT;
                 }
 
-                final byte ch = seqToUnseq[yy[0]];
+                final byte ch = mtfa[mtfbase[0]];
                 unzftab[ch & 0xff] += s + 1;
 
                 while (s-- >= 0) {
@@ -655,28 +1260,14 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
                     throw new IOException("block overrun");
                 }
 
-                final char tmp = yy[nextSym - 1];
-                unzftab[seqToUnseq[tmp] & 0xff]++;
-                ll8[lastShadow] = seqToUnseq[tmp];
-
-                /*
-                  This loop is hammered during decompression,
-                  hence avoid native method call overhead of
-                  System.arraycopy for very small ranges to copy.
-                */
-                if (nextSym <= 16) {
-                    for (int j = nextSym - 1; j > 0; ) {
-                        yy[j] = yy[--j];
-                    }
-                } else {
-                    System.arraycopy(yy, 0, yy, 1, nextSym - 1);
-                }
-
-                yy[0] = tmp;
+                final byte tmp = moveToFront(mtfa, mtfbase, nextSym - 1);
+                unzftab[tmp & 0xff]++;
+                ll8[lastShadow] = tmp;
 
                 if (groupPos == 0) {
                     groupPos = G_SIZE - 1;
                     zt = selector[++groupNo] & 0xff;
+                    lookup_zt = lookup[zt];
                     base_zt = base[zt];
                     limit_zt = limit[zt];
                     perm_zt = perm[zt];
@@ -685,42 +1276,27 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
                     groupPos--;
                 }
 
-                int zn = minLens_zt;
-
-                // Inlined:
-                // int zvec = bsR(zn);
-                while (bsLiveShadow < zn) {
-                    final int thech = inShadow.read();
-                    if (thech >= 0) {
-                        bsBuffShadow = (bsBuffShadow << 8) | thech;
-                        bsLiveShadow += 8;
-                        continue;
-                    } else {
-                        throw new IOException("unexpected end of stream");
-                    }
+                if (bsLiveShadow < MAX_CODE_LEN) {
+                    this.bsBuff = bsBuffShadow;
+                    this.bsLive = bsLiveShadow;
+                    bsFillHuffman();
+                    bsBuffShadow = this.bsBuff;
+                    bsLiveShadow = this.bsLive;
                 }
-                int zvec = (bsBuffShadow >> (bsLiveShadow - zn)) & ((1 << zn) - 1);
-                bsLiveShadow -= zn;
-
-                while (zvec > limit_zt[zn]) {
-                    zn++;
-                    while (bsLiveShadow < 1) {
-                        final int thech = inShadow.read();
-                        if (thech >= 0) {
-                            bsBuffShadow = (bsBuffShadow << 8) | thech;
-                            bsLiveShadow += 8;
-                            continue;
-                        } else {
-                            throw new IOException("unexpected end of stream");
-                        }
-                    }
-                    bsLiveShadow--;
-                    zvec = (zvec << 1) | ((bsBuffShadow >> bsLiveShadow) & 1);
+
+                int code = lookup_zt[(int) (bsBuffShadow >>> (bsLiveShadow - HUFFMAN_LOOKUP_BITS)) & HUFFMAN_LOOKUP_MASK];
+                if (code < 0) {
+                    code = decodeLongCode(bsBuffShadow, bsLiveShadow, limit_zt, base_zt, perm_zt, minLens_zt);
                 }
-                nextSym = perm_zt[zvec - base_zt[zn]];
+                bsLiveShadow -= code & CODE_LENGTH_MASK;
+                nextSym = code >>> CODE_SYMBOL_SHIFT;
             }
         }
 
+        if (bsLiveShadow < this.bsPadding) {
+            throw new IOException("unexpected end of stream");
+        }
+
         this.last = lastShadow;
         this.bsLive = bsLiveShadow;
         this.bsBuff = bsBuffShadow;
@@ -728,46 +1304,109 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
 
     private int getAndMoveToFrontDecode0(final int groupNo)
             throws IOException {
-        final InputStream inShadow = this.in;
         final Data dataShadow = this.data;
         final int zt = dataShadow.selector[groupNo] & 0xff;
-        final int[] limit_zt = dataShadow.limit[zt];
-        int zn = dataShadow.minLens[zt];
-        int zvec = bsR(zn);
-        int bsLiveShadow = this.bsLive;
-        int bsBuffShadow = this.bsBuff;
 
-        while (zvec > limit_zt[zn]) {
-            zn++;
-            while (bsLiveShadow < 1) {
-                final int thech = inShadow.read();
+        if (this.bsLive < MAX_CODE_LEN) {
+            bsFillHuffman();
+        }
+        final long bsBuffShadow = this.bsBuff;
+        final int bsLiveShadow = this.bsLive;
 
-                if (thech >= 0) {
-                    bsBuffShadow = (bsBuffShadow << 8) | thech;
-                    bsLiveShadow += 8;
-                    continue;
-                } else {
-                    throw new IOException("unexpected end of stream");
-                }
+        int code = dataShadow.lookup[zt][(int) (bsBuffShadow >>> (bsLiveShadow - HUFFMAN_LOOKUP_BITS)) & HUFFMAN_LOOKUP_MASK];
+        if (code < 0) {
+            code = decodeLongCode(bsBuffShadow, bsLiveShadow, dataShadow.limit[zt],
+                    dataShadow.base[zt], dataShadow.perm[zt], dataShadow.minLens[zt]);
+        }
+        this.bsLive = bsLiveShadow - (code & CODE_LENGTH_MASK);
+
+        return code >>> CODE_SYMBOL_SHIFT;
+    }
+
+    /**
+     * Decodes a Huffman code that could not be resolved by the lookup
+     * table, one bit at a time. At least {@link #MAX_CODE_LEN} bits have
+     * to be buffered.
+     *
+     * @return the symbol and the code length, packed like the entries
+     *         of {@link Data#lookup}
+     */
+    private static int decodeLongCode(final long bsBuff, final int bsLive, final int[] limit,
+                                      final int[] base, final int[] perm, final int minLen)
+            throws IOException {
+        int zn = minLen;
+        int zvec = (int) (bsBuff >>> (bsLive - zn)) & ((1 << zn) - 1);
+        while (zvec > limit[zn]) {
+            if (++zn > MAX_CODE_LEN) {
+                throw new IOException("bad huffman code");
             }
-            bsLiveShadow--;
-            zvec = (zvec << 1) | ((bsBuffShadow >> bsLiveShadow) & 1);
+            zvec = (int) (bsBuff >>> (bsLive - zn)) & ((1 << zn) - 1);
         }
+        return (perm[zvec - base[zn]] << CODE_SYMBOL_SHIFT) | zn;
+    }
 
-        this.bsLive = bsLiveShadow;
-        this.bsBuff = bsBuffShadow;
+    /**
+     * Removes the symbol at position <tt>nn</tt> of the MTF list and
+     * inserts it at the front.
+     * <p/>
+     * <p>Like libbzip2 the list is split into 16 chunks of 16 symbols,
+     * chunk <tt>i</tt> starting at <tt>mtfa[mtfbase[i]]</tt>. Moving a
+     * symbol only shifts the symbols in front of it within its own chunk,
+     * every chunk in front of that one is rotated by moving its last
+     * symbol to the front of the next chunk. Once the first chunk reaches
+     * the start of <tt>mtfa</tt> all chunks are packed at its end again.</p>
+     *
+     * @return the symbol moved
+     */
+    private static byte moveToFront(final byte[] mtfa, final int[] mtfbase, final int nn) {
+        if (nn < MTFL_SIZE) {
+            // avoid the general case expense
+            final int pp = mtfbase[0];
+            final byte uc = mtfa[pp + nn];
+            for (int z = pp + nn; z > pp; ) {
+                mtfa[z] = mtfa[--z];
+            }
+            mtfa[pp] = uc;
+            return uc;
+        }
+
+        int lno = nn / MTFL_SIZE;
+        int pp = mtfbase[lno] + (nn % MTFL_SIZE);
+        final byte uc = mtfa[pp];
+        for (final int start = mtfbase[lno]; pp > start; ) {
+            mtfa[pp] = mtfa[--pp];
+        }
+        mtfbase[lno]++;
+        while (lno > 0) {
+            mtfa[--mtfbase[lno]] = mtfa[mtfbase[lno - 1] + MTFL_SIZE - 1];
+            lno--;
+        }
+        mtfa[--mtfbase[0]] = uc;
 
-        return dataShadow.perm[zt][zvec - dataShadow.base[zt][zn]];
+        if (mtfbase[0] == 0) {
+            for (int ii = 256 / MTFL_SIZE, kk = MTFA_SIZE; --ii >= 0; ) {
+                for (int jj = MTFL_SIZE; --jj >= 0; ) {
+                    mtfa[--kk] = mtfa[mtfbase[ii] + jj];
+                }
+                mtfbase[ii] = kk;
+            }
+        }
+        return uc;
     }
 
     private void setupBlock() throws IOException {
+        awaitBlockCRC();
+        this.blockOutputOffset += this.outLimit;
+        this.outPos = 0;
+        this.outLimit = 0;
         if (this.data == null) {
             return;
         }
+        if (this.stats != null) {
+            this.bwtStartNanos = System.nanoTime();
+        }
 
         final int[] cftab = this.data.cftab;
-        final int[] tt = this.data.initTT(this.last + 1);
-        final byte[] ll8 = this.data.ll8;
         cftab[0] = 0;
         System.arraycopy(this.data.unzftab, 0, cftab, 1, 256);
 
@@ -776,141 +1415,279 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
             cftab[i] = c;
         }
 
+        if (this.data.small) {
+            setupSmallBlock();
+            return;
+        }
+
+        final int[] tt = this.data.initTT(this.last + 1);
+        final byte[] ll8 = this.data.ll8;
+
+        // the low byte of each tt entry holds the symbol at that position,
+        // so the inverse BWT only needs one random access per symbol
+        for (int i = 0, lastShadow = this.last; i <= lastShadow; i++) {
+            tt[i] = ll8[i] & 0xff;
+        }
+
         for (int i = 0, lastShadow = this.last; i <= lastShadow; i++) {
-            tt[cftab[ll8[i] & 0xff]++] = i;
+            tt[cftab[ll8[i] & 0xff]++] |= i << 8;
         }
 
         if ((this.origPtr < 0) || (this.origPtr >= tt.length)) {
             throw new IOException("stream corrupted");
         }
 
-        this.su_tPos = tt[this.origPtr];
-        this.su_count = 0;
-        this.su_i2 = 0;
-        this.su_ch2 = 256;   /* not a char and not EOF */
+        if ((this.outBuf == null) || (this.outBuf.length < this.last + 1 + OUT_SLACK)) {
+            this.outBuf = new byte[this.blockSize100k * BZip2Constants.baseBlockSize + OUT_SLACK];
+        }
 
         if (this.blockRandomised) {
-            this.su_rNToGo = 0;
-            this.su_rTPos = 0;
-            setupRandPartA();
+            this.outLimit = decodeRandomisedBlock(tt);
         } else {
-            setupNoRandPartA();
+            this.outLimit = decodeBlock(tt);
         }
+        this.data.outBuf = this.outBuf;
+
+        endBlock();
     }
 
-    private void setupRandPartA() throws IOException {
-        if (this.su_i2 <= this.last) {
-            this.su_chPrev = this.su_ch2;
-            int su_ch2Shadow = this.data.ll8[this.su_tPos] & 0xff;
-            this.su_tPos = this.data.tt[this.su_tPos];
-            if (this.su_rNToGo == 0) {
-                this.su_rNToGo = BZip2Constants.rNums[this.su_rTPos] - 1;
-                if (++this.su_rTPos == 512) {
-                    this.su_rTPos = 0;
+    /**
+     * Small mode version of {@link #setupBlock()}, modelled after libbzip2.
+     * Instead of a tt entry per symbol the inverse BWT vector is packed
+     * into 20 bits per symbol, see {@link Data#setLL(int, int)}, and the
+     * symbol itself is looked up in {@link Data#cftab} while decoding.
+     */
+    private void setupSmallBlock() throws IOException {
+        final Data dataShadow = this.data;
+        final int lastShadow = this.last;
+        final int origPtrShadow = this.origPtr;
+        if ((origPtrShadow < 0) || (origPtrShadow > lastShadow)) {
+            throw new IOException("stream corrupted");
+        }
+
+        final int[] cftabCopy = dataShadow.cftabCopy;
+        System.arraycopy(dataShadow.cftab, 0, cftabCopy, 0, 257);
+
+        // ll8 holds the symbols so far, each one is read before its slot
+        // gets overwritten by the link
+        final byte[] ll8 = dataShadow.ll8;
+        for (int i = 0; i <= lastShadow; i++) {
+            dataShadow.setLL(i, cftabCopy[ll8[i] & 0xff]++);
+        }
+
+        // reverse the links, so they can be followed in output order
+        int i = origPtrShadow;
+        int j = dataShadow.getLL(i);
+        do {
+            final int tmp = dataShadow.getLL(j);
+            dataShadow.setLL(j, i);
+            i = j;
+            j = tmp;
+        } while (i != origPtrShadow);
+
+        if ((this.outBuf == null) || (this.outBuf.length < lastShadow + 1 + OUT_SLACK)) {
+            this.outBuf = new byte[this.blockSize100k * BZip2Constants.baseBlockSize + OUT_SLACK];
+        }
+        this.outLimit = decodeSmallBlock();
+        this.data.outBuf = this.outBuf;
+
+        endBlock();
+    }
+
+    /**
+     * Same as {@link #decodeBlock(int[])} and {@link #decodeRandomisedBlock(int[])}
+     * for the packed vector of small mode.
+     */
+    private int decodeSmallBlock() throws IOException {
+        final Data dataShadow = this.data;
+        final int[] cftab = dataShadow.cftab;
+        final boolean randomised = this.blockRandomised;
+        final int blockLimit = this.last + 1;
+        byte[] out = this.outBuf;
+        int outLimit = out.length - OUT_SLACK;
+        int outLen = 0;
+
+        int tPos = this.origPtr;
+        int chPrev = 256;   /* not a char */
+        int count = 0;
+        int rNToGo = 0;
+        int rTPos = 0;
+
+        for (int i = blockLimit; --i >= 0; ) {
+            if (tPos >= blockLimit) {
+                throw new IOException("stream corrupted");
+            }
+            int ch = indexIntoF(tPos, cftab);
+            tPos = dataShadow.getLL(tPos);
+            if (randomised) {
+                if (rNToGo == 0) {
+                    rNToGo = BZip2Constants.rNums[rTPos] - 1;
+                    if (++rTPos == 512) {
+                        rTPos = 0;
+                    }
+                } else {
+                    rNToGo--;
                 }
+                ch ^= (rNToGo == 1) ? 1 : 0;
+            }
+
+            if (outLen > outLimit) {
+                out = growOutBuf(outLen);
+                outLimit = out.length - OUT_SLACK;
+            }
+
+            if (count == 4) {
+                for (int j = ch; --j >= 0; ) {
+                    out[outLen++] = (byte) chPrev;
+                }
+                count = 0;
             } else {
-                this.su_rNToGo--;
+                if (ch != chPrev) {
+                    chPrev = ch;
+                    count = 1;
+                } else {
+                    count++;
+                }
+                out[outLen++] = (byte) ch;
             }
-            this.su_ch2 = su_ch2Shadow ^= (this.su_rNToGo == 1) ? 1 : 0;
-            this.su_i2++;
-            this.currentChar = su_ch2Shadow;
-            this.currentState = RAND_PART_B_STATE;
-            this.crc.updateCRC(su_ch2Shadow);
-        } else {
-            endBlock();
-            initBlock();
-            setupBlock();
         }
+
+        return outLen;
     }
 
-    private void setupNoRandPartA() throws IOException {
-        if (this.su_i2 <= this.last) {
-            this.su_chPrev = this.su_ch2;
-            int su_ch2Shadow = this.data.ll8[this.su_tPos] & 0xff;
-            this.su_ch2 = su_ch2Shadow;
-            this.su_tPos = this.data.tt[this.su_tPos];
-            this.su_i2++;
-            this.currentChar = su_ch2Shadow;
-            this.currentState = NO_RAND_PART_B_STATE;
-            this.crc.updateCRC(su_ch2Shadow);
-        } else {
-            this.currentState = NO_RAND_PART_A_STATE;
-            endBlock();
-            initBlock();
-            setupBlock();
-        }
+    /**
+     * @return the symbol whose range in the sorted block contains
+     *         <tt>indx</tt>
+     */
+    private static int indexIntoF(final int indx, final int[] cftab) {
+        int nb = 0;
+        int na = 256;
+        do {
+            final int mid = (nb + na) >>> 1;
+            if (indx >= cftab[mid]) {
+                nb = mid;
+            } else {
+                na = mid;
+            }
+        } while (na - nb != 1);
+        return nb;
     }
 
-    private void setupRandPartB() throws IOException {
-        if (this.su_ch2 != this.su_chPrev) {
-            this.currentState = RAND_PART_A_STATE;
-            this.su_count = 1;
-            setupRandPartA();
-        } else if (++this.su_count >= 4) {
-            this.su_z = (char) (this.data.ll8[this.su_tPos] & 0xff);
-            this.su_tPos = this.data.tt[this.su_tPos];
-            if (this.su_rNToGo == 0) {
-                this.su_rNToGo = BZip2Constants.rNums[this.su_rTPos] - 1;
-                if (++this.su_rTPos == 512) {
-                    this.su_rTPos = 0;
+    /**
+     * A single symbol of the inverse BWT decodes to at most 255 bytes, the
+     * output buffer is grown once less than that is left.
+     */
+    private static final int OUT_SLACK = 256;
+
+    /**
+     * Runs the inverse BWT and undoes the initial run length encoding
+     * of the whole block into {@link #outBuf}.
+     *
+     * @return the number of decoded bytes
+     */
+    private int decodeBlock(final int[] tt) {
+        byte[] out = this.outBuf;
+        int outLimit = out.length - OUT_SLACK;
+        int outLen = 0;
+
+        int tPos = tt[this.origPtr] >>> 8;
+        int chPrev = 256;   /* not a char */
+        int count = 0;
+
+        for (int i = this.last + 1; --i >= 0; ) {
+            tPos = tt[tPos];
+            final int ch = tPos & 0xff;
+            tPos >>>= 8;
+
+            if (outLen > outLimit) {
+                out = growOutBuf(outLen);
+                outLimit = out.length - OUT_SLACK;
+            }
+
+            if (count == 4) {
+                // after four equal bytes the next symbol is a run length
+                for (int j = ch; --j >= 0; ) {
+                    out[outLen++] = (byte) chPrev;
                 }
+                count = 0;
             } else {
-                this.su_rNToGo--;
-            }
-            this.su_j2 = 0;
-            this.currentState = RAND_PART_C_STATE;
-            if (this.su_rNToGo == 1) {
-                this.su_z ^= 1;
+                if (ch != chPrev) {
+                    chPrev = ch;
+                    count = 1;
+                } else {
+                    count++;
+                }
+                out[outLen++] = (byte) ch;
             }
-            setupRandPartC();
-        } else {
-            this.currentState = RAND_PART_A_STATE;
-            setupRandPartA();
         }
+
+        return outLen;
     }
 
-    private void setupRandPartC() throws IOException {
-        if (this.su_j2 < this.su_z) {
-            this.currentChar = this.su_ch2;
-            this.crc.updateCRC(this.su_ch2);
-            this.su_j2++;
-        } else {
-            this.currentState = RAND_PART_A_STATE;
-            this.su_i2++;
-            this.su_count = 0;
-            setupRandPartA();
-        }
-    }
-
-    private void setupNoRandPartB() throws IOException {
-        if (this.su_ch2 != this.su_chPrev) {
-            this.su_count = 1;
-            setupNoRandPartA();
-        } else if (++this.su_count >= 4) {
-            this.su_z = (char) (this.data.ll8[this.su_tPos] & 0xff);
-            this.su_tPos = this.data.tt[this.su_tPos];
-            this.su_j2 = 0;
-            setupNoRandPartC();
-        } else {
-            setupNoRandPartA();
+    /**
+     * Same as {@link #decodeBlock(int[])} for blocks written by
+     * ancient compressors that randomised repetitive blocks.
+     */
+    private int decodeRandomisedBlock(final int[] tt) {
+        byte[] out = this.outBuf;
+        int outLimit = out.length - OUT_SLACK;
+        int outLen = 0;
+
+        int tPos = tt[this.origPtr] >>> 8;
+        int chPrev = 256;   /* not a char */
+        int count = 0;
+        int rNToGo = 0;
+        int rTPos = 0;
+
+        for (int i = this.last + 1; --i >= 0; ) {
+            tPos = tt[tPos];
+            int ch = tPos & 0xff;
+            tPos >>>= 8;
+            if (rNToGo == 0) {
+                rNToGo = BZip2Constants.rNums[rTPos] - 1;
+                if (++rTPos == 512) {
+                    rTPos = 0;
+                }
+            } else {
+                rNToGo--;
+            }
+            ch ^= (rNToGo == 1) ? 1 : 0;
+
+            if (outLen > outLimit) {
+                out = growOutBuf(outLen);
+                outLimit = out.length - OUT_SLACK;
+            }
+
+            if (count == 4) {
+                for (int j = ch; --j >= 0; ) {
+                    out[outLen++] = (byte) chPrev;
+                }
+                count = 0;
+            } else {
+                if (ch != chPrev) {
+                    chPrev = ch;
+                    count = 1;
+                } else {
+                    count++;
+                }
+                out[outLen++] = (byte) ch;
+            }
         }
+
+        return outLen;
     }
 
-    private void setupNoRandPartC() throws IOException {
-        if (this.su_j2 < this.su_z) {
-            int su_ch2Shadow = this.su_ch2;
-            this.currentChar = su_ch2Shadow;
-            this.crc.updateCRC(su_ch2Shadow);
-            this.su_j2++;
-            this.currentState = NO_RAND_PART_C_STATE;
-        } else {
-            this.su_i2++;
-            this.su_count = 0;
-            setupNoRandPartA();
-        }
+    private byte[] growOutBuf(final int length) {
+        final byte[] grown = new byte[this.outBuf.length << 1];
+        System.arraycopy(this.outBuf, 0, grown, 0, length);
+        this.outBuf = grown;
+        return grown;
     }
 
-    private static final class Data extends Object {
+    /**
+     * Decoding buffers of one stream, see {@link BZip2DataPool}.
+     */
+    static final class Data extends Object {
 
         // (with blockSize 900k)
         final boolean[] inUse = new boolean[256];                                   //      256 byte
@@ -929,24 +1706,87 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
         final int[][] base = new int[N_GROUPS][MAX_ALPHA_SIZE];                      //     6192 byte
         final int[][] perm = new int[N_GROUPS][MAX_ALPHA_SIZE];                      //     6192 byte
         final int[] minLens = new int[N_GROUPS];                                      //       24 byte
+        final int[][] lookup = new int[N_GROUPS][1 << HUFFMAN_LOOKUP_BITS];           //    24576 byte
 
         final int[] cftab = new int[257];                                     //     1028 byte
-        final char[] getAndMoveToFrontDecode_yy = new char[256];                   //      512 byte
+        final byte[] mtfa = new byte[MTFA_SIZE];                                      //     4096 byte
+        final int[] mtfbase = new int[256 / MTFL_SIZE];                               //       64 byte
         final char[][] temp_charArray2d = new char[N_GROUPS][MAX_ALPHA_SIZE];       //     3096 byte
         final byte[] recvDecodingTables_pos = new byte[N_GROUPS];                     //        6 byte
         //---------------
-        //    60798 byte
+        //    89022 byte
 
         int[] tt;                                                                     //  3600000 byte
         byte[] ll8;                                                                   //   900000 byte
+        byte[] outBuf;                                                                //   900256 byte
         //---------------
-        //  4560782 byte
+        //  5489262 byte
         //===============
 
-        Data(int blockSize100k) {
+        // small mode only, replacing tt
+        final int[] cftabCopy;                                                        //     1028 byte
+        final byte[] llMid;                                                           //   900000 byte
+        final byte[] ll4;                                                             //   450000 byte
+
+        final int blockSize100k;
+        final boolean small;
+
+        Data(int blockSize100k, boolean small) {
             super();
 
-            this.ll8 = new byte[blockSize100k * BZip2Constants.baseBlockSize];
+            this.blockSize100k = blockSize100k;
+            this.small = small;
+            final int n = blockSize100k * BZip2Constants.baseBlockSize;
+            this.ll8 = new byte[n];
+            if (small) {
+                this.cftabCopy = new int[257];
+                this.llMid = new byte[n];
+                this.ll4 = new byte[(n + 1) >> 1];
+            } else {
+                this.cftabCopy = null;
+                this.llMid = null;
+                this.ll4 = null;
+            }
+        }
+
+        /**
+         * Small mode: stores a 20 bit entry of the inverse BWT vector,
+         * split into {@link #ll8}, {@link #llMid} and a nibble of
+         * {@link #ll4}.
+         */
+        final void setLL(final int i, final int value) {
+            this.ll8[i] = (byte) value;
+            this.llMid[i] = (byte) (value >> 8);
+            final int nibble = (value >> 16) & 0xf;
+            final int j = i >> 1;
+            if ((i & 1) == 0) {
+                this.ll4[j] = (byte) ((this.ll4[j] & 0xf0) | nibble);
+            } else {
+                this.ll4[j] = (byte) ((this.ll4[j] & 0x0f) | (nibble << 4));
+            }
+        }
+
+        final int getLL(final int i) {
+            return (this.ll8[i] & 0xff)
+                    | ((this.llMid[i] & 0xff) << 8)
+                    | (((this.ll4[i >> 1] >> ((i & 1) << 2)) & 0xf) << 16);
+        }
+
+        /**
+         * @return the number of bytes held by this instance, roughly
+         */
+        long sizeInBytes() {
+            long size = 89022 + this.ll8.length;
+            if (this.small) {
+                size += this.llMid.length + this.ll4.length;
+            }
+            if (this.tt != null) {
+                size += this.tt.length * 4L;
+            }
+            if (this.outBuf != null) {
+                size += this.outBuf.length;
+            }
+            return size;
         }
 
         /**
@@ -21,6 +21,12 @@ package org.elasticsearch.river.wikipedia.bzip2;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * An output stream that compresses into the BZip2 format (without the file
@@ -116,6 +122,16 @@ import java.io.OutputStream;
  * </p>
  * <p/>
  * <p>
+ * Given an executor, blocks are sorted and Huffman coded concurrently,
+ * like <tt>pbzip2</tt> does, and written in order. Up to
+ * <tt>2 * parallelism</tt> blocks are in flight, each taking the memory
+ * listed above. Written as a single stream the output is the same as the
+ * one of the serial mode. Written as multistream, every block becomes a
+ * stream of its own, starting at the offsets reported by
+ * {@link #getStreamOffsets()}.
+ * </p>
+ * <p/>
+ * <p>
  * Instances of this class are not threadsafe.
  * </p>
  * <p/>
@@ -196,15 +212,6 @@ public class CBZip2OutputStream extends OutputStream
      */
     protected static final int QSORT_STACK_SIZE = 1000;
 
-    /**
-     * Knuth's increments seem to work better than Incerpi-Sedgewick here.
-     * Possibly because the number of elems to sort is usually small, typically
-     * &lt;= 20.
-     */
-    private static final int[] INCS = {1, 4, 13, 40, 121, 364, 1093, 3280,
-            9841, 29524, 88573, 265720, 797161,
-            2391484};
-
     /**
      * This method is accessible by subclasses for historical
      * purposes. If you don't know what it does then you don't need
@@ -533,8 +540,6 @@ public class CBZip2OutputStream extends OutputStream
      */
     private final int blockSize100k;
 
-    private boolean blockRandomised;
-
     private int bsBuff;
     private int bsLive;
     private final CRC crc = new CRC();
@@ -543,14 +548,6 @@ public class CBZip2OutputStream extends OutputStream
 
     private int nMTF;
 
-    /*
-     * Used when sorting. If too many long comparisons happen, we stop sorting,
-     * randomise the block slightly, and try again.
-     */
-    private int workDone;
-    private int workLimit;
-    private boolean firstAttempt;
-
     private int currentChar = -1;
     private int runLength = 0;
 
@@ -565,6 +562,24 @@ public class CBZip2OutputStream extends OutputStream
 
     private OutputStream out;
 
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final boolean multistream;
+    private final LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+
+    /**
+     * Buffers of blocks written, ready for the next block.
+     */
+    private final LinkedList<Data> freeData = new LinkedList<Data>();
+
+    /**
+     * Number of bytes written so far, counting the <tt>"BZ"</tt> magic
+     * written by the caller.
+     */
+    private long outputOffset = 2;
+    private long[] streamOffsets = new long[16];
+    private int streams;
+
     /**
      * Chooses a blocksize based on the given length of the data to compress.
      *
@@ -630,9 +645,88 @@ public class CBZip2OutputStream extends OutputStream
 
         this.blockSize100k = blockSize;
         this.out = out;
+        this.executor = null;
+        this.maxPending = 0;
+        this.multistream = false;
+        init();
+    }
+
+    /**
+     * Constructs a new <tt>CBZip2OutputStream</tt> which compresses blocks
+     * on the given executor, into a single stream.
+     * <p/>
+     * <p>
+     * <b>Attention: </b>The caller is resonsible to write the two BZip2 magic
+     * bytes <tt>"BZ"</tt> to the specified stream prior to calling this
+     * constructor.
+     * </p>
+     *
+     * @param out         the destination stream.
+     * @param blockSize   the blockSize as 100k units.
+     * @param executor    the executor used to compress blocks
+     * @param parallelism number of blocks to compress concurrently
+     * @throws java.io.IOException      if an I/O error occurs in the specified stream.
+     * @throws IllegalArgumentException if <code>(blockSize < 1) || (blockSize > 9)</code>
+     *                                  or <code>parallelism < 1</code>.
+     */
+    public CBZip2OutputStream(final OutputStream out, final int blockSize,
+                              final ExecutorService executor, final int parallelism)
+            throws IOException {
+        this(out, blockSize, executor, parallelism, false);
+    }
+
+    /**
+     * Constructs a new <tt>CBZip2OutputStream</tt> which compresses blocks
+     * on the given executor.
+     *
+     * @param multistream if <tt>true</tt> every block is written as a
+     *                    stream of its own, the <tt>"BZ"</tt> magic of all
+     *                    but the first stream is written by this stream
+     * @throws java.io.IOException if an I/O error occurs in the specified stream.
+     * @see #CBZip2OutputStream(OutputStream, int, ExecutorService, int)
+     */
+    public CBZip2OutputStream(final OutputStream out, final int blockSize,
+                              final ExecutorService executor, final int parallelism,
+                              final boolean multistream) throws IOException {
+        super();
+
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("blockSize(" + blockSize
+                    + ") < 1");
+        }
+        if (blockSize > 9) {
+            throw new IllegalArgumentException("blockSize(" + blockSize
+                    + ") > 9");
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism(" + parallelism
+                    + ") < 1");
+        }
+
+        this.blockSize100k = blockSize;
+        this.out = out;
+        this.executor = executor;
+        this.maxPending = parallelism << 1;
+        this.multistream = multistream;
         init();
     }
 
+    /**
+     * Constructs an encoder for a single block, writing to a buffer.
+     */
+    private CBZip2OutputStream(final int blockSize100k, final Data data, final int last,
+                               final int blockCRC) {
+        super();
+        this.blockSize100k = blockSize100k;
+        this.data = data;
+        this.last = last;
+        this.blockCRC = blockCRC;
+        this.out = new BitBuffer();
+        this.executor = null;
+        this.maxPending = 0;
+        this.multistream = false;
+    }
+
     public void write(final int b) throws IOException {
         if (this.out != null) {
             write0(b);
@@ -712,8 +806,16 @@ public class CBZip2OutputStream extends OutputStream
                 }
                 this.currentChar = -1;
                 endBlock();
+                while (!this.pending.isEmpty()) {
+                    writePendingBlock();
+                }
                 endCompression();
             } finally {
+                for (PendingBlock block : this.pending) {
+                    block.future.cancel(true);
+                }
+                this.pending.clear();
+                this.freeData.clear();
                 this.out = null;
                 this.data = null;
             }
@@ -742,12 +844,17 @@ public class CBZip2OutputStream extends OutputStream
 
         this.data = new Data(this.blockSize100k);
 
-        /*
-         * Write `magic' bytes h indicating file-format == huffmanised, followed
-         * by a digit indicating blockSize100k.
-         */
-        bsPutUByte('h');
-        bsPutUByte('0' + this.blockSize100k);
+        // in multistream mode the headers are written by the block encoders
+        if (!this.multistream) {
+            addStreamOffset(0);
+
+            /*
+             * Write `magic' bytes h indicating file-format == huffmanised, followed
+             * by a digit indicating blockSize100k.
+             */
+            bsPutUByte('h');
+            bsPutUByte('0' + this.blockSize100k);
+        }
 
         this.combinedCRC = 0;
         initBlock();
@@ -778,6 +885,17 @@ public class CBZip2OutputStream extends OutputStream
             return;
         }
 
+        if (this.executor != null) {
+            submitBlock();
+            return;
+        }
+        writeBlock();
+    }
+
+    /**
+     * Sorts, codes and writes the current block.
+     */
+    private void writeBlock() throws IOException {
         /* sort the block and establish posn of original string */
         blockSort();
 
@@ -802,18 +920,138 @@ public class CBZip2OutputStream extends OutputStream
         /* Now the block's CRC, so it is in a known place. */
         bsPutInt(this.blockCRC);
 
-        /* Now a single bit indicating randomisation. */
-        if (this.blockRandomised) {
-            bsW(1, 1);
-        } else {
-            bsW(1, 0);
-        }
+        /* Now a single bit indicating randomisation, blocks never are. */
+        bsW(1, 0);
 
         /* Finally, block's contents proper. */
         moveToFrontCodeAndSend();
     }
 
+    /**
+     * Hands the current block over to the executor and continues with a
+     * new one, writing the oldest block first if too many are in flight.
+     */
+    private void submitBlock() throws IOException {
+        if (this.pending.size() >= this.maxPending) {
+            writePendingBlock();
+        }
+        final Data blockData = this.data;
+        final int blockLast = this.last;
+        final int crcShadow = this.blockCRC;
+        final int blockSize = this.blockSize100k;
+        final boolean wholeStream = this.multistream;
+        final Future<EncodedBlock> future = this.executor.submit(new Callable<EncodedBlock>() {
+            public EncodedBlock call() throws IOException {
+                return encodeBlock(blockSize, blockData, blockLast, crcShadow, wholeStream);
+            }
+        });
+        this.pending.add(new PendingBlock(blockData, future));
+
+        final Data free = this.freeData.poll();
+        this.data = free != null ? free : new Data(this.blockSize100k);
+    }
+
+    /**
+     * Waits for the oldest block in flight and writes it.
+     */
+    private void writePendingBlock() throws IOException {
+        final PendingBlock block = this.pending.poll();
+        final EncodedBlock encoded;
+        try {
+            encoded = block.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while compressing block", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to compress block", e.getCause());
+        }
+        this.freeData.add(block.data);
+
+        if (this.multistream) {
+            if (this.streams > 0) {
+                this.out.write('B');
+                this.out.write('Z');
+                this.outputOffset += 2;
+            }
+            addStreamOffset(this.outputOffset - 2);
+            this.out.write(encoded.bytes, 0, encoded.bits >> 3);
+            this.outputOffset += encoded.bits >> 3;
+            return;
+        }
+
+        final byte[] bytes = encoded.bytes;
+        final int fullBytes = encoded.bits >> 3;
+        for (int i = 0; i < fullBytes; i++) {
+            bsW(8, bytes[i] & 0xff);
+        }
+        final int rest = encoded.bits & 7;
+        if (rest > 0) {
+            bsW(rest, (bytes[fullBytes] & 0xff) >> (8 - rest));
+        }
+    }
+
+    /**
+     * Compresses a block on its own, either as a part of a stream or as a
+     * whole stream without the <tt>"BZ"</tt> magic.
+     */
+    private static EncodedBlock encodeBlock(final int blockSize100k, final Data data, final int last,
+                                            final int blockCRC, final boolean wholeStream) throws IOException {
+        final CBZip2OutputStream encoder = new CBZip2OutputStream(blockSize100k, data, last, blockCRC);
+        try {
+            if (wholeStream) {
+                encoder.bsPutUByte('h');
+                encoder.bsPutUByte('0' + blockSize100k);
+            }
+            encoder.writeBlock();
+            final BitBuffer buffer = (BitBuffer) encoder.out;
+            final int bits;
+            if (wholeStream) {
+                // the combined CRC of a single block
+                encoder.combinedCRC = blockCRC;
+                encoder.endCompression();
+                bits = buffer.count << 3;
+            } else {
+                bits = (buffer.count << 3) + encoder.bsLive;
+                encoder.bsFinishedWithStream();
+            }
+            return new EncodedBlock(buffer.buf, bits);
+        } finally {
+            // the encoder is finished, its finalizer must not sort the
+            // block again once the buffers are reused for the next one
+            encoder.out = null;
+            encoder.data = null;
+        }
+    }
+
+    private void addStreamOffset(final long offset) {
+        if (this.streams == this.streamOffsets.length) {
+            this.streamOffsets = Arrays.copyOf(this.streamOffsets, this.streams << 1);
+        }
+        this.streamOffsets[this.streams++] = offset;
+    }
+
+    /**
+     * Returns the offsets of the streams written, counting the
+     * <tt>"BZ"</tt> magic written by the caller, so the first one is at
+     * offset <tt>0</tt>. Complete once this stream is finished.
+     */
+    public long[] getStreamOffsets() {
+        return Arrays.copyOf(this.streamOffsets, this.streams);
+    }
+
     private void endCompression() throws IOException {
+        if (this.multistream) {
+            if (this.streams > 0) {
+                return;
+            }
+            // nothing written, but an empty stream still needs its header
+            addStreamOffset(0);
+            bsPutUByte('h');
+            bsPutUByte('0' + this.blockSize100k);
+        }
         /*
          * Now another magic 48-bit number, 0x177245385090, to indicate the end
          * of the last block. (sqrt(pi), if you want to know. I did want to use
@@ -1014,7 +1252,7 @@ public class CBZip2OutputStream extends OutputStream
         final int[][] rfreq = dataShadow.sendMTFValues_rfreq;
         final int[] fave = dataShadow.sendMTFValues_fave;
         final short[] cost = dataShadow.sendMTFValues_cost;
-        final char[] sfmap = dataShadow.sfmap;
+        final int[] sfmap = dataShadow.sfmap;
         final byte[] selector = dataShadow.selector;
         final byte[][] len = dataShadow.sendMTFValues_len;
         final byte[] len_0 = len[0];
@@ -1330,7 +1568,7 @@ public class CBZip2OutputStream extends OutputStream
         final int[][] code = dataShadow.sendMTFValues_code;
         final OutputStream outShadow = this.out;
         final byte[] selector = dataShadow.selector;
-        final char[] sfmap = dataShadow.sfmap;
+        final int[] sfmap = dataShadow.sfmap;
         final int nMTFShadow = this.nMTF;
 
         int selCtr = 0;
@@ -1378,234 +1616,20 @@ public class CBZip2OutputStream extends OutputStream
     }
 
     /**
-     * This is the most hammered method of this class.
-     * <p/>
-     * <p>
-     * This is the version using unrolled loops. Normally I never use such ones
-     * in Java code. The unrolling has shown a noticable performance improvement
-     * on JRE 1.4.2 (Linux i586 / HotSpot Client). Of course it depends on the
-     * JIT compiler of the vm.
-     * </p>
+     * Sorts the rotations of the block in linear time, see
+     * {@link SuffixArrays}.
      */
-    private boolean mainSimpleSort(final Data dataShadow, final int lo,
-                                   final int hi, final int d) {
-        final int bigN = hi - lo + 1;
-        if (bigN < 2) {
-            return this.firstAttempt && (this.workDone > this.workLimit);
-        }
-
-        int hp = 0;
-        while (INCS[hp] < bigN) {
-            hp++;
-        }
-
-        final int[] fmap = dataShadow.fmap;
-        final char[] quadrant = dataShadow.quadrant;
-        final byte[] block = dataShadow.block;
-        final int lastShadow = this.last;
-        final int lastPlus1 = lastShadow + 1;
-        final boolean firstAttemptShadow = this.firstAttempt;
-        final int workLimitShadow = this.workLimit;
-        int workDoneShadow = this.workDone;
-
-        // Following block contains unrolled code which could be shortened by
-        // coding it in additional loops.
-
-        HP:
-        while (--hp >= 0) {
-            final int h = INCS[hp];
-            final int mj = lo + h - 1;
-
-            for (int i = lo + h; i <= hi; ) {
-                // copy
-                for (int k = 3; (i <= hi) && (--k >= 0); i++) {
-                    final int v = fmap[i];
-                    final int vd = v + d;
-                    int j = i;
-
-                    // for (int a;
-                    // (j > mj) && mainGtU((a = fmap[j - h]) + d, vd,
-                    // block, quadrant, lastShadow);
-                    // j -= h) {
-                    // fmap[j] = a;
-                    // }
-                    //
-                    // unrolled version:
-
-                    // start inline mainGTU
-                    boolean onceRunned = false;
-                    int a = 0;
-
-                    HAMMER:
-                    while (true) {
-                        if (onceRunned) {
-                            fmap[j] = a;
-                            if ((j -= h) <= mj) {
-                                break HAMMER;
-                            }
-                        } else {
-                            onceRunned = true;
-                        }
-
-                        a = fmap[j - h];
-                        int i1 = a + d;
-                        int i2 = vd;
-
-                        // following could be done in a loop, but
-                        // unrolled it for performance:
-                        if (block[i1 + 1] == block[i2 + 1]) {
-                            if (block[i1 + 2] == block[i2 + 2]) {
-                                if (block[i1 + 3] == block[i2 + 3]) {
-                                    if (block[i1 + 4] == block[i2 + 4]) {
-                                        if (block[i1 + 5] == block[i2 + 5]) {
-                                            if (block[(i1 += 6)] == block[(i2 += 6)]) {
-                                                int x = lastShadow;
-                                                X:
-                                                while (x > 0) {
-                                                    x -= 4;
-
-                                                    if (block[i1 + 1] == block[i2 + 1]) {
-                                                        if (quadrant[i1] == quadrant[i2]) {
-                                                            if (block[i1 + 2] == block[i2 + 2]) {
-                                                                if (quadrant[i1 + 1] == quadrant[i2 + 1]) {
-                                                                    if (block[i1 + 3] == block[i2 + 3]) {
-                                                                        if (quadrant[i1 + 2] == quadrant[i2 + 2]) {
-                                                                            if (block[i1 + 4] == block[i2 + 4]) {
-                                                                                if (quadrant[i1 + 3] == quadrant[i2 + 3]) {
-                                                                                    if ((i1 += 4) >= lastPlus1) {
-                                                                                        i1 -= lastPlus1;
-                                                                                    }
-                                                                                    if ((i2 += 4) >= lastPlus1) {
-                                                                                        i2 -= lastPlus1;
-                                                                                    }
-                                                                                    workDoneShadow++;
-                                                                                    continue X;
-                                                                                } else if ((quadrant[i1 + 3] > quadrant[i2 + 3])) {
-                                                                                    continue HAMMER;
-                                                                                } else {
-                                                                                    break HAMMER;
-                                                                                }
-                                                                            } else if ((block[i1 + 4] & 0xff) > (block[i2 + 4] & 0xff)) {
-                                                                                continue HAMMER;
-                                                                            } else {
-                                                                                break HAMMER;
-                                                                            }
-                                                                        } else if ((quadrant[i1 + 2] > quadrant[i2 + 2])) {
-                                                                            continue HAMMER;
-                                                                        } else {
-                                                                            break HAMMER;
-                                                                        }
-                                                                    } else if ((block[i1 + 3] & 0xff) > (block[i2 + 3] & 0xff)) {
-                                                                        continue HAMMER;
-                                                                    } else {
-                                                                        break HAMMER;
-                                                                    }
-                                                                } else if ((quadrant[i1 + 1] > quadrant[i2 + 1])) {
-                                                                    continue HAMMER;
-                                                                } else {
-                                                                    break HAMMER;
-                                                                }
-                                                            } else if ((block[i1 + 2] & 0xff) > (block[i2 + 2] & 0xff)) {
-                                                                continue HAMMER;
-                                                            } else {
-                                                                break HAMMER;
-                                                            }
-                                                        } else if ((quadrant[i1] > quadrant[i2])) {
-                                                            continue HAMMER;
-                                                        } else {
-                                                            break HAMMER;
-                                                        }
-                                                    } else if ((block[i1 + 1] & 0xff) > (block[i2 + 1] & 0xff)) {
-                                                        continue HAMMER;
-                                                    } else {
-                                                        break HAMMER;
-                                                    }
-
-                                                }
-                                                break HAMMER;
-                                            } // while x > 0
-                                            else {
-                                                if ((block[i1] & 0xff) > (block[i2] & 0xff)) {
-                                                    continue HAMMER;
-                                                } else {
-                                                    break HAMMER;
-                                                }
-                                            }
-                                        } else if ((block[i1 + 5] & 0xff) > (block[i2 + 5] & 0xff)) {
-                                            continue HAMMER;
-                                        } else {
-                                            break HAMMER;
-                                        }
-                                    } else if ((block[i1 + 4] & 0xff) > (block[i2 + 4] & 0xff)) {
-                                        continue HAMMER;
-                                    } else {
-                                        break HAMMER;
-                                    }
-                                } else if ((block[i1 + 3] & 0xff) > (block[i2 + 3] & 0xff)) {
-                                    continue HAMMER;
-                                } else {
-                                    break HAMMER;
-                                }
-                            } else if ((block[i1 + 2] & 0xff) > (block[i2 + 2] & 0xff)) {
-                                continue HAMMER;
-                            } else {
-                                break HAMMER;
-                            }
-                        } else if ((block[i1 + 1] & 0xff) > (block[i2 + 1] & 0xff)) {
-                            continue HAMMER;
-                        } else {
-                            break HAMMER;
-                        }
-
-                    }
-                    // HAMMER
-                    // end inline mainGTU
-
-                    fmap[j] = v;
-                }
-
-                if (firstAttemptShadow && (i <= hi)
-                        && (workDoneShadow > workLimitShadow)) {
-                    break HP;
-                }
-            }
-        }
-
-        this.workDone = workDoneShadow;
-        return firstAttemptShadow && (workDoneShadow > workLimitShadow);
-    }
-
-    private static void vswap(int[] fmap, int p1, int p2, int n) {
-        n += p1;
-        while (p1 < n) {
-            int t = fmap[p1];
-            fmap[p1++] = fmap[p2];
-            fmap[p2++] = t;
-        }
-    }
-
-    private static byte med3(byte a, byte b, byte c) {
-        return (a < b) ? (b < c ? b : a < c ? c : a) : (b > c ? b : a > c ? c
-                : a);
-    }
-
     private void blockSort() {
-        this.workLimit = WORK_FACTOR * this.last;
-        this.workDone = 0;
-        this.blockRandomised = false;
-        this.firstAttempt = true;
-        mainSort();
-
-        if (this.firstAttempt && (this.workDone > this.workLimit)) {
-            randomiseBlock();
-            this.workLimit = this.workDone = 0;
-            this.firstAttempt = false;
-            mainSort();
-        }
+        final Data dataShadow = this.data;
+        final int lastShadow = this.last;
+        // sfmap is free until generateMTFValues(), it holds the rotated block
+        dataShadow.suffixArrays.sortRotations(dataShadow.block, lastShadow + 1, dataShadow.fmap, dataShadow.sfmap);
+        // the byte preceding the first one, read by generateMTFValues()
+        dataShadow.block[0] = dataShadow.block[lastShadow + 1];
 
-        int[] fmap = this.data.fmap;
+        final int[] fmap = dataShadow.fmap;
         this.origPtr = -1;
-        for (int i = 0, lastShadow = this.last; i <= lastShadow; i++) {
+        for (int i = 0; i <= lastShadow; i++) {
             if (fmap[i] == 0) {
                 this.origPtr = i;
                 break;
@@ -1615,313 +1639,13 @@ public class CBZip2OutputStream extends OutputStream
         // assert (this.origPtr != -1) : this.origPtr;
     }
 
-    /**
-     * Method "mainQSort3", file "blocksort.c", BZip2 1.0.2
-     */
-    private void mainQSort3(final Data dataShadow, final int loSt,
-                            final int hiSt, final int dSt) {
-        final int[] stack_ll = dataShadow.stack_ll;
-        final int[] stack_hh = dataShadow.stack_hh;
-        final int[] stack_dd = dataShadow.stack_dd;
-        final int[] fmap = dataShadow.fmap;
-        final byte[] block = dataShadow.block;
-
-        stack_ll[0] = loSt;
-        stack_hh[0] = hiSt;
-        stack_dd[0] = dSt;
-
-        for (int sp = 1; --sp >= 0; ) {
-            final int lo = stack_ll[sp];
-            final int hi = stack_hh[sp];
-            final int d = stack_dd[sp];
-
-            if ((hi - lo < SMALL_THRESH) || (d > DEPTH_THRESH)) {
-                if (mainSimpleSort(dataShadow, lo, hi, d)) {
-                    return;
-                }
-            } else {
-                final int d1 = d + 1;
-                final int med = med3(block[fmap[lo] + d1],
-                        block[fmap[hi] + d1], block[fmap[(lo + hi) >>> 1] + d1]) & 0xff;
-
-                int unLo = lo;
-                int unHi = hi;
-                int ltLo = lo;
-                int gtHi = hi;
-
-                while (true) {
-                    while (unLo <= unHi) {
-                        final int n = ((int) block[fmap[unLo] + d1] & 0xff)
-                                - med;
-                        if (n == 0) {
-                            final int temp = fmap[unLo];
-                            fmap[unLo++] = fmap[ltLo];
-                            fmap[ltLo++] = temp;
-                        } else if (n < 0) {
-                            unLo++;
-                        } else {
-                            break;
-                        }
-                    }
-
-                    while (unLo <= unHi) {
-                        final int n = ((int) block[fmap[unHi] + d1] & 0xff)
-                                - med;
-                        if (n == 0) {
-                            final int temp = fmap[unHi];
-                            fmap[unHi--] = fmap[gtHi];
-                            fmap[gtHi--] = temp;
-                        } else if (n > 0) {
-                            unHi--;
-                        } else {
-                            break;
-                        }
-                    }
-
-                    if (unLo <= unHi) {
-                        final int temp = fmap[unLo];
-                        fmap[unLo++] = fmap[unHi];
-                        fmap[unHi--] = temp;
-                    } else {
-                        break;
-                    }
-                }
-
-                if (gtHi < ltLo) {
-                    stack_ll[sp] = lo;
-                    stack_hh[sp] = hi;
-                    stack_dd[sp] = d1;
-                    sp++;
-                } else {
-                    int n = ((ltLo - lo) < (unLo - ltLo)) ? (ltLo - lo)
-                            : (unLo - ltLo);
-                    vswap(fmap, lo, unLo - n, n);
-                    int m = ((hi - gtHi) < (gtHi - unHi)) ? (hi - gtHi)
-                            : (gtHi - unHi);
-                    vswap(fmap, unLo, hi - m + 1, m);
-
-                    n = lo + unLo - ltLo - 1;
-                    m = hi - (gtHi - unHi) + 1;
-
-                    stack_ll[sp] = lo;
-                    stack_hh[sp] = n;
-                    stack_dd[sp] = d;
-                    sp++;
-
-                    stack_ll[sp] = n + 1;
-                    stack_hh[sp] = m - 1;
-                    stack_dd[sp] = d1;
-                    sp++;
-
-                    stack_ll[sp] = m;
-                    stack_hh[sp] = hi;
-                    stack_dd[sp] = d;
-                    sp++;
-                }
-            }
-        }
-    }
-
-    private void mainSort() {
-        final Data dataShadow = this.data;
-        final int[] runningOrder = dataShadow.mainSort_runningOrder;
-        final int[] copy = dataShadow.mainSort_copy;
-        final boolean[] bigDone = dataShadow.mainSort_bigDone;
-        final int[] ftab = dataShadow.ftab;
-        final byte[] block = dataShadow.block;
-        final int[] fmap = dataShadow.fmap;
-        final char[] quadrant = dataShadow.quadrant;
-        final int lastShadow = this.last;
-        final int workLimitShadow = this.workLimit;
-        final boolean firstAttemptShadow = this.firstAttempt;
-
-        // Set up the 2-byte frequency table
-        for (int i = 65537; --i >= 0; ) {
-            ftab[i] = 0;
-        }
-
-        /*
-         * In the various block-sized structures, live data runs from 0 to
-         * last+NUM_OVERSHOOT_BYTES inclusive. First, set up the overshoot area
-         * for block.
-         */
-        for (int i = 0; i < NUM_OVERSHOOT_BYTES; i++) {
-            block[lastShadow + i + 2] = block[(i % (lastShadow + 1)) + 1];
-        }
-        for (int i = lastShadow + NUM_OVERSHOOT_BYTES + 1; --i >= 0; ) {
-            quadrant[i] = 0;
-        }
-        block[0] = block[lastShadow + 1];
-
-        // Complete the initial radix sort:
-
-        int c1 = block[0] & 0xff;
-        for (int i = 0; i <= lastShadow; i++) {
-            final int c2 = block[i + 1] & 0xff;
-            ftab[(c1 << 8) + c2]++;
-            c1 = c2;
-        }
-
-        for (int i = 1; i <= 65536; i++)
-            ftab[i] += ftab[i - 1];
-
-        c1 = block[1] & 0xff;
-        for (int i = 0; i < lastShadow; i++) {
-            final int c2 = block[i + 2] & 0xff;
-            fmap[--ftab[(c1 << 8) + c2]] = i;
-            c1 = c2;
-        }
-
-        fmap[--ftab[((block[lastShadow + 1] & 0xff) << 8) + (block[1] & 0xff)]] = lastShadow;
-
-        /*
-         * Now ftab contains the first loc of every small bucket. Calculate the
-         * running order, from smallest to largest big bucket.
-         */
-        for (int i = 256; --i >= 0; ) {
-            bigDone[i] = false;
-            runningOrder[i] = i;
-        }
-
-        for (int h = 364; h != 1; ) {
-            h /= 3;
-            for (int i = h; i <= 255; i++) {
-                final int vv = runningOrder[i];
-                final int a = ftab[(vv + 1) << 8] - ftab[vv << 8];
-                final int b = h - 1;
-                int j = i;
-                for (int ro = runningOrder[j - h]; (ftab[(ro + 1) << 8] - ftab[ro << 8]) > a; ro = runningOrder[j
-                        - h]) {
-                    runningOrder[j] = ro;
-                    j -= h;
-                    if (j <= b) {
-                        break;
-                    }
-                }
-                runningOrder[j] = vv;
-            }
-        }
-
-        /*
-         * The main sorting loop.
-         */
-        for (int i = 0; i <= 255; i++) {
-            /*
-             * Process big buckets, starting with the least full.
-             */
-            final int ss = runningOrder[i];
-
-            // Step 1:
-            /*
-             * Complete the big bucket [ss] by quicksorting any unsorted small
-             * buckets [ss, j]. Hopefully previous pointer-scanning phases have
-             * already completed many of the small buckets [ss, j], so we don't
-             * have to sort them at all.
-             */
-            for (int j = 0; j <= 255; j++) {
-                final int sb = (ss << 8) + j;
-                final int ftab_sb = ftab[sb];
-                if ((ftab_sb & SETMASK) != SETMASK) {
-                    final int lo = ftab_sb & CLEARMASK;
-                    final int hi = (ftab[sb + 1] & CLEARMASK) - 1;
-                    if (hi > lo) {
-                        mainQSort3(dataShadow, lo, hi, 2);
-                        if (firstAttemptShadow
-                                && (this.workDone > workLimitShadow)) {
-                            return;
-                        }
-                    }
-                    ftab[sb] = ftab_sb | SETMASK;
-                }
-            }
-
-            // Step 2:
-            // Now scan this big bucket so as to synthesise the
-            // sorted order for small buckets [t, ss] for all t != ss.
-
-            for (int j = 0; j <= 255; j++) {
-                copy[j] = ftab[(j << 8) + ss] & CLEARMASK;
-            }
-
-            for (int j = ftab[ss << 8] & CLEARMASK, hj = (ftab[(ss + 1) << 8] & CLEARMASK); j < hj; j++) {
-                final int fmap_j = fmap[j];
-                c1 = block[fmap_j] & 0xff;
-                if (!bigDone[c1]) {
-                    fmap[copy[c1]] = (fmap_j == 0) ? lastShadow : (fmap_j - 1);
-                    copy[c1]++;
-                }
-            }
-
-            for (int j = 256; --j >= 0; )
-                ftab[(j << 8) + ss] |= SETMASK;
-
-            // Step 3:
-            /*
-             * The ss big bucket is now done. Record this fact, and update the
-             * quadrant descriptors. Remember to update quadrants in the
-             * overshoot area too, if necessary. The "if (i < 255)" test merely
-             * skips this updating for the last bucket processed, since updating
-             * for the last bucket is pointless.
-             */
-            bigDone[ss] = true;
-
-            if (i < 255) {
-                final int bbStart = ftab[ss << 8] & CLEARMASK;
-                final int bbSize = (ftab[(ss + 1) << 8] & CLEARMASK) - bbStart;
-                int shifts = 0;
-
-                while ((bbSize >> shifts) > 65534) {
-                    shifts++;
-                }
-
-                for (int j = 0; j < bbSize; j++) {
-                    final int a2update = fmap[bbStart + j];
-                    final char qVal = (char) (j >> shifts);
-                    quadrant[a2update] = qVal;
-                    if (a2update < NUM_OVERSHOOT_BYTES) {
-                        quadrant[a2update + lastShadow + 1] = qVal;
-                    }
-                }
-            }
-
-        }
-    }
-
-    private void randomiseBlock() {
-        final boolean[] inUse = this.data.inUse;
-        final byte[] block = this.data.block;
-        final int lastShadow = this.last;
-
-        for (int i = 256; --i >= 0; )
-            inUse[i] = false;
-
-        int rNToGo = 0;
-        int rTPos = 0;
-        for (int i = 0, j = 1; i <= lastShadow; i = j, j++) {
-            if (rNToGo == 0) {
-                rNToGo = (char) BZip2Constants.rNums[rTPos];
-                if (++rTPos == 512) {
-                    rTPos = 0;
-                }
-            }
-
-            rNToGo--;
-            block[j] ^= ((rNToGo == 1) ? 1 : 0);
-
-            // handle 16 bit signed numbers
-            inUse[block[j] & 0xff] = true;
-        }
-
-        this.blockRandomised = true;
-    }
-
     private void generateMTFValues() {
         final int lastShadow = this.last;
         final Data dataShadow = this.data;
         final boolean[] inUse = dataShadow.inUse;
         final byte[] block = dataShadow.block;
         final int[] fmap = dataShadow.fmap;
-        final char[] sfmap = dataShadow.sfmap;
+        final int[] sfmap = dataShadow.sfmap;
         final int[] mtfFreq = dataShadow.mtfFreq;
         final byte[] unseqToSeq = dataShadow.unseqToSeq;
         final byte[] yy = dataShadow.generateMTFValues_yy;
@@ -1986,7 +1710,7 @@ public class CBZip2OutputStream extends OutputStream
                     }
                     zPend = 0;
                 }
-                sfmap[wr] = (char) (j + 1);
+                sfmap[wr] = j + 1;
                 wr++;
                 mtfFreq[j + 1]++;
             }
@@ -2013,7 +1737,7 @@ public class CBZip2OutputStream extends OutputStream
             }
         }
 
-        sfmap[wr] = (char) eob;
+        sfmap[wr] = eob;
         mtfFreq[eob]++;
         this.nMTF = wr + 1;
     }
@@ -2039,46 +1763,72 @@ public class CBZip2OutputStream extends OutputStream
         final byte[] sendMTFValues2_pos = new byte[N_GROUPS]; // 6 byte
         final boolean[] sentMTFValues4_inUse16 = new boolean[16]; // 16 byte
 
-        final int[] stack_ll = new int[QSORT_STACK_SIZE]; // 4000 byte
-        final int[] stack_hh = new int[QSORT_STACK_SIZE]; // 4000 byte
-        final int[] stack_dd = new int[QSORT_STACK_SIZE]; // 4000 byte
-
-        final int[] mainSort_runningOrder = new int[256]; // 1024 byte
-        final int[] mainSort_copy = new int[256]; // 1024 byte
-        final boolean[] mainSort_bigDone = new boolean[256]; // 256 byte
-
         final int[] heap = new int[MAX_ALPHA_SIZE + 2]; // 1040 byte
         final int[] weight = new int[MAX_ALPHA_SIZE * 2]; // 2064 byte
         final int[] parent = new int[MAX_ALPHA_SIZE * 2]; // 2064 byte
-
-        final int[] ftab = new int[65537]; // 262148 byte
         // ------------
-        // 333408 byte
+        // 56956 byte
 
         final byte[] block; // 900021 byte
-        final int[] fmap; // 3600000 byte
-        final char[] sfmap; // 3600000 byte
+        final int[] fmap; // 3600004 byte, the suffix array while sorting
+        final int[] sfmap; // 3600004 byte, the text to sort while sorting
+        final SuffixArrays suffixArrays; // 1800004 byte
         // ------------
-        // 8433529 byte
+        // 9956989 byte
         // ============
 
-        /**
-         * Array instance identical to sfmap, both are used only
-         * temporarily and indepently, so we do not need to allocate
-         * additional memory.
-         */
-        final char[] quadrant;
-
         Data(int blockSize100k) {
             super();
 
             final int n = blockSize100k * BZip2Constants.baseBlockSize;
             this.block = new byte[(n + 1 + NUM_OVERSHOOT_BYTES)];
-            this.fmap = new int[n];
-            this.sfmap = new char[2 * n];
-            this.quadrant = this.sfmap;
+            this.fmap = new int[n + 1];
+            this.sfmap = new int[n + 1];
+            this.suffixArrays = new SuffixArrays(n);
+        }
+
+    }
+
+
+    private static final class PendingBlock {
+
+        final Data data;
+        final Future<EncodedBlock> future;
+
+        PendingBlock(final Data data, final Future<EncodedBlock> future) {
+            this.data = data;
+            this.future = future;
         }
+    }
+
+    /**
+     * A compressed block, the last byte might be padded.
+     */
+    private static final class EncodedBlock {
+
+        final byte[] bytes;
+        final int bits;
 
+        EncodedBlock(final byte[] bytes, final int bits) {
+            this.bytes = bytes;
+            this.bits = bits;
+        }
     }
 
+    /**
+     * Unsynchronized byte buffer the block encoders write to.
+     */
+    private static final class BitBuffer extends OutputStream {
+
+        byte[] buf = new byte[64 * 1024];
+        int count;
+
+        @Override
+        public void write(final int b) {
+            if (this.count == this.buf.length) {
+                this.buf = Arrays.copyOf(this.buf, this.count << 1);
+            }
+            this.buf[this.count++] = (byte) b;
+        }
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
+
+/**
+ * Source of compressed bytes for the BZip2 decoders, either an
+ * {@link InputStream} or a {@link ReadableByteChannel}.
+ * <p/>
+ * <p>The decoders work on byte arrays, a channel reads right into them.</p>
+ */
+abstract class CompressedInput {
+
+    /**
+     * @return the input reading from <tt>in</tt>, or <tt>null</tt> if
+     *         <tt>in</tt> is <tt>null</tt>
+     */
+    static CompressedInput of(final InputStream in) {
+        return in == null ? null : new StreamInput(in);
+    }
+
+    /**
+     * @return the input reading from <tt>in</tt>, or <tt>null</tt> if
+     *         <tt>in</tt> is <tt>null</tt>
+     * @throws IllegalArgumentException if <tt>in</tt> is non-blocking
+     */
+    static CompressedInput of(final ReadableByteChannel in) {
+        if ((in instanceof SelectableChannel) && !((SelectableChannel) in).isBlocking()) {
+            throw new IllegalArgumentException("channel is in non-blocking mode");
+        }
+        return in == null ? null : new ChannelInput(in);
+    }
+
+    /**
+     * Like {@link InputStream#read(byte[], int, int)}, reads at least one
+     * byte unless <tt>len</tt> is zero or the end has been reached.
+     */
+    abstract int read(byte[] b, int off, int len) throws IOException;
+
+    abstract void close() throws IOException;
+
+    private static final class StreamInput extends CompressedInput {
+
+        private final InputStream in;
+
+        StreamInput(final InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        int read(final byte[] b, final int off, final int len) throws IOException {
+            return this.in.read(b, off, len);
+        }
+
+        @Override
+        void close() throws IOException {
+            if (this.in != System.in) {
+                this.in.close();
+            }
+        }
+    }
+
+    private static final class ChannelInput extends CompressedInput {
+
+        private final ReadableByteChannel in;
+
+        /**
+         * Wraps the array last read into, the decoders always read into the
+         * same one.
+         */
+        private ByteBuffer buffer;
+
+        ChannelInput(final ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        @Override
+        int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            ByteBuffer bufferShadow = this.buffer;
+            if ((bufferShadow == null) || (bufferShadow.array() != b)) {
+                bufferShadow = ByteBuffer.wrap(b);
+                this.buffer = bufferShadow;
+            }
+            bufferShadow.limit(off + len);
+            bufferShadow.position(off);
+            int read;
+            do {
+                read = this.in.read(bufferShadow);
+            } while (read == 0);
+            return read;
+        }
+
+        @Override
+        void close() throws IOException {
+            this.in.close();
+        }
+    }
+}
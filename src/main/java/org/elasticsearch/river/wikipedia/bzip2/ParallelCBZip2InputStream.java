@@ -0,0 +1,503 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream that decompresses from the BZip2 format (without the file
+ * header chars) by decoding several blocks concurrently.
+ * <p/>
+ * <p>The compressed stream is split into blocks by a {@link BZip2BlockScanner}
+ * on the reading thread. Each block is decoded on the given executor and
+ * handed back in stream order. At most <tt>2 * parallelism</tt> blocks are
+ * in flight at any time, so this stream needs about that many times the
+ * memory of a {@link CBZip2InputStream}.</p>
+ * <p/>
+ * <p>Concatenated streams, like the Wikimedia multistream dumps, are
+ * decoded as a whole. Blocks of consecutive streams are decoded
+ * concurrently just like blocks of a single stream.</p>
+ * <p/>
+ * <p>Blocks are found by searching for the block header magic, which might
+ * in theory show up within the compressed data as well. The first part of
+ * a block split by such a magic fails to decode, so a block which fails to
+ * decode is decoded again joined with the parts following it, as long as
+ * they can belong to one block. Only if none of the joins decodes the
+ * block is corrupt.</p>
+ * <p/>
+ * <p>In recovery mode, see {@link BZip2CorruptBlockListener}, blocks which
+ * fail to decode or whose CRC does not match are dropped. A truncated
+ * stream ends after its last complete block, the lost tail is reported as
+ * one dropped block. Other than {@link CBZip2InputStream} this stream
+ * still fails on a malformed stream header.</p>
+ * <p/>
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class ParallelCBZip2InputStream extends InputStream implements ReadableByteChannel, BZip2BlockPosition {
+
+    private final ExecutorService executor;
+    private final BZip2CorruptBlockListener listener;
+    private final BZip2DecoderStats stats;
+
+    /**
+     * Options of the decoders of single blocks.
+     */
+    private final BZip2DecoderOptions blockOptions;
+    private final int maxPending;
+    private final LinkedList<PendingBlock> pending = new LinkedList<PendingBlock>();
+
+    private CompressedInput in;
+    private BZip2BlockScanner scanner;
+
+    private int computedCombinedCRC;
+    private boolean ignoreCombinedCRC;
+
+    private byte[] current;
+    private int currentPos;
+
+    private long blockBitOffset;
+    private int blockSize100k;
+    private long blockOutputOffset;
+
+    private long corruptBlocks;
+
+    /**
+     * Constructs a new ParallelCBZip2InputStream which decompresses bytes
+     * read from the specified stream.
+     * <p/>
+     * <p>Like {@link CBZip2InputStream} this constructor expects the next
+     * byte in the stream to be the first one after the <tt>"BZ"</tt>
+     * magic.</p>
+     *
+     * @param in          the compressed stream
+     * @param executor    the executor used to decode blocks
+     * @param parallelism number of blocks to decode concurrently
+     * @throws java.io.IOException if the stream content is malformed or an I/O error occurs.
+     */
+    public ParallelCBZip2InputStream(final InputStream in, final ExecutorService executor,
+                                     final int parallelism) throws IOException {
+        this(in, executor, parallelism, new BZip2DecoderOptions());
+    }
+
+    /**
+     * Constructs a new ParallelCBZip2InputStream which decompresses bytes
+     * read from the specified stream.
+     *
+     * @param options buffer pool, CRC check, recovery mode, statistics and
+     *                start block to use, asynchronous CRC verification is
+     *                done by the block decoders
+     * @throws java.io.IOException if the stream content is malformed or an I/O error occurs.
+     * @see #ParallelCBZip2InputStream(InputStream, ExecutorService, int)
+     */
+    public ParallelCBZip2InputStream(final InputStream in, final ExecutorService executor,
+                                     final int parallelism, final BZip2DecoderOptions options) throws IOException {
+        this(CompressedInput.of(in), executor, parallelism, options);
+    }
+
+    /**
+     * Constructs a new ParallelCBZip2InputStream which decompresses bytes
+     * read from the specified channel, the channel has to be in blocking
+     * mode.
+     *
+     * @throws java.io.IOException      if the stream content is malformed or an I/O error occurs.
+     * @throws IllegalArgumentException if <tt>in</tt> is non-blocking
+     * @see #ParallelCBZip2InputStream(InputStream, ExecutorService, int, BZip2DecoderOptions)
+     */
+    public ParallelCBZip2InputStream(final ReadableByteChannel in, final ExecutorService executor,
+                                     final int parallelism, final BZip2DecoderOptions options) throws IOException {
+        this(CompressedInput.of(in), executor, parallelism, options);
+    }
+
+    private ParallelCBZip2InputStream(final CompressedInput in, final ExecutorService executor,
+                                      final int parallelism, final BZip2DecoderOptions options) throws IOException {
+        super();
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism(" + parallelism + ") < 1.");
+        }
+        final BZip2CRCCheck crcCheck = options.getCRCCheck();
+        this.in = in;
+        this.executor = executor;
+        this.listener = options.getListener();
+        this.stats = options.getStats();
+        this.blockOptions = new BZip2DecoderOptions()
+                .pool(options.getPool())
+                .crcCheck(crcCheck.isAsync() ? BZip2CRCCheck.VERIFY : crcCheck)
+                .listener(this.listener)
+                .stats(this.stats);
+        this.maxPending = parallelism << 1;
+        if (options.getBlockBitOffset() < 0) {
+            this.scanner = new BZip2BlockScanner(in, this.stats);
+        } else {
+            this.scanner = new BZip2BlockScanner(in, options.getBlockSize100k(), options.getBlockBitOffset(),
+                    this.stats);
+            this.ignoreCombinedCRC = true;
+        }
+        fill();
+    }
+
+    public long getBlockBitOffset() {
+        return this.blockBitOffset;
+    }
+
+    public int getBlockSize100k() {
+        return this.blockSize100k;
+    }
+
+    public long getBlockOutputOffset() {
+        return this.blockOutputOffset;
+    }
+
+    public long getOutputOffset() {
+        return this.current == null ? this.blockOutputOffset : this.blockOutputOffset + this.currentPos;
+    }
+
+    /**
+     * @return number of blocks dropped in recovery mode
+     */
+    public long getCorruptBlocks() {
+        return this.corruptBlocks;
+    }
+
+    public int read() throws IOException {
+        if (this.in == null) {
+            throw new IOException("stream closed");
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        return this.current[this.currentPos++] & 0xff;
+    }
+
+    public int read(final byte[] dest, final int offs, final int len)
+            throws IOException {
+        if (offs < 0) {
+            throw new IndexOutOfBoundsException("offs(" + offs + ") < 0.");
+        }
+        if (len < 0) {
+            throw new IndexOutOfBoundsException("len(" + len + ") < 0.");
+        }
+        if (offs + len > dest.length) {
+            throw new IndexOutOfBoundsException("offs(" + offs + ") + len("
+                    + len + ") > dest.length("
+                    + dest.length + ").");
+        }
+        if (this.in == null) {
+            throw new IOException("stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        final int n = Math.min(len, this.current.length - this.currentPos);
+        System.arraycopy(this.current, this.currentPos, dest, offs, n);
+        this.currentPos += n;
+        return n;
+    }
+
+    /**
+     * Reads decoded bytes into <tt>dst</tt>, at most the rest of the current
+     * block.
+     *
+     * @return number of bytes read, or <tt>-1</tt> at the end of the stream
+     * @throws ClosedChannelException if this stream is closed
+     */
+    public int read(final ByteBuffer dst) throws IOException {
+        if (this.in == null) {
+            throw new ClosedChannelException();
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+
+        final int n = Math.min(dst.remaining(), this.current.length - this.currentPos);
+        dst.put(this.current, this.currentPos, n);
+        this.currentPos += n;
+        return n;
+    }
+
+    /**
+     * @return <tt>false</tt> once this stream is closed
+     */
+    public boolean isOpen() {
+        return this.in != null;
+    }
+
+    public void close() throws IOException {
+        CompressedInput inShadow = this.in;
+        if (inShadow != null) {
+            try {
+                for (PendingBlock block : this.pending) {
+                    if (block.future != null) {
+                        block.future.cancel(true);
+                    }
+                }
+                inShadow.close();
+            } finally {
+                this.pending.clear();
+                this.scanner = null;
+                this.current = null;
+                this.in = null;
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next decoded block if the current one is exhausted.
+     *
+     * @return <tt>false</tt> at the end of the stream
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (this.current == null || this.currentPos == this.current.length) {
+            final PendingBlock next = this.pending.poll();
+            if (this.current != null) {
+                this.blockOutputOffset += this.current.length;
+                this.current = null;
+            }
+            if (next == null) {
+                return false;
+            }
+            if (next.future == null) {
+                if (next.truncation != null) {
+                    skipTruncatedTail(next.block, next.truncation);
+                    continue;
+                }
+                if (!this.ignoreCombinedCRC && (next.block.storedCRC != this.computedCombinedCRC)) {
+                    // counted only, like CBZip2InputStream does
+                    if (this.stats != null) {
+                        this.stats.crcError();
+                    }
+                }
+                this.computedCombinedCRC = 0;
+                this.ignoreCombinedCRC = false;
+                fill();
+                continue;
+            }
+
+            try {
+                this.current = next.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while decoding block", e);
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                if (!(cause instanceof Error)) {
+                    this.current = decodeJoined(next.block);
+                }
+                if (this.current == null) {
+                    if (this.listener != null && !(cause instanceof Error)) {
+                        skipCorruptBlock(next.block, cause);
+                        continue;
+                    }
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    }
+                    throw new IOException("failed to decode block", cause);
+                }
+            }
+            this.currentPos = 0;
+            this.blockBitOffset = next.block.streamBitOffset;
+            this.blockSize100k = next.block.blockSize100k;
+
+            this.computedCombinedCRC = (this.computedCombinedCRC << 1)
+                    | (this.computedCombinedCRC >>> 31);
+            this.computedCombinedCRC ^= next.block.storedCRC;
+
+            fill();
+        }
+        return true;
+    }
+
+    /**
+     * Drops a block that failed to decode and reports the gap.
+     */
+    private void skipCorruptBlock(final BZip2BlockScanner.Block block, final Throwable cause) throws IOException {
+        this.corruptBlocks++;
+        if (this.stats != null) {
+            this.stats.corruptBlock();
+        }
+        this.ignoreCombinedCRC = true;
+        fill();
+        final PendingBlock next = this.pending.peek();
+        this.listener.corruptBlock(block.streamBitOffset, next == null ? -1 : next.block.streamBitOffset,
+                this.blockOutputOffset, cause);
+    }
+
+    /**
+     * Reports the rest of a truncated stream as dropped, once all complete
+     * blocks before it have been handed out.
+     */
+    private void skipTruncatedTail(final BZip2BlockScanner.Block tail, final IOException cause) {
+        this.corruptBlocks++;
+        if (this.stats != null) {
+            this.stats.corruptBlock();
+        }
+        this.listener.corruptBlock(tail.streamBitOffset, -1, this.blockOutputOffset, cause);
+    }
+
+    /**
+     * Decodes a block which failed to decode joined with the blocks
+     * following it, one more at a time, until the join decodes or gets
+     * larger than a compressed block can be. The blocks joined are dropped.
+     *
+     * @return the decoded block, or <tt>null</tt> if no join decodes
+     */
+    private byte[] decodeJoined(final BZip2BlockScanner.Block block) throws IOException {
+        final int maxLength = BZip2BlockScanner.maxBlockLength(block.blockSize100k);
+        BZip2BlockScanner.Block joined = block;
+        for (int parts = 1; ; parts++) {
+            if (this.pending.size() < parts && !scan()) {
+                return null;
+            }
+            final PendingBlock following = this.pending.get(parts - 1);
+            if (following.future == null) {
+                // blocks do not span streams
+                return null;
+            }
+            joined = BZip2BlockScanner.join(joined, following.block);
+            if (joined.length > maxLength) {
+                return null;
+            }
+            final byte[] decoded;
+            try {
+                decoded = new BlockDecoder(joined, this.blockOptions).call();
+            } catch (Exception e) {
+                continue;
+            }
+            for (int i = 0; i < parts; i++) {
+                this.pending.poll().future.cancel(false);
+            }
+            return decoded;
+        }
+    }
+
+    /**
+     * Submits blocks until enough blocks are in flight or the end of the
+     * compressed stream has been reached.
+     */
+    private void fill() throws IOException {
+        while (this.pending.size() < this.maxPending) {
+            if (!scan()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Submits the next block for decoding.
+     *
+     * @return <tt>false</tt> at the end of the compressed stream
+     */
+    private boolean scan() throws IOException {
+        if (this.scanner == null) {
+            return false;
+        }
+        final BZip2BlockScanner.Block block;
+        try {
+            block = this.scanner.next();
+        } catch (IOException e) {
+            final long truncatedBitOffset = this.scanner.getTruncatedBitOffset();
+            if (this.listener == null || truncatedBitOffset < 0) {
+                throw e;
+            }
+            // the blocks scanned so far are handed out before the tail is
+            // reported, then the stream ends
+            this.scanner = null;
+            this.pending.add(new PendingBlock(null, new BZip2BlockScanner.Block(null, 0, truncatedBitOffset,
+                    this.blockSize100k, 0), e));
+            return true;
+        }
+        if (block == null) {
+            this.scanner = null;
+            return false;
+        }
+        if (block.isStreamEnd()) {
+            this.pending.add(new PendingBlock(null, block, null));
+        } else {
+            this.pending.add(new PendingBlock(this.executor.submit(
+                    new BlockDecoder(block, this.blockOptions)), block, null));
+        }
+        return true;
+    }
+
+    private static final class PendingBlock {
+
+        /**
+         * The decoded block, <tt>null</tt> for the end of a stream.
+         */
+        final Future<byte[]> future;
+        final BZip2BlockScanner.Block block;
+
+        /**
+         * Why the rest of the stream is lost, <tt>null</tt> unless this
+         * marks the end of a truncated stream.
+         */
+        final IOException truncation;
+
+        PendingBlock(Future<byte[]> future, BZip2BlockScanner.Block block, IOException truncation) {
+            this.future = future;
+            this.block = block;
+            this.truncation = truncation;
+        }
+    }
+
+    private static final class BlockDecoder implements Callable<byte[]> {
+
+        private final BZip2BlockScanner.Block block;
+        private final BZip2DecoderOptions options;
+
+        BlockDecoder(BZip2BlockScanner.Block block, BZip2DecoderOptions options) {
+            this.block = block;
+            this.options = options;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            final CBZip2InputStream decoder = new CBZip2InputStream(
+                    new ByteArrayInputStream(block.data, 0, block.length),
+                    block.blockSize100k, block.bitOffset, this.options);
+            try {
+                // the whole block is decoded by now
+                final byte[] out = new byte[decoder.available()];
+                for (int len = 0; len < out.length; ) {
+                    len += decoder.read(out, len, out.length - len);
+                }
+                return out;
+            } finally {
+                decoder.close();
+            }
+        }
+    }
+}
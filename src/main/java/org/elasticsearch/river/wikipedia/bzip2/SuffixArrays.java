@@ -0,0 +1,331 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the rotations of a bzip2 block by building a suffix array with the
+ * SA-IS algorithm of Nong, Zhang and Chan ("Two Efficient Algorithms for
+ * Linear Time Suffix Array Construction").
+ * <p/>
+ * <p>Unlike the comparison sort of <tt>blocksort.c</tt> its time does not
+ * depend on how repetitive the block is, so blocks never need to be
+ * randomised. The block is read starting at its smallest rotation, which
+ * makes it a Lyndon word (or a repetition of one): no proper suffix of a
+ * Lyndon word is also a prefix of it, so its suffixes sort like the
+ * rotations starting at them. Equal rotations, found in periodic blocks
+ * only, are preceded by equal bytes, so their order does not change the
+ * transformed block and the output is the one of <tt>bzip2</tt>.</p>
+ * <p/>
+ * <p>The rotated block is copied once into an <tt>int[]</tt>, and the
+ * reduced texts of the recursion are stored in the suffix array itself, so
+ * every level reads its text from a plain array. The type of a position
+ * is kept in the lowest bit of its character, and the buckets in an array
+ * allocated once and shared by all levels.</p>
+ */
+final class SuffixArrays {
+
+    /**
+     * Size of the alphabet of the top level: the 256 byte values shifted by
+     * one, and the sentinel.
+     */
+    private static final int ALPHABET_SIZE = 257;
+
+    /**
+     * The bucket of every character, shared by all levels: a level does not
+     * need its buckets across the recursion, and a reduced text has at most
+     * half as many characters as the level above.
+     */
+    private final int[] buckets;
+
+    /**
+     * @param maxLength the largest block to sort
+     */
+    SuffixArrays(final int maxLength) {
+        this.buckets = new int[Math.max(ALPHABET_SIZE, (maxLength + 1) / 2 + 1)];
+    }
+
+    /**
+     * Sorts the rotations of <tt>block[1..length]</tt>, storing the start of
+     * the <tt>i</tt>th rotation, counted from <tt>0</tt>, in
+     * <tt>fmap[i]</tt>.
+     *
+     * @param fmap an array of at least <tt>length + 1</tt> ints
+     * @param text an array of at least <tt>length + 1</tt> ints, for the
+     *             rotated block
+     */
+    void sortRotations(final byte[] block, final int length, final int[] fmap, final int[] text) {
+        final int start = smallestRotation(block, length);
+        // bytes are shifted by one to make room for the sentinel
+        final int tail = length - start;
+        for (int i = 0; i < tail; i++) {
+            text[i] = (block[start + 1 + i] & 0xff) + 1;
+        }
+        for (int i = tail; i < length; i++) {
+            text[i] = (block[i - tail + 1] & 0xff) + 1;
+        }
+        final int period = period(text, length, fmap);
+        final int n = period + 1;
+        text[period] = 0;
+        sais(text, 0, fmap, n, ALPHABET_SIZE);
+
+        // fmap[0] is the sentinel, each rotation of the period is repeated
+        // length / period times
+        final int repeats = length / period;
+        if (repeats == 1) {
+            for (int i = 1; i < n; i++) {
+                fmap[i - 1] = rotation(fmap[i], start, length);
+            }
+        } else {
+            for (int i = period; i > 0; i--) {
+                int p = rotation(fmap[i], start, length);
+                for (int j = (i - 1) * repeats, hi = j + repeats; j < hi; j++) {
+                    fmap[j] = p;
+                    p += period;
+                    if (p >= length) {
+                        p -= length;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int rotation(final int p, final int start, final int length) {
+        final int rotation = start + p;
+        return rotation >= length ? rotation - length : rotation;
+    }
+
+    /**
+     * Returns the start of the smallest rotation of
+     * <tt>block[1..length]</tt>.
+     */
+    private static int smallestRotation(final byte[] block, final int length) {
+        int i = 0;
+        int j = 1;
+        int k = 0;
+        while (i < length && j < length && k < length) {
+            int pi = i + k;
+            int pj = j + k;
+            if (pi >= length) {
+                pi -= length;
+            }
+            if (pj >= length) {
+                pj -= length;
+            }
+            final int a = block[pi + 1] & 0xff;
+            final int b = block[pj + 1] & 0xff;
+            if (a == b) {
+                k++;
+            } else {
+                if (a > b) {
+                    i += k + 1;
+                } else {
+                    j += k + 1;
+                }
+                if (i == j) {
+                    j++;
+                }
+                k = 0;
+            }
+        }
+        return Math.min(i, j);
+    }
+
+    /**
+     * Returns the length of the shortest string <tt>s[0..length-1]</tt> is
+     * a repetition of. Uses <tt>work[0..length]</tt> for the KMP failure
+     * function.
+     */
+    private static int period(final int[] s, final int length, final int[] work) {
+        work[0] = -1;
+        for (int i = 1, k = -1; i <= length; i++) {
+            final int c = s[i - 1];
+            while (k >= 0 && s[k] != c) {
+                k = work[k];
+            }
+            work[i] = ++k;
+        }
+        final int period = length - work[length];
+        return length % period == 0 ? period : length;
+    }
+
+    /**
+     * Builds the suffix array of the <tt>n</tt> characters of
+     * <tt>s[off..off+n-1]</tt> into <tt>sa[0..n-1]</tt>. The characters are
+     * replaced by <tt>c &lt;&lt; 1 | type</tt>, see {@link #classify}.
+     *
+     * @param k the size of the alphabet
+     */
+    private void sais(final int[] s, final int off, final int[] sa, final int n, final int k) {
+        classify(s, off, n);
+
+        // stage 1: sort the LMS substrings
+        final int[] bucket = this.buckets;
+        bucketEnds(s, off, bucket, n, k);
+        Arrays.fill(sa, 0, n, -1);
+        for (int i = 1; i < n; i++) {
+            if (isLMS(s, off, i)) {
+                sa[--bucket[s[off + i] >>> 1]] = i;
+            }
+        }
+        induce(s, off, sa, bucket, n, k);
+
+        // move the sorted LMS substrings to the front
+        int n1 = 0;
+        for (int i = 0; i < n; i++) {
+            final int p = sa[i];
+            if (p > 0 && isLMS(s, off, p)) {
+                sa[n1++] = p;
+            }
+        }
+
+        // name them, LMS positions are at least two apart; comparing the
+        // characters compares their types as well
+        Arrays.fill(sa, n1, n, -1);
+        int name = 0;
+        int prev = -1;
+        for (int i = 0; i < n1; i++) {
+            final int p = sa[i];
+            boolean diff = prev == -1;
+            for (int d = 0; !diff; d++) {
+                if (s[off + p + d] != s[off + prev + d]) {
+                    diff = true;
+                } else if (d > 0 && (isLMS(s, off, p + d) || isLMS(s, off, prev + d))) {
+                    break;
+                }
+            }
+            if (diff) {
+                name++;
+                prev = p;
+            }
+            sa[n1 + (p >> 1)] = name - 1;
+        }
+        for (int i = n - 1, j = n - 1; i >= n1; i--) {
+            if (sa[i] >= 0) {
+                sa[j--] = sa[i];
+            }
+        }
+
+        // stage 2: sort the LMS suffixes, recursing if the names are not unique
+        final int offset = n - n1;
+        if (name < n1) {
+            sais(sa, offset, sa, n1, name);
+        } else {
+            for (int i = 0; i < n1; i++) {
+                sa[sa[offset + i]] = i;
+            }
+        }
+
+        // stage 3: induce the suffix array from the sorted LMS suffixes
+        for (int i = 1, j = offset; i < n; i++) {
+            if (isLMS(s, off, i)) {
+                sa[j++] = i;
+            }
+        }
+        for (int i = 0; i < n1; i++) {
+            sa[i] = sa[offset + sa[i]];
+        }
+        Arrays.fill(sa, n1, n, -1);
+        bucketEnds(s, off, bucket, n, k);
+        for (int i = n1 - 1; i >= 0; i--) {
+            final int p = sa[i];
+            sa[i] = -1;
+            sa[--bucket[s[off + p] >>> 1]] = p;
+        }
+        induce(s, off, sa, bucket, n, k);
+    }
+
+    /**
+     * Stores the type of every position in the lowest bit of its character:
+     * <tt>1</tt> for S-type positions, whose suffix is smaller than the next
+     * one, <tt>0</tt> for L-type ones. Reading the type along with the
+     * character saves a random access to a separate array in the inner
+     * loops. The last position, the sentinel, is S-type.
+     */
+    private static void classify(final int[] s, final int off, final int n) {
+        int next = s[off + n - 1];
+        int type = 1;
+        s[off + n - 1] = next << 1 | type;
+        for (int i = off + n - 2; i >= off; i--) {
+            final int c = s[i];
+            if (c != next) {
+                type = c < next ? 1 : 0;
+            }
+            s[i] = c << 1 | type;
+            next = c;
+        }
+    }
+
+    private static boolean isLMS(final int[] s, final int off, final int i) {
+        return i > 0 && (s[off + i] & 1) != 0 && (s[off + i - 1] & 1) == 0;
+    }
+
+    /**
+     * Induces the order of the L-type suffixes from the left to the right,
+     * then the one of the S-type suffixes from the right to the left.
+     */
+    private static void induce(final int[] s, final int off, final int[] sa, final int[] bucket,
+                               final int n, final int k) {
+        bucketStarts(s, off, bucket, n, k);
+        for (int i = 0; i < n; i++) {
+            final int j = sa[i] - 1;
+            if (j >= 0) {
+                final int c = s[off + j];
+                if ((c & 1) == 0) {
+                    sa[bucket[c >>> 1]++] = j;
+                }
+            }
+        }
+        bucketEnds(s, off, bucket, n, k);
+        for (int i = n - 1; i >= 0; i--) {
+            final int j = sa[i] - 1;
+            if (j >= 0) {
+                final int c = s[off + j];
+                if ((c & 1) != 0) {
+                    sa[--bucket[c >>> 1]] = j;
+                }
+            }
+        }
+    }
+
+    private static void bucketStarts(final int[] s, final int off, final int[] bucket, final int n, final int k) {
+        countCharacters(s, off, bucket, n, k);
+        for (int c = 0, sum = 0; c < k; c++) {
+            final int count = bucket[c];
+            bucket[c] = sum;
+            sum += count;
+        }
+    }
+
+    private static void bucketEnds(final int[] s, final int off, final int[] bucket, final int n, final int k) {
+        countCharacters(s, off, bucket, n, k);
+        for (int c = 0, sum = 0; c < k; c++) {
+            sum += bucket[c];
+            bucket[c] = sum;
+        }
+    }
+
+    private static void countCharacters(final int[] s, final int off, final int[] bucket, final int n, final int k) {
+        Arrays.fill(bucket, 0, k, 0);
+        for (int i = off, end = off + n; i < end; i++) {
+            bucket[s[i] >>> 1]++;
+        }
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+
+/**
+ * Keeps a local copy of a remote dump in a cache directory.
+ * <p/>
+ * <p>The dump is downloaded while it is parsed: {@link #open(long)} reads
+ * the bytes downloaded by earlier runs from <tt>&lt;name&gt;.part</tt>,
+ * asks the server for the rest with a <tt>Range</tt> request and appends
+ * it to the file. The <tt>ETag</tt> or <tt>Last-Modified</tt> header of
+ * the response starting the file is kept in <tt>&lt;name&gt;.part.validator</tt>
+ * and sent along as <tt>If-Range</tt> header, so a dump replaced in the
+ * meantime is downloaded from the start again. Once the whole dump went
+ * through, its checksum is compared with the one listed in a Wikimedia
+ * <tt>md5sums</tt> or <tt>sha1sums</tt> file, if one is given, and the file
+ * is renamed to <tt>&lt;name&gt;</tt>. Later runs read the complete file as
+ * a local dump.</p>
+ * <p/>
+ * <p>A cache directory must not be shared by rivers reading the same
+ * dump at the same time.</p>
+ */
+public class DumpCache {
+
+    /**
+     * Bytes left when a stream is closed which are still downloaded to
+     * complete the file, say the end of stream marker after the last page.
+     */
+    static final int MAX_DRAIN = 1024 * 1024;
+
+    private final URL url;
+    private final File file;
+    private final File partFile;
+    private final File validatorFile;
+    private final URL checksums;
+
+    /**
+     * @param url       the remote dump
+     * @param directory the cache directory, created if needed
+     * @param checksums <tt>md5sums</tt> or <tt>sha1sums</tt> file listing
+     *                  the dump, or <tt>null</tt> to not verify it
+     */
+    public DumpCache(URL url, File directory, URL checksums) {
+        String path = url.getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        if (name.length() == 0) {
+            throw new IllegalArgumentException("no file name in [" + url + "]");
+        }
+        this.url = url;
+        this.file = new File(directory, name);
+        this.partFile = new File(directory, name + ".part");
+        this.validatorFile = new File(directory, name + ".part.validator");
+        this.checksums = checksums;
+    }
+
+    /**
+     * @return the cached dump, which exists once it is complete
+     */
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isComplete() {
+        return file.isFile();
+    }
+
+    /**
+     * Opens the dump at <tt>offset</tt>, downloading the bytes missing in
+     * the cache up to there. Bytes in front of <tt>offset</tt> are read,
+     * not decoded, to complete the cache and its checksum.
+     */
+    public InputStream open(long offset) throws IOException {
+        return open(offset, null);
+    }
+
+    /**
+     * Like {@link #open(long)}, reconnecting as given if the download
+     * fails.
+     *
+     * @param reconnect how to reconnect, or <tt>null</tt> to not reconnect
+     */
+    public InputStream open(long offset, ReconnectPolicy reconnect) throws IOException {
+        File directory = partFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("failed to create cache directory [" + directory + "]");
+        }
+        CachingInputStream in = new CachingInputStream(reconnect);
+        boolean success = false;
+        try {
+            in.skipFully(offset);
+            success = true;
+            return in;
+        } finally {
+            if (!success) {
+                in.close();
+            }
+        }
+    }
+
+    /**
+     * @return the checksum listed for the dump, in lower case
+     * @throws IOException if the dump is not listed
+     */
+    String readChecksum() throws IOException {
+        String name = file.getName();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(checksums.openStream(), "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                // "<checksum>  <name>", as written by md5sum and sha1sum
+                String[] parts = line.trim().split("\\s+");
+                if (parts.length == 2 && (parts[1].equals(name) || parts[1].equals("*" + name))) {
+                    return parts[0].toLowerCase(Locale.ROOT);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        throw new IOException("no checksum for [" + name + "] in [" + checksums + "]");
+    }
+
+    /**
+     * @return the validator of the dump the part file belongs to, or
+     *         <tt>null</tt> if there is none
+     */
+    private String readValidator() throws IOException {
+        if (!validatorFile.isFile()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(validatorFile), "UTF-8"));
+        try {
+            String validator = reader.readLine();
+            return validator == null || validator.trim().length() == 0 ? null : validator.trim();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Keeps the validator of the response starting the part file. Weak
+     * entity tags can't be used with <tt>If-Range</tt>.
+     */
+    private void writeValidator(URLConnection connection) throws IOException {
+        String validator = connection.getHeaderField("ETag");
+        if (validator == null || validator.startsWith("W/")) {
+            validator = connection.getHeaderField("Last-Modified");
+        }
+        if (validator == null) {
+            if (validatorFile.exists() && !validatorFile.delete()) {
+                throw new IOException("failed to delete [" + validatorFile + "]");
+            }
+            return;
+        }
+        OutputStream out = new FileOutputStream(validatorFile);
+        try {
+            out.write(validator.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static MessageDigest digest(String checksum) throws IOException {
+        String algorithm;
+        if (checksum.length() == 32) {
+            algorithm = "MD5";
+        } else if (checksum.length() == 40) {
+            algorithm = "SHA-1";
+        } else {
+            throw new IOException("unknown checksum [" + checksum + "], expected md5 or sha1");
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads the part file, then the rest of the dump from the server,
+     * appending it to the part file.
+     */
+    private class CachingInputStream extends InputStream {
+
+        private final String checksum;
+        private final MessageDigest digest;
+
+        private InputStream cached;
+        private InputStream remote;
+        private OutputStream out;
+
+        /**
+         * Length of the dump, or <tt>-1</tt> if the server does not tell.
+         */
+        private long length = -1;
+        private long position;
+        private boolean done;
+
+        CachingInputStream(ReconnectPolicy reconnect) throws IOException {
+            checksum = checksums == null ? null : readChecksum();
+            digest = checksum == null ? null : digest(checksum);
+
+            long cachedLength = partFile.isFile() ? partFile.length() : 0;
+            String validator = cachedLength > 0 ? readValidator() : null;
+            URLConnection connection = url.openConnection();
+            if (validator != null && connection instanceof HttpURLConnection) {
+                connection.setRequestProperty("Range", "bytes=" + cachedLength + "-");
+                // the server sends the whole dump if it changed since the
+                // part file was started
+                connection.setRequestProperty("If-Range", validator);
+                int status = ((HttpURLConnection) connection).getResponseCode();
+                if (status == 416) {
+                    // the part file already holds the whole dump
+                    ((HttpURLConnection) connection).disconnect();
+                    connection = null;
+                    length = cachedLength;
+                } else if (status == HttpURLConnection.HTTP_PARTIAL) {
+                    length = totalLength(connection.getHeaderField("Content-Range"));
+                } else {
+                    // the dump changed, or the server ignores the range
+                    cachedLength = 0;
+                }
+            } else {
+                // nothing tells whether the part file holds the same dump
+                cachedLength = 0;
+            }
+            if (connection != null) {
+                remote = connection.getInputStream();
+                if (length < 0 && cachedLength == 0) {
+                    length = contentLength(connection.getHeaderField("Content-Length"));
+                }
+                if (reconnect != null) {
+                    remote = new ReconnectingInputStream(url, remote, cachedLength, length, reconnect);
+                }
+            }
+            if (cachedLength > 0) {
+                cached = new LimitedInputStream(new FileInputStream(partFile), cachedLength);
+            }
+            out = new FileOutputStream(partFile, cachedLength > 0);
+            if (cachedLength == 0 && connection != null) {
+                // only once the part file is cut, it must not be resumed
+                // with the validator of another dump
+                writeValidator(connection);
+            }
+        }
+
+        private long totalLength(String contentRange) {
+            // "bytes <first>-<last>/<length>"
+            if (contentRange == null) {
+                return -1;
+            }
+            return contentLength(contentRange.substring(contentRange.lastIndexOf('/') + 1));
+        }
+
+        private long contentLength(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // "*" for an unknown length
+                return -1;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (done) {
+                return -1;
+            }
+            if (cached != null) {
+                int read = cached.read(b, off, len);
+                if (read > 0) {
+                    update(b, off, read);
+                    return read;
+                }
+                cached.close();
+                cached = null;
+            }
+            if (remote == null) {
+                complete();
+                return -1;
+            }
+            int read = remote.read(b, off, len);
+            if (read < 0) {
+                complete();
+                return -1;
+            }
+            out.write(b, off, read);
+            update(b, off, read);
+            return read;
+        }
+
+        private void update(byte[] b, int off, int len) {
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            position += len;
+        }
+
+        void skipFully(long n) throws IOException {
+            byte[] buffer = new byte[64 * 1024];
+            while (n > 0) {
+                int read = read(buffer, 0, (int) Math.min(buffer.length, n));
+                if (read < 0) {
+                    throw new IOException("[" + url + "] ends before offset " + (position + n));
+                }
+                n -= read;
+            }
+        }
+
+        /**
+         * Verifies the downloaded dump and moves it in place.
+         */
+        private void complete() throws IOException {
+            if (done) {
+                return;
+            }
+            done = true;
+            closeStreams();
+            if (length >= 0 && position != length) {
+                throw new IOException("[" + url + "] ended after " + position + " of " + length + " bytes");
+            }
+            if (digest != null) {
+                String actual = toHex(digest.digest());
+                if (!actual.equals(checksum)) {
+                    if (!partFile.delete()) {
+                        throw new IOException("failed to delete [" + partFile + "]");
+                    }
+                    // a left over validator is ignored without a part file
+                    validatorFile.delete();
+                    throw new IOException("checksum [" + actual + "] of [" + url + "] does not match [" + checksum
+                            + "] listed in [" + checksums + "]");
+                }
+            }
+            if (!partFile.renameTo(file)) {
+                throw new IOException("failed to rename [" + partFile + "] to [" + file + "]");
+            }
+            // a left over validator is ignored without a part file
+            validatorFile.delete();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (done) {
+                return;
+            }
+            try {
+                if (length >= 0 && length - position <= MAX_DRAIN) {
+                    // only the end of the dump is left, get it to complete the cache
+                    skipFully(length - position);
+                    if (read() != -1) {
+                        throw new IOException("[" + url + "] is longer than " + length + " bytes");
+                    }
+                }
+            } finally {
+                if (!done) {
+                    done = true;
+                    closeStreams();
+                }
+            }
+        }
+
+        private void closeStreams() throws IOException {
+            try {
+                if (cached != null) {
+                    cached.close();
+                }
+                if (remote != null) {
+                    remote.close();
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the first bytes of a stream only, the part file may grow
+     * while it is read.
+     */
+    private static class LimitedInputStream extends InputStream {
+
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            this.in = in;
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining == 0) {
+                return -1;
+            }
+            int read = in.read(b, off, (int) Math.min(len, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
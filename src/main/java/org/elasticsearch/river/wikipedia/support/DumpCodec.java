@@ -0,0 +1,45 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A compression format of dumps, recognized by the first bytes of the dump.
+ * <p/>
+ * <p>Implementations with a public no-argument constructor can be configured
+ * by class name, see {@link DumpCodecs#get(String)}.</p>
+ */
+public interface DumpCodec {
+
+    /**
+     * @param magic  the first bytes of the dump
+     * @param length number of bytes in <tt>magic</tt>, at most
+     *               {@link DumpCodecs#MAGIC_LENGTH} and less for shorter dumps
+     * @return whether the dump is in this format
+     */
+    boolean matches(byte[] magic, int length);
+
+    /**
+     * @param in the dump, positioned at its first byte
+     * @return the decoded dump
+     */
+    InputStream decode(InputStream in) throws IOException;
+}
@@ -0,0 +1,221 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2InputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The known {@link DumpCodec}s. Dumps are decoded by the first codec of a
+ * list recognizing their first bytes, the file name does not matter.
+ */
+public final class DumpCodecs {
+
+    /**
+     * Number of bytes looked at to recognize the format of a dump.
+     */
+    public static final int MAGIC_LENGTH = 4;
+
+    /**
+     * bzip2 compressed dumps, decoded by the bzip2 decoders of this river.
+     * {@link WikiXMLParser} sets them up with the decoder settings, resume
+     * position and stream ranges given to the parser.
+     */
+    public static final DumpCodec BZIP2 = new BZip2Codec();
+
+    /**
+     * gzip compressed dumps, decoded by the JDK.
+     */
+    public static final DumpCodec GZIP = new GZipCodec();
+
+    /**
+     * Uncompressed dumps, starting with an optional UTF-8 byte order mark
+     * followed by whitespace or <tt>&lt;</tt>.
+     */
+    public static final DumpCodec XML = new XMLCodec();
+
+    private static final List<DumpCodec> DEFAULTS = Collections.unmodifiableList(Arrays.asList(BZIP2, GZIP, XML));
+
+    private DumpCodecs() {
+    }
+
+    /**
+     * @return the built-in codecs, <tt>bzip2</tt>, <tt>gzip</tt> and <tt>xml</tt>
+     */
+    public static List<DumpCodec> defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * @param name <tt>bzip2</tt>, <tt>gzip</tt>, <tt>xml</tt> or the name of
+     *             a class implementing {@link DumpCodec} with a public
+     *             no-argument constructor
+     * @throws IllegalArgumentException if there is no such codec
+     */
+    public static DumpCodec get(String name) {
+        if ("bzip2".equals(name)) {
+            return BZIP2;
+        } else if ("gzip".equals(name)) {
+            return GZIP;
+        } else if ("xml".equals(name)) {
+            return XML;
+        }
+        Class<?> codecClass;
+        try {
+            codecClass = Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("unknown codec [" + name + "], expected [bzip2], [gzip], [xml] or a class name");
+        }
+        if (!DumpCodec.class.isAssignableFrom(codecClass)) {
+            throw new IllegalArgumentException("codec class [" + name + "] does not implement " + DumpCodec.class.getName());
+        }
+        try {
+            return (DumpCodec) codecClass.newInstance();
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to create codec [" + name + "]", e);
+        }
+    }
+
+    /**
+     * @return the first of <tt>codecs</tt> matching the first bytes of a
+     *         dump, or <tt>null</tt> if none does
+     */
+    public static DumpCodec detect(List<DumpCodec> codecs, byte[] magic, int length) {
+        for (DumpCodec codec : codecs) {
+            if (codec.matches(magic, length)) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Like {@link #detect(List, byte[], int)}, but peeks at the first bytes
+     * of <tt>in</tt>, which has to be able to push back {@link #MAGIC_LENGTH}
+     * bytes.
+     */
+    public static DumpCodec detect(List<DumpCodec> codecs, PushbackInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int length = readMagic(in, magic);
+        in.unread(magic, 0, length);
+        return detect(codecs, magic, length);
+    }
+
+    /**
+     * Reads up to <tt>magic.length</tt> bytes, less only at the end of the
+     * stream.
+     *
+     * @return number of bytes read
+     */
+    static int readMagic(InputStream in, byte[] magic) throws IOException {
+        int length = 0;
+        while (length < magic.length) {
+            int read = in.read(magic, length, magic.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Skips the <tt>"BZ"</tt> magic in front of a bzip2 stream, the bzip2
+     * decoders expect the stream to start after it.
+     *
+     * @throws IOException if <tt>in</tt> does not start with <tt>"BZ"</tt>
+     */
+    static void skipBZip2Magic(InputStream in) throws IOException {
+        byte[] magic = new byte[2];
+        if (readMagic(in, magic) != 2 || magic[0] != 'B' || magic[1] != 'Z') {
+            throw new IOException("not a bzip2 stream");
+        }
+    }
+
+    private static final class BZip2Codec implements DumpCodec {
+
+        @Override
+        public boolean matches(byte[] magic, int length) {
+            return length >= 4 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h'
+                    && magic[3] >= '1' && magic[3] <= '9';
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            skipBZip2Magic(in);
+            return new CBZip2InputStream(in);
+        }
+
+        @Override
+        public String toString() {
+            return "bzip2";
+        }
+    }
+
+    private static final class GZipCodec implements DumpCodec {
+
+        @Override
+        public boolean matches(byte[] magic, int length) {
+            return length >= 2 && magic[0] == (byte) 0x1f && magic[1] == (byte) 0x8b;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) throws IOException {
+            return new GZIPInputStream(in);
+        }
+
+        @Override
+        public String toString() {
+            return "gzip";
+        }
+    }
+
+    private static final class XMLCodec implements DumpCodec {
+
+        @Override
+        public boolean matches(byte[] magic, int length) {
+            int start = 0;
+            if (length >= 3 && magic[0] == (byte) 0xef && magic[1] == (byte) 0xbb && magic[2] == (byte) 0xbf) {
+                start = 3;
+            }
+            if (start >= length) {
+                return false;
+            }
+            byte first = magic[start];
+            return first == '<' || first == ' ' || first == '\t' || first == '\r' || first == '\n';
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+
+        @Override
+        public String toString() {
+            return "xml";
+        }
+    }
+}
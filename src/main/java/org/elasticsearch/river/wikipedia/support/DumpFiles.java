@@ -0,0 +1,246 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Expands the urls of a dump split into several files, such as
+ * <tt>enwiki-latest-pages-articles1.xml-p1p41242.bz2</tt> and the files
+ * following it.
+ * <p/>
+ * <p>The file name of an url may contain the wildcards <tt>*</tt> and
+ * <tt>?</tt> and character classes like <tt>[0-9]</tt>. The files matching
+ * it are listed from the directory for <tt>file:</tt> urls, and taken from
+ * the links of the directory index page otherwise, as served for the
+ * Wikimedia dump directories. Matching files are returned in natural order,
+ * comparing runs of digits by their value, so <tt>pages-articles2</tt>
+ * comes before <tt>pages-articles10</tt>.</p>
+ */
+public class DumpFiles {
+
+    private static final Pattern HREF = Pattern.compile("href\\s*=\\s*[\"']([^\"'#?]+)[\"']", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Compares names by their runs of digits as numbers, and by their other
+     * characters as text.
+     */
+    static final Comparator<String> NATURAL_ORDER = new Comparator<String>() {
+        @Override
+        public int compare(String a, String b) {
+            int i = 0;
+            int j = 0;
+            while (i < a.length() && j < b.length()) {
+                char ca = a.charAt(i);
+                char cb = b.charAt(j);
+                if (isDigit(ca) && isDigit(cb)) {
+                    int endA = skipDigits(a, i);
+                    int endB = skipDigits(b, j);
+                    int cmp = compareNumbers(a.substring(i, endA), b.substring(j, endB));
+                    if (cmp != 0) {
+                        return cmp;
+                    }
+                    i = endA;
+                    j = endB;
+                } else {
+                    if (ca != cb) {
+                        return ca - cb;
+                    }
+                    i++;
+                    j++;
+                }
+            }
+            int cmp = (a.length() - i) - (b.length() - j);
+            // numbers only differing by leading zeros
+            return cmp != 0 ? cmp : a.compareTo(b);
+        }
+    };
+
+    /**
+     * Expands every url of <tt>urls</tt>, dropping duplicates.
+     *
+     * @return the dump files in the order of <tt>urls</tt>
+     * @throws IOException if a pattern matches no file
+     */
+    public static List<URL> expand(Collection<String> urls) throws IOException {
+        Set<String> seen = new LinkedHashSet<String>();
+        for (String url : urls) {
+            for (URL file : expand(url)) {
+                seen.add(file.toExternalForm());
+            }
+        }
+        List<URL> files = new ArrayList<URL>(seen.size());
+        for (String file : seen) {
+            files.add(new URL(file));
+        }
+        return files;
+    }
+
+    /**
+     * @return <tt>url</tt> if its file name has no wildcards, the files
+     *         matching it in natural order otherwise
+     * @throws IOException if the pattern matches no file
+     */
+    public static List<URL> expand(String url) throws IOException {
+        int slash = url.lastIndexOf('/');
+        String name = url.substring(slash + 1);
+        if (!isPattern(name)) {
+            return Collections.singletonList(new URL(url));
+        }
+        URL directory = new URL(url.substring(0, slash + 1));
+        Pattern pattern = toRegex(name);
+
+        List<String> names = new ArrayList<String>();
+        // index pages often link a file more than once
+        for (String candidate : new LinkedHashSet<String>(list(directory))) {
+            if (pattern.matcher(candidate).matches()) {
+                names.add(candidate);
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IOException("no dump file matches [" + url + "]");
+        }
+        Collections.sort(names, NATURAL_ORDER);
+
+        List<URL> files = new ArrayList<URL>(names.size());
+        for (String match : names) {
+            files.add(new URL(directory, match));
+        }
+        return files;
+    }
+
+    static boolean isPattern(String name) {
+        return name.indexOf('*') >= 0 || name.indexOf('?') >= 0 || name.indexOf('[') >= 0;
+    }
+
+    /**
+     * Translates a file name pattern to a regular expression.
+     */
+    static Pattern toRegex(String glob) {
+        StringBuilder regex = new StringBuilder(glob.length() + 16);
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                regex.append(".*");
+            } else if (c == '?') {
+                regex.append('.');
+            } else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+                int end = glob.indexOf(']', i + 1);
+                String chars = glob.substring(i + 1, end);
+                regex.append('[');
+                if (chars.charAt(0) == '!') {
+                    regex.append('^');
+                    chars = chars.substring(1);
+                }
+                regex.append(chars.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                i = end;
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * @return the names of the files in <tt>directory</tt>
+     */
+    static List<String> list(URL directory) throws IOException {
+        List<String> names = new ArrayList<String>();
+        if ("file".equals(directory.getProtocol())) {
+            File dir;
+            try {
+                dir = new File(directory.toURI());
+            } catch (URISyntaxException e) {
+                throw new MalformedURLException("invalid directory [" + directory + "]");
+            }
+            String[] files = dir.list();
+            if (files == null) {
+                throw new IOException("failed to list directory [" + dir + "]");
+            }
+            Collections.addAll(names, files);
+            return names;
+        }
+
+        StringBuilder page = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(directory.openStream(), "UTF-8"));
+        try {
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                page.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+
+        String path = directory.getPath();
+        Matcher href = HREF.matcher(page);
+        while (href.find()) {
+            URL link;
+            try {
+                link = new URL(directory, href.group(1));
+            } catch (MalformedURLException e) {
+                continue;
+            }
+            // only files right in the directory
+            String linkPath = link.getPath();
+            if (link.getHost().equalsIgnoreCase(directory.getHost()) && linkPath.startsWith(path)
+                    && linkPath.length() > path.length() && linkPath.indexOf('/', path.length()) < 0) {
+                names.add(linkPath.substring(path.length()));
+            }
+        }
+        return names;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int skipDigits(String s, int i) {
+        while (i < s.length() && isDigit(s.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int compareNumbers(String a, String b) {
+        // strip leading zeros, then the longer number is larger
+        a = a.replaceFirst("^0+(?=.)", "");
+        b = b.replaceFirst("^0+(?=.)", "");
+        if (a.length() != b.length()) {
+            return a.length() - b.length();
+        }
+        return a.compareTo(b);
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of reading a dump: the position of the parser in the dump as
+ * read from its file or url, before decoding, and the pages processed.
+ * <p/>
+ * <p>The position is updated by the thread reading the dump and the pages
+ * by the page callback, the figures can be read by any thread. Rates are
+ * averages since {@link #start(long)}, bytes skipped by resuming at a later
+ * position don't count.</p>
+ */
+public class DumpProgress {
+
+    private volatile long size = -1;
+
+    private volatile long startPosition = -1;
+
+    private volatile long position;
+
+    private volatile long startNanos;
+
+    private final AtomicLong pages = new AtomicLong();
+
+    /**
+     * Sets the size of the dump, as found by {@link #size(URL)}.
+     */
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    /**
+     * @return size of the dump in bytes, <tt>-1</tt> if unknown
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Starts the clock, reading begins at <tt>position</tt>.
+     */
+    public void start(long position) {
+        this.startNanos = System.nanoTime();
+        this.position = position;
+        this.startPosition = position;
+    }
+
+    /**
+     * @return whether reading started
+     */
+    public boolean isStarted() {
+        return startPosition >= 0;
+    }
+
+    /**
+     * @return offset of the next byte read from the dump
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return bytes read since reading started
+     */
+    public long getBytesRead() {
+        return isStarted() ? position - startPosition : 0;
+    }
+
+    /**
+     * Counts a page processed, to be called by the page callback.
+     */
+    public void pageProcessed() {
+        pages.incrementAndGet();
+    }
+
+    /**
+     * @return pages processed
+     */
+    public long getPages() {
+        return pages.get();
+    }
+
+    /**
+     * @return time since reading started
+     */
+    public long getElapsedMillis() {
+        return isStarted() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) : 0;
+    }
+
+    /**
+     * @return part of the dump read, from <tt>0</tt> to <tt>1</tt>, or
+     *         <tt>-1</tt> if the size is unknown
+     */
+    public double getFraction() {
+        long size = this.size;
+        if (size < 0) {
+            return -1;
+        }
+        return size == 0 ? 1 : Math.min(1, (double) position / size);
+    }
+
+    public double getBytesPerSecond() {
+        return rate(getBytesRead());
+    }
+
+    public double getPagesPerSecond() {
+        return rate(getPages());
+    }
+
+    /**
+     * @return time left to read the rest of the dump at the average rate
+     *         so far, <tt>-1</tt> if unknown
+     */
+    public long getRemainingMillis() {
+        return remainingMillis(size < 0 ? -1 : size - position, getBytesRead(), getElapsedMillis());
+    }
+
+    /**
+     * @return time left for <tt>remainingBytes</tt> at the rate of
+     *         <tt>bytes</tt> in <tt>millis</tt>, <tt>-1</tt> if unknown
+     */
+    public static long remainingMillis(long remainingBytes, long bytes, long millis) {
+        if (remainingBytes < 0 || bytes <= 0 || millis <= 0) {
+            return -1;
+        }
+        return (long) ((double) Math.max(0, remainingBytes) * millis / bytes);
+    }
+
+    private double rate(long count) {
+        long millis = getElapsedMillis();
+        return millis <= 0 ? 0 : count * 1000.0 / millis;
+    }
+
+    /**
+     * @return a stream counting the bytes read from <tt>in</tt>
+     */
+    InputStream track(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) {
+                    position++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int read = super.read(b, off, len);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return a channel counting the bytes read from <tt>channel</tt>
+     */
+    ReadableByteChannel track(final ReadableByteChannel channel) {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int read = channel.read(dst);
+                if (read > 0) {
+                    position += read;
+                }
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * @return the length of a local file, the <tt>Content-Length</tt> of a
+     *         <tt>HEAD</tt> request for an http url, <tt>-1</tt> if unknown
+     */
+    public static long size(URL url) throws IOException {
+        if ("file".equals(url.getProtocol())) {
+            try {
+                File file = new File(url.toURI());
+                return file.isFile() ? file.length() : -1;
+            } catch (URISyntaxException e) {
+                return -1;
+            }
+        }
+        URLConnection connection = url.openConnection();
+        if (!(connection instanceof HttpURLConnection)) {
+            return -1;
+        }
+        HttpURLConnection http = (HttpURLConnection) connection;
+        http.setRequestMethod("HEAD");
+        try {
+            if (http.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return -1;
+            }
+            // getContentLength() is an int
+            String length = http.getHeaderField("Content-Length");
+            return length == null ? -1 : Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        } finally {
+            http.disconnect();
+        }
+    }
+}
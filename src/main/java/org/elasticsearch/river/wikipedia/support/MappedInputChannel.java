@@ -0,0 +1,182 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads a local file through read only memory mappings of consecutive
+ * windows of the file. Reads copy straight from the page cache, without a
+ * system call per read, and the OS read ahead keeps the next pages coming.
+ * <p/>
+ * <p>Windows are unmapped once they are garbage collected, at most a few
+ * of them are alive at any time.</p>
+ */
+class MappedInputChannel implements ReadableByteChannel {
+
+    /**
+     * Size of the mapped windows, small enough to find address space on
+     * 32 bit JVMs.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel file;
+    private final long size;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+    private long position;
+
+    MappedInputChannel(File file) throws IOException {
+        this(file, DEFAULT_WINDOW_SIZE);
+    }
+
+    MappedInputChannel(File file, int windowSize) throws IOException {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("windowSize(" + windowSize + ") < 1.");
+        }
+        this.file = new FileInputStream(file).getChannel();
+        this.size = this.file.size();
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @return offset of the next byte read
+     */
+    long position() {
+        return position;
+    }
+
+    /**
+     * Moves to <tt>position</tt>, which may be beyond the end of the file.
+     * The current window is kept if it covers the new position.
+     */
+    MappedInputChannel position(long position) {
+        if (position < 0) {
+            throw new IllegalArgumentException("position(" + position + ") < 0.");
+        }
+        this.position = position;
+        return this;
+    }
+
+    /**
+     * @return size of the file when it was opened
+     */
+    long size() {
+        return size;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!file.isOpen()) {
+            throw new ClosedChannelException();
+        }
+        if (position >= size) {
+            return -1;
+        }
+        if (!dst.hasRemaining()) {
+            return 0;
+        }
+        if (window == null || position < windowStart || position >= windowStart + window.capacity()) {
+            // drop the old window first, so it can be unmapped before the next one is mapped
+            window = null;
+            windowStart = position;
+            window = file.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(windowSize, size - windowStart));
+        }
+        int start = (int) (position - windowStart);
+        int n = Math.min(dst.remaining(), window.capacity() - start);
+        window.limit(start + n);
+        window.position(start);
+        dst.put(window);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Other than {@link java.nio.channels.Channels#newInputStream(ReadableByteChannel)}
+     * the stream knows the number of bytes left, {@link java.util.zip.GZIPInputStream}
+     * relies on that to read multi-member files.
+     *
+     * @return a stream reading from this channel
+     */
+    InputStream newInputStream() {
+        return new InputStream() {
+            private ByteBuffer buffer;
+            private byte[] array;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                int read = read(b, 0, 1);
+                return read < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                if (b != array) {
+                    array = b;
+                    buffer = ByteBuffer.wrap(b);
+                }
+                buffer.limit(off + len);
+                buffer.position(off);
+                return MappedInputChannel.this.read(buffer);
+            }
+
+            @Override
+            public long skip(long n) {
+                long skipped = Math.max(0, Math.min(n, size - position));
+                position += skipped;
+                return skipped;
+            }
+
+            @Override
+            public int available() {
+                return (int) Math.max(0, Math.min(Integer.MAX_VALUE, size - position));
+            }
+
+            @Override
+            public void close() throws IOException {
+                MappedInputChannel.this.close();
+            }
+        };
+    }
+
+    @Override
+    public boolean isOpen() {
+        return file.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        file.close();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads the index of a multistream dump, <tt>*-multistream-index.txt.bz2</tt>.
+ * <p/>
+ * Every line of the index has the form <tt>offset:page_id:title</tt>, where
+ * offset is the position of the bzip2 stream containing the page within the
+ * dump. Consecutive lines share the same offset, as every stream holds
+ * about 100 pages.
+ */
+public class MultistreamIndex {
+
+    /**
+     * A range of consecutive streams within the dump.
+     */
+    public static class Range {
+
+        private final long start;
+        private long end;
+
+        Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return offset of the first stream
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return offset right after the last stream or <tt>-1</tt> if the
+         *         range extends to the end of the dump
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + "-" + (end < 0 ? "" : String.valueOf(end)) + ")";
+        }
+    }
+
+    /**
+     * Formats of compressed indexes, others are read as plain text.
+     */
+    private static final List<DumpCodec> INDEX_CODECS = Arrays.asList(DumpCodecs.BZIP2, DumpCodecs.GZIP);
+
+    /**
+     * Reads the index at <tt>indexURL</tt>, which may be bzip2 or gzip
+     * compressed.
+     *
+     * @return the stream ranges containing all pages accepted by
+     *         <tt>filter</tt>, in dump order
+     */
+    public static List<Range> select(URL indexURL, WikiPageFilter filter) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(indexURL.openStream(), DumpCodecs.MAGIC_LENGTH);
+        InputStream in = pushback;
+        try {
+            DumpCodec codec = DumpCodecs.detect(INDEX_CODECS, pushback);
+            if (codec != null) {
+                in = codec.decode(pushback);
+            }
+            return select(new BufferedReader(new InputStreamReader(in, "UTF-8")), filter);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static List<Range> select(BufferedReader index, WikiPageFilter filter) throws IOException {
+        List<Range> ranges = new ArrayList<Range>();
+        long current = -1;
+        boolean selected = false;
+
+        String line;
+        while ((line = index.readLine()) != null) {
+            int idStart = line.indexOf(':');
+            int titleStart = line.indexOf(':', idStart + 1);
+            if (idStart < 0 || titleStart < 0) {
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+                throw new IOException("malformed index line [" + line + "]");
+            }
+
+            long offset;
+            long id;
+            try {
+                offset = Long.parseLong(line.substring(0, idStart));
+                id = Long.parseLong(line.substring(idStart + 1, titleStart));
+            } catch (NumberFormatException e) {
+                throw new IOException("malformed index line [" + line + "]");
+            }
+
+            if (offset != current) {
+                if (selected) {
+                    add(ranges, current, offset);
+                }
+                if (filter.isExhausted(id)) {
+                    return ranges;
+                }
+                current = offset;
+                selected = false;
+            }
+            if (!selected) {
+                selected = filter.accept(id, line.substring(titleStart + 1));
+            }
+        }
+
+        if (selected) {
+            add(ranges, current, -1);
+        }
+        return ranges;
+    }
+
+    private static void add(List<Range> ranges, long start, long end) {
+        if (!ranges.isEmpty()) {
+            Range last = ranges.get(ranges.size() - 1);
+            if (last.end == start) {
+                last.end = end;
+                return;
+            }
+        }
+        ranges.add(new Range(start, end));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Turns a dump entered somewhere in the middle into a parseable document.
+ * Everything up to the first <tt>&lt;page&gt;</tt> start tag is skipped and
+ * replaced by a <tt>&lt;mediawiki&gt;</tt> start tag. The end tag is still
+ * part of the remaining dump.
+ */
+class PageFragmentInputStream extends InputStream {
+
+    private static final byte[] PAGE = {'<', 'p', 'a', 'g', 'e', '>'};
+
+    private final InputStream in;
+
+    private byte[] prefix;
+    private int prefixPos;
+
+    PageFragmentInputStream(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (prefix == null) {
+            prefix = skipToFirstPage() ?
+                    "<mediawiki><page>".getBytes("UTF-8") :
+                    "<mediawiki></mediawiki>".getBytes("UTF-8");
+        }
+        if (prefixPos < prefix.length) {
+            int n = Math.min(len, prefix.length - prefixPos);
+            System.arraycopy(prefix, prefixPos, b, off, n);
+            prefixPos += n;
+            return n;
+        }
+        return in.read(b, off, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * @return <tt>false</tt> if there is no page start tag left
+     */
+    private boolean skipToFirstPage() throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == PAGE[matched]) {
+                if (++matched == PAGE.length) {
+                    return true;
+                }
+            } else {
+                matched = c == PAGE[0] ? 1 : 0;
+            }
+        }
+        return false;
+    }
+}
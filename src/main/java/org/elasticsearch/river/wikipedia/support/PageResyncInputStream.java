@@ -0,0 +1,299 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CorruptBlockListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+
+/**
+ * Keeps a dump parseable across the gaps left by a bzip2 decoder in
+ * recovery mode. The bytes of a <tt>&lt;page&gt;</tt> element are held back
+ * until its end tag has been read. If a gap shows up in the meantime, the
+ * incomplete page is dropped and everything up to the next <tt>&lt;page&gt;</tt>
+ * start tag is skipped. The header is held back up to the first page, and
+ * replaced by a <tt>&lt;mediawiki&gt;</tt> start tag if a gap hits it. If
+ * the dump ends while skipping, a <tt>&lt;/mediawiki&gt;</tt> end tag is
+ * appended.
+ * <p/>
+ * <p>The decoder has to report gaps to this stream, on the reading thread
+ * and before returning the bytes following the gap.</p>
+ * <p/>
+ * <p>As it sees every page returned, this stream also tells the decoded
+ * output offset each of them starts at, see {@link #trackPageStarts(BZip2BlockPosition)}.</p>
+ */
+class PageResyncInputStream extends InputStream implements BZip2CorruptBlockListener {
+
+    private static final byte[] PAGE_START = {'<', 'p', 'a', 'g', 'e', '>'};
+    private static final byte[] PAGE_END = {'<', '/', 'p', 'a', 'g', 'e', '>'};
+    private static final byte[] MEDIAWIKI_START = {'<', 'm', 'e', 'd', 'i', 'a', 'w', 'i', 'k', 'i', '>'};
+    private static final byte[] MEDIAWIKI_END = {'<', '/', 'm', 'e', 'd', 'i', 'a', 'w', 'i', 'k', 'i', '>'};
+
+    private final BZip2CorruptBlockListener listener;
+
+    private InputStream in;
+
+    private byte[] buf = new byte[64 * 1024];
+
+    /**
+     * Next byte to return, bytes up to {@link #safe} can be returned, bytes
+     * from {@link #scan} on have not been looked at yet.
+     */
+    private int pos;
+    private int safe;
+    private int scan;
+    private int limit;
+
+    private boolean inPage;
+    private boolean headerDone;
+    private boolean skipping;
+    private boolean gap;
+    private boolean eof;
+
+    private BZip2BlockPosition position;
+
+    /**
+     * Output offset of the page start tag last found.
+     */
+    private long pageStart;
+
+    /**
+     * Output offsets of the complete pages which have not been polled yet,
+     * in dump order.
+     */
+    private final LinkedList<Long> pageStarts = new LinkedList<Long>();
+
+    /**
+     * @param listener listener to pass the gaps on to, may be <tt>null</tt>
+     *                 if the decoder does not run in recovery mode
+     */
+    PageResyncInputStream(BZip2CorruptBlockListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Sets the decoded dump, which reports its gaps to this stream.
+     */
+    void setInput(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Records the output offset of every page start tag, as told by the
+     * position of the decoder this stream reads from. Nothing else may
+     * buffer the decoded bytes in between.
+     */
+    void trackPageStarts(BZip2BlockPosition position) {
+        this.position = position;
+    }
+
+    /**
+     * @return output offset the oldest complete page not polled yet
+     *         starts at, or <tt>-1</tt> if there is none
+     */
+    long pollPageStart() {
+        Long start = pageStarts.poll();
+        return start == null ? -1 : start;
+    }
+
+    @Override
+    public void corruptBlock(long blockBitOffset, long nextBitOffset, long outputOffset, Throwable cause) {
+        gap = true;
+        listener.corruptBlock(blockBitOffset, nextBitOffset, outputOffset, cause);
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (pos == safe) {
+            if (eof) {
+                return -1;
+            }
+            fill();
+        }
+        int n = Math.min(len, safe - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            safe -= pos;
+            scan -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            grow(limit + 1);
+        }
+        int start = limit;
+        int read = in.read(buf, start, buf.length - start);
+        if (gap) {
+            gap = false;
+            start = dropIncompletePage(start, Math.max(read, 0));
+        }
+        if (read < 0) {
+            eof = true;
+            if (skipping) {
+                limit = scan;
+                append(MEDIAWIKI_END);
+            }
+            safe = limit;
+            return;
+        }
+        limit = start + read;
+        scanTags();
+    }
+
+    /**
+     * Drops the bytes following the last complete page, they end at a gap.
+     *
+     * @return the new position of the <tt>read</tt> bytes following the gap
+     */
+    private int dropIncompletePage(int start, int read) {
+        limit = start + read;
+        int keep = safe;
+        if (!headerDone) {
+            // nothing has been returned yet, the header is replaced
+            keep = MEDIAWIKI_START.length;
+            if (keep + read > buf.length) {
+                grow(keep + read);
+            }
+        }
+        System.arraycopy(buf, start, buf, keep, read);
+        if (!headerDone) {
+            System.arraycopy(MEDIAWIKI_START, 0, buf, 0, keep);
+            headerDone = true;
+        }
+        safe = keep;
+        scan = keep;
+        limit = keep;
+        inPage = false;
+        skipping = true;
+        return keep;
+    }
+
+    /**
+     * Moves {@link #safe} up to the last complete page or the last byte
+     * between pages.
+     */
+    private void scanTags() {
+        while (scan < limit) {
+            if (skipping && !skipToPage()) {
+                return;
+            }
+            if (buf[scan] == '<') {
+                if (limit - scan < PAGE_END.length) {
+                    // wait for the rest of the tag
+                    return;
+                }
+                if (matches(PAGE_START)) {
+                    if (position != null) {
+                        // the bytes from scan on are the last ones read
+                        pageStart = position.getOutputOffset() - (limit - scan);
+                    }
+                    safe = scan;
+                    headerDone = true;
+                    inPage = true;
+                    scan += PAGE_START.length;
+                    continue;
+                }
+                if (matches(PAGE_END)) {
+                    if (position != null && inPage) {
+                        pageStarts.add(pageStart);
+                    }
+                    inPage = false;
+                    scan += PAGE_END.length;
+                    safe = scan;
+                    continue;
+                }
+            }
+            scan++;
+            if (headerDone && !inPage) {
+                safe = scan;
+            }
+        }
+    }
+
+    /**
+     * Drops bytes up to the next page start tag.
+     *
+     * @return <tt>false</tt> if there is none yet
+     */
+    private boolean skipToPage() {
+        int i = scan;
+        while (i + PAGE_START.length <= limit) {
+            if (buf[i] == '<' && matchesAt(i, PAGE_START)) {
+                skipping = false;
+                break;
+            }
+            i++;
+        }
+        // keep what might be the start of a split tag
+        System.arraycopy(buf, i, buf, scan, limit - i);
+        limit -= i - scan;
+        return !skipping;
+    }
+
+    private boolean matches(byte[] tag) {
+        return matchesAt(scan, tag);
+    }
+
+    private boolean matchesAt(int at, byte[] tag) {
+        for (int i = 0; i < tag.length; i++) {
+            if (buf[at + i] != tag[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(byte[] bytes) {
+        if (limit + bytes.length > buf.length) {
+            grow(limit + bytes.length);
+        }
+        System.arraycopy(bytes, 0, buf, limit, bytes.length);
+        limit += bytes.length;
+    }
+
+    private void grow(int minLength) {
+        byte[] grown = new byte[Math.max(buf.length << 1, minLength)];
+        System.arraycopy(buf, 0, grown, 0, limit);
+        buf = grown;
+    }
+}
@@ -0,0 +1,678 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * An input stream that decompresses multi-member gzip files by inflating
+ * several members concurrently. Members are delivered in order.
+ * <p/>
+ * <p>The compressed stream is cut in front of every member header on the
+ * reading thread. Member offsets are taken from an index if one is given,
+ * otherwise every byte sequence looking like a member header is taken as
+ * one. Each cut out segment is inflated on the given executor, which only
+ * succeeds if the segment holds exactly one member with a matching CRC and
+ * size. Other segments, those cut in front of data looking like a header,
+ * members larger than {@link #MAX_SEGMENT_SIZE} and single-member files,
+ * are inflated on the reading thread, just like {@link java.util.zip.GZIPInputStream}
+ * would do. At most <tt>2 * parallelism</tt> segments are in flight.</p>
+ * <p/>
+ * <p>Like {@link java.util.zip.GZIPInputStream} this stream ends at
+ * trailing bytes which do not start with a member header.</p>
+ * <p/>
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class ParallelGZipInputStream extends InputStream {
+
+    /**
+     * Members up to this compressed size are inflated concurrently.
+     */
+    static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Members inflating to more than this are inflated on the reading
+     * thread, in constant memory.
+     */
+    static final int MAX_MEMBER_OUTPUT = 32 * 1024 * 1024;
+
+    private static final int READ_SIZE = 64 * 1024;
+
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 8;
+
+    /**
+     * Header, an empty deflate block and trailer.
+     */
+    private static final int MIN_MEMBER_LENGTH = HEADER_LENGTH + 2 + TRAILER_LENGTH;
+
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+
+    private final ExecutorService executor;
+    private final int maxPending;
+    private final long[] memberOffsets;
+    private final LinkedList<Segment> pending = new LinkedList<Segment>();
+
+    private InputStream in;
+
+    // compressed bytes not cut into segments yet
+    private byte[] buf = new byte[2 * READ_SIZE];
+    private int bufStart;
+    private int bufLimit;
+    private long bufOffset;
+    private boolean inputEnded;
+    private int nextMemberOffset;
+    private boolean nextMemberStart = true;
+
+    private byte[] current;
+    private int currentPos;
+    private int currentLimit;
+    private boolean ended;
+    private long members;
+
+    // inflating members on the reading thread
+    private boolean serial;
+    private Segment serialSegment;
+    private int serialPos;
+    private Inflater inflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] serialBuf = new byte[READ_SIZE];
+    private final SerialReader serialReader = new SerialReader();
+
+    /**
+     * Constructs a new ParallelGZipInputStream which finds member headers
+     * by their magic bytes.
+     *
+     * @param in          the compressed stream
+     * @param executor    the executor used to inflate members
+     * @param parallelism number of members to inflate concurrently
+     */
+    public ParallelGZipInputStream(InputStream in, ExecutorService executor, int parallelism) {
+        this(in, executor, parallelism, null);
+    }
+
+    /**
+     * Constructs a new ParallelGZipInputStream which cuts the compressed
+     * stream at the given member offsets.
+     *
+     * @param memberOffsets ascending offsets of the members, as read by
+     *                      {@link #readMemberOffsets(InputStream)}, or
+     *                      <tt>null</tt> to find members by their magic bytes
+     * @see #ParallelGZipInputStream(InputStream, ExecutorService, int)
+     */
+    public ParallelGZipInputStream(InputStream in, ExecutorService executor, int parallelism, long[] memberOffsets) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism(" + parallelism + ") < 1.");
+        }
+        this.in = in;
+        this.executor = executor;
+        this.maxPending = parallelism << 1;
+        this.memberOffsets = memberOffsets;
+    }
+
+    /**
+     * Reads a member index, one decimal offset per line. Blank lines are
+     * ignored.
+     *
+     * @return the offsets in ascending order
+     */
+    public static long[] readMemberOffsets(InputStream index) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(index, "UTF-8"));
+        long[] offsets = new long[64];
+        int count = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (count == offsets.length) {
+                    offsets = Arrays.copyOf(offsets, count << 1);
+                }
+                try {
+                    offsets[count++] = Long.parseLong(line);
+                } catch (NumberFormatException e) {
+                    throw new IOException("invalid member offset [" + line + "]");
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        offsets = Arrays.copyOf(offsets, count);
+        Arrays.sort(offsets);
+        return offsets;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (in == null) {
+            throw new IOException("stream closed");
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        return current[currentPos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] dest, int offs, int len) throws IOException {
+        if (offs < 0 || len < 0 || offs + len > dest.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (in == null) {
+            throw new IOException("stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureCurrent()) {
+            return -1;
+        }
+        int n = Math.min(len, currentLimit - currentPos);
+        System.arraycopy(current, currentPos, dest, offs, n);
+        currentPos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        InputStream inShadow = in;
+        if (inShadow != null) {
+            try {
+                for (Segment segment : pending) {
+                    if (segment.future != null) {
+                        segment.future.cancel(true);
+                    }
+                }
+                inShadow.close();
+            } finally {
+                if (inflater != null) {
+                    inflater.end();
+                    inflater = null;
+                }
+                pending.clear();
+                serialSegment = null;
+                current = null;
+                buf = null;
+                in = null;
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next inflated member or chunk if the current one is
+     * exhausted.
+     *
+     * @return <tt>false</tt> at the end of the stream
+     */
+    private boolean ensureCurrent() throws IOException {
+        while (current == null || currentPos == currentLimit) {
+            current = null;
+            if (ended) {
+                return false;
+            }
+            if (serial) {
+                inflateSerial();
+                continue;
+            }
+            fill();
+            Segment next = pending.poll();
+            if (next == null) {
+                ended = true;
+                continue;
+            }
+            Inflated inflated = next.future == null ? null : get(next.future);
+            if (inflated != null) {
+                members++;
+                current = inflated.data;
+                currentPos = 0;
+                currentLimit = inflated.length;
+            } else {
+                serial = true;
+                serialSegment = next;
+                serialPos = 0;
+            }
+        }
+        return true;
+    }
+
+    private static Inflated get(Future<Inflated> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while inflating member", e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to inflate member", e.getCause());
+        }
+    }
+
+    /**
+     * Cuts segments and hands those starting with a member to the executor
+     * until enough are in flight.
+     */
+    private void fill() throws IOException {
+        while (pending.size() < maxPending) {
+            Segment segment = nextSegment();
+            if (segment == null) {
+                return;
+            }
+            if (segment.memberStart) {
+                final Segment task = segment;
+                segment.future = executor.submit(new Callable<Inflated>() {
+                    @Override
+                    public Inflated call() {
+                        return inflateMember(task.data, task.length);
+                    }
+                });
+            }
+            pending.add(segment);
+        }
+    }
+
+    /**
+     * Inflates the next chunk of the current member on the reading thread,
+     * moving on to the following member at its end.
+     */
+    private void inflateSerial() throws IOException {
+        if (inflater == null) {
+            serialReader.reset();
+            boolean header;
+            try {
+                header = readHeader(serialReader);
+            } catch (IOException e) {
+                if (members == 0) {
+                    throw e;
+                }
+                header = false;
+            }
+            if (!header) {
+                if (members == 0) {
+                    throw new ZipException("not in gzip format");
+                }
+                // end of the stream, or trailing garbage
+                ended = true;
+                return;
+            }
+            inflater = new Inflater(true);
+            crc.reset();
+        }
+        try {
+            while (true) {
+                if (inflater.needsInput()) {
+                    if (serialPos == serialSegment.length && !nextSerialSegment()) {
+                        throw new EOFException("unexpected end of gzip member");
+                    }
+                    inflater.setInput(serialSegment.data, serialPos, serialSegment.length - serialPos);
+                    serialPos = serialSegment.length;
+                }
+                int n = inflater.inflate(serialBuf);
+                if (n > 0) {
+                    crc.update(serialBuf, 0, n);
+                    current = serialBuf;
+                    currentPos = 0;
+                    currentLimit = n;
+                    return;
+                }
+                if (inflater.finished()) {
+                    serialPos -= inflater.getRemaining();
+                    break;
+                }
+                if (inflater.needsDictionary()) {
+                    throw new ZipException("deflate stream with preset dictionary");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException(e.getMessage());
+        }
+
+        serialReader.reset();
+        long storedCRC = readInt(serialReader);
+        long storedSize = readInt(serialReader);
+        if (storedCRC != crc.getValue() || storedSize != (inflater.getBytesWritten() & 0xffffffffL)) {
+            throw new ZipException("corrupt gzip member");
+        }
+        inflater.end();
+        inflater = null;
+        members++;
+
+        if (serialPos == serialSegment.length) {
+            fill();
+            Segment next = pending.peek();
+            if (next == null || next.memberStart) {
+                // back to the members inflated by the executor
+                serial = false;
+                serialSegment = null;
+            }
+        }
+    }
+
+    /**
+     * Moves on to the next segment while inflating on the reading thread,
+     * any work done on it by the executor is useless.
+     *
+     * @return <tt>false</tt> at the end of the stream
+     */
+    private boolean nextSerialSegment() throws IOException {
+        fill();
+        Segment next = pending.poll();
+        if (next == null) {
+            return false;
+        }
+        if (next.future != null) {
+            next.future.cancel(true);
+        }
+        serialSegment = next;
+        serialPos = 0;
+        return true;
+    }
+
+    /**
+     * Reads the compressed bytes of the segment being inflated on the
+     * reading thread, and of the following ones.
+     */
+    private class SerialReader extends ByteReader {
+
+        private boolean eof;
+
+        void reset() {
+            eof = false;
+        }
+
+        @Override
+        int read() throws IOException {
+            if (eof) {
+                return -1;
+            }
+            if (serialPos == serialSegment.length && !nextSerialSegment()) {
+                eof = true;
+                return -1;
+            }
+            return serialSegment.data[serialPos++] & 0xff;
+        }
+    }
+
+    /**
+     * @return the next segment of the compressed stream, or <tt>null</tt>
+     *         at its end
+     */
+    private Segment nextSegment() throws IOException {
+        int scanFrom = bufStart + MIN_MEMBER_LENGTH;
+        while (true) {
+            int cut = findMemberStart(scanFrom);
+            if (cut >= 0) {
+                return cut(cut, true);
+            }
+            if (bufLimit - bufStart >= MAX_SEGMENT_SIZE) {
+                return cut(bufStart + MAX_SEGMENT_SIZE, false);
+            }
+            if (inputEnded) {
+                return bufLimit == bufStart ? null : cut(bufLimit, false);
+            }
+            // a header might start within the last few bytes
+            scanFrom = Math.max(scanFrom, bufLimit - HEADER_LENGTH + 1) - bufStart;
+            readInput();
+            scanFrom += bufStart;
+        }
+    }
+
+    /**
+     * @return index of the next member start in {@link #buf} at or after
+     *         <tt>from</tt>, or <tt>-1</tt> if there is none within the
+     *         buffered bytes
+     */
+    private int findMemberStart(int from) {
+        int end = Math.min(bufLimit, bufStart + MAX_SEGMENT_SIZE);
+        if (memberOffsets != null) {
+            while (nextMemberOffset < memberOffsets.length && memberOffsets[nextMemberOffset] <= bufOffset + bufStart) {
+                nextMemberOffset++;
+            }
+            if (nextMemberOffset < memberOffsets.length && memberOffsets[nextMemberOffset] - bufOffset <= end) {
+                return (int) (memberOffsets[nextMemberOffset] - bufOffset);
+            }
+            return -1;
+        }
+        byte[] b = buf;
+        for (int i = from, last = end - HEADER_LENGTH; i <= last; i++) {
+            if (b[i] == 0x1f && b[i + 1] == (byte) 0x8b && b[i + 2] == 8 && (b[i + 3] & 0xe0) == 0
+                    && (b[i + 8] == 0 || b[i + 8] == 2 || b[i + 8] == 4) && ((b[i + 9] & 0xff) <= 13 || b[i + 9] == -1)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Segment cut(int end, boolean memberStartsAtEnd) {
+        int length = end - bufStart;
+        byte[] data = new byte[length];
+        System.arraycopy(buf, bufStart, data, 0, length);
+        Segment segment = new Segment(data, length, nextMemberStart);
+        nextMemberStart = memberStartsAtEnd;
+        bufStart = end;
+        return segment;
+    }
+
+    private void readInput() throws IOException {
+        if (bufLimit == buf.length) {
+            if (bufStart > 0) {
+                System.arraycopy(buf, bufStart, buf, 0, bufLimit - bufStart);
+                bufOffset += bufStart;
+                bufLimit -= bufStart;
+                bufStart = 0;
+            }
+            if (bufLimit + READ_SIZE > buf.length) {
+                buf = Arrays.copyOf(buf, Math.min(buf.length << 1, MAX_SEGMENT_SIZE + READ_SIZE));
+            }
+        }
+        int read = in.read(buf, bufLimit, buf.length - bufLimit);
+        if (read < 0) {
+            inputEnded = true;
+        } else {
+            bufLimit += read;
+        }
+    }
+
+    /**
+     * Inflates a segment which should hold exactly one member.
+     *
+     * @return the inflated member, or <tt>null</tt> if the segment does
+     *         not hold exactly one member or it is too large
+     */
+    static Inflated inflateMember(byte[] data, int length) {
+        ArrayReader reader = new ArrayReader(data, length);
+        try {
+            if (!readHeader(reader) || length - reader.pos < TRAILER_LENGTH) {
+                return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        int trailer = length - TRAILER_LENGTH;
+        long storedCRC = readIntLE(data, trailer);
+        long storedSize = readIntLE(data, trailer + 4);
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data, reader.pos, length - reader.pos);
+            byte[] out = new byte[(int) Math.max(1024, Math.min(storedSize, MAX_MEMBER_OUTPUT))];
+            int n = 0;
+            while (!inflater.finished()) {
+                if (n == out.length) {
+                    if (out.length >= MAX_MEMBER_OUTPUT) {
+                        return null;
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length << 1, MAX_MEMBER_OUTPUT));
+                }
+                int inflated = inflater.inflate(out, n, out.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+                n += inflated;
+            }
+            if (inflater.getRemaining() != TRAILER_LENGTH || storedSize != n) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(out, 0, n);
+            return crc.getValue() == storedCRC ? new Inflated(out, n) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Reads a member header up to the deflate stream.
+     *
+     * @return <tt>false</tt> if there are no more bytes or they do not
+     *         start with the gzip magic
+     * @throws IOException if the header is truncated or not supported
+     */
+    static boolean readHeader(ByteReader in) throws IOException {
+        int id1 = in.read();
+        if (id1 < 0) {
+            return false;
+        }
+        if (id1 != 0x1f || in.read() != 0x8b) {
+            return false;
+        }
+        if (in.read() != 8) {
+            throw new ZipException("unsupported compression method");
+        }
+        int flags = readByte(in);
+        for (int i = 0; i < 6; i++) {
+            // modification time, extra flags, operating system
+            readByte(in);
+        }
+        if ((flags & FEXTRA) != 0) {
+            int length = readByte(in) | (readByte(in) << 8);
+            for (int i = 0; i < length; i++) {
+                readByte(in);
+            }
+        }
+        if ((flags & FNAME) != 0) {
+            while (readByte(in) != 0) {
+            }
+        }
+        if ((flags & FCOMMENT) != 0) {
+            while (readByte(in) != 0) {
+            }
+        }
+        if ((flags & FHCRC) != 0) {
+            readByte(in);
+            readByte(in);
+        }
+        return true;
+    }
+
+    private static int readByte(ByteReader in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("unexpected end of gzip header");
+        }
+        return b;
+    }
+
+    private static long readInt(ByteReader in) throws IOException {
+        return readByte(in) | (readByte(in) << 8) | (readByte(in) << 16) | ((long) readByte(in) << 24);
+    }
+
+    private static long readIntLE(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16)
+                | ((long) (b[off + 3] & 0xff) << 24);
+    }
+
+    abstract static class ByteReader {
+
+        /**
+         * @return the next byte, or <tt>-1</tt> at the end
+         */
+        abstract int read() throws IOException;
+    }
+
+    private static final class ArrayReader extends ByteReader {
+
+        private final byte[] data;
+        private final int length;
+        private int pos;
+
+        ArrayReader(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        int read() {
+            return pos < length ? data[pos++] & 0xff : -1;
+        }
+    }
+
+    /**
+     * Compressed bytes between two cuts.
+     */
+    private static final class Segment {
+
+        final byte[] data;
+        final int length;
+
+        /**
+         * Whether the segment should start with a member header, only those
+         * are handed to the executor.
+         */
+        final boolean memberStart;
+
+        Future<Inflated> future;
+
+        Segment(byte[] data, int length, boolean memberStart) {
+            this.data = data;
+            this.length = length;
+            this.memberStart = memberStart;
+        }
+    }
+
+    static final class Inflated {
+
+        final byte[] data;
+        final int length;
+
+        Inflated(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
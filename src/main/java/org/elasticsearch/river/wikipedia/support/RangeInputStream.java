@@ -0,0 +1,135 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads the given byte ranges of a URL one after the other. HTTP sources
+ * are asked for each range with a <tt>Range</tt> header, for other sources
+ * (and servers ignoring the header) the bytes in front of a range are
+ * skipped, which is a seek for local files.
+ */
+class RangeInputStream extends InputStream {
+
+    private final URL url;
+    private final Iterator<MultistreamIndex.Range> ranges;
+
+    private InputStream current;
+    private long remaining;
+
+    RangeInputStream(URL url, List<MultistreamIndex.Range> ranges) {
+        this.url = url;
+        this.ranges = ranges.iterator();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int read = read(b, 0, 1);
+        return read < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (current == null || remaining == 0) {
+            if (!nextRange()) {
+                return -1;
+            }
+        }
+        int read = current.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+        if (read < 0) {
+            if (remaining > 0) {
+                throw new IOException("unexpected end of [" + url + "] with " + remaining + " bytes of the range left");
+            }
+            remaining = 0;
+            return read(b, off, len);
+        }
+        if (remaining > 0) {
+            remaining -= read;
+        }
+        return read;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+    }
+
+    private boolean nextRange() throws IOException {
+        close();
+        if (!ranges.hasNext()) {
+            return false;
+        }
+        MultistreamIndex.Range range = ranges.next();
+        current = open(url, range.getStart(), range.getEnd());
+        remaining = range.getEnd() < 0 ? -1 : range.getEnd() - range.getStart();
+        return true;
+    }
+
+    /**
+     * Opens <tt>url</tt> positioned at <tt>start</tt>.
+     *
+     * @param end end of the range or <tt>-1</tt> to read to the end
+     */
+    static InputStream open(URL url, long start, long end) throws IOException {
+        URLConnection connection = url.openConnection();
+        boolean ranged = false;
+        if (connection instanceof HttpURLConnection) {
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + (end < 0 ? "" : String.valueOf(end - 1)));
+            ranged = ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+        }
+        InputStream in = connection.getInputStream();
+        if (!ranged) {
+            skipTo(url, in, start);
+        }
+        return in;
+    }
+
+    /**
+     * Skips the first <tt>start</tt> bytes of <tt>in</tt>, closing it if it
+     * ends before.
+     */
+    static void skipTo(URL url, InputStream in, long start) throws IOException {
+        long skip = start;
+        while (skip > 0) {
+            long skipped = in.skip(skip);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    in.close();
+                    throw new IOException("[" + url + "] ends before offset " + start);
+                }
+                skipped = 1;
+            }
+            skip -= skipped;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An input stream reading ahead of its consumer on another thread, so
+ * waiting for the network overlaps with decoding.
+ * <p/>
+ * <p>The reading task fills a bounded ring of buffers from the wrapped
+ * stream and this stream hands them out in order. A buffer is passed on
+ * as soon as it is full or the wrapped stream has nothing more available,
+ * so a stalled connection does not hold back bytes already received. Once
+ * all buffers are filled the reading task waits for the consumer.</p>
+ * <p/>
+ * <p>Instances of this class are not threadsafe.</p>
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    /**
+     * Size of the buffers the river reads ahead with.
+     */
+    public static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final class Chunk {
+
+        final byte[] buffer;
+        int length;
+
+        Chunk(int size) {
+            buffer = new byte[size];
+        }
+    }
+
+    /**
+     * Queued after the last chunk, or after a failure. Once reached, every
+     * read throws the failure again.
+     */
+    private static final Chunk END = new Chunk(0);
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> filled;
+    private final BlockingQueue<Chunk> free;
+    private final Future<?> reader;
+
+    private volatile IOException failure;
+
+    private Chunk current;
+    private int position;
+    private boolean closed;
+
+    /**
+     * @param in         the stream to read ahead of
+     * @param executor   executor running the reading task
+     * @param bufferSize size of each buffer
+     * @param buffers    number of buffers, at least <tt>2</tt>
+     */
+    public ReadAheadInputStream(InputStream in, ExecutorService executor, int bufferSize, int buffers) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("bufferSize(" + bufferSize + ") < 1");
+        }
+        if (buffers < 2) {
+            throw new IllegalArgumentException("buffers(" + buffers + ") < 2");
+        }
+        this.in = in;
+        // one more slot than buffers for the end marker
+        this.filled = new ArrayBlockingQueue<Chunk>(buffers + 1);
+        this.free = new ArrayBlockingQueue<Chunk>(buffers);
+        for (int i = 0; i < buffers; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+        this.reader = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        });
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                Chunk chunk = free.take();
+                chunk.length = 0;
+                byte[] buffer = chunk.buffer;
+                int read = 0;
+                while (chunk.length < buffer.length && (chunk.length == 0 || in.available() > 0)) {
+                    read = in.read(buffer, chunk.length, buffer.length - chunk.length);
+                    if (read < 0) {
+                        break;
+                    }
+                    chunk.length += read;
+                }
+                if (chunk.length > 0) {
+                    filled.put(chunk);
+                }
+                if (read < 0) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (IOException e) {
+            failure = e;
+        } catch (Throwable t) {
+            failure = new IOException("failed to read ahead", t);
+        } finally {
+            // there is always a slot left for the end marker
+            filled.add(END);
+        }
+    }
+
+    /**
+     * @return the next chunk, or <tt>null</tt> at the end of the stream
+     */
+    private Chunk next() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (current == END) {
+            return end();
+        }
+        if (current != null && position < current.length) {
+            return current;
+        }
+        if (current != null) {
+            free.add(current);
+        }
+        try {
+            current = filled.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for input");
+        }
+        position = 0;
+        if (current == END) {
+            return end();
+        }
+        return current;
+    }
+
+    private Chunk end() throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        return null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Chunk chunk = next();
+        return chunk == null ? -1 : chunk.buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Chunk chunk = next();
+        if (chunk == null) {
+            return -1;
+        }
+        int n = Math.min(len, chunk.length - position);
+        System.arraycopy(chunk.buffer, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    /**
+     * Counts the bytes of the current buffer, or of the next one. Until the
+     * end of the stream is reached at least one byte is reported, {@link
+     * java.util.zip.GZIPInputStream} would otherwise take a slow connection
+     * for the end of a multi-member file.
+     */
+    @Override
+    public int available() throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (current == END) {
+            return 0;
+        }
+        if (current != null && position < current.length) {
+            return current.length - position;
+        }
+        Chunk next = filled.peek();
+        if (next == END) {
+            return 0;
+        }
+        return next == null ? 1 : next.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.cancel(true);
+        // unblocks a reading task waiting for the network
+        in.close();
+    }
+}
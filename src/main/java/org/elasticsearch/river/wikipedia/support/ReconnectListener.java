@@ -0,0 +1,42 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * Receives the reconnects of a remote dump read with a
+ * {@link ReconnectPolicy}.
+ * <p/>
+ * <p>Listeners are called on the thread reading the dump, before it waits
+ * for the next attempt.</p>
+ */
+public interface ReconnectListener {
+
+    /**
+     * @param url     the dump
+     * @param offset  compressed byte offset the dump is read again from
+     * @param attempt number of the attempt, counted from <tt>1</tt> since
+     *                the last byte read
+     * @param cause   the failure of the connection
+     */
+    void reconnecting(URL url, long offset, int attempt, IOException cause);
+}
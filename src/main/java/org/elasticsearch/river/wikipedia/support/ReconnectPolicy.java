@@ -0,0 +1,62 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+/**
+ * How often and how fast a remote dump is reconnected to after the
+ * connection failed while reading it.
+ */
+public class ReconnectPolicy {
+
+    private final int maxAttempts;
+    private final long delayMillis;
+    private final ReconnectListener listener;
+
+    /**
+     * @param maxAttempts attempts to reconnect since the last byte read
+     *                    before the failure is passed on
+     * @param delayMillis wait before the first attempt, the <tt>n</tt>th
+     *                    attempt waits <tt>n</tt> times as long
+     * @param listener    listener to report reconnects to, or <tt>null</tt>
+     */
+    public ReconnectPolicy(int maxAttempts, long delayMillis, ReconnectListener listener) {
+        if (maxAttempts < 0) {
+            throw new IllegalArgumentException("maxAttempts(" + maxAttempts + ") < 0");
+        }
+        if (delayMillis < 0) {
+            throw new IllegalArgumentException("delayMillis(" + delayMillis + ") < 0");
+        }
+        this.maxAttempts = maxAttempts;
+        this.delayMillis = delayMillis;
+        this.listener = listener;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    public ReconnectListener getListener() {
+        return listener;
+    }
+}
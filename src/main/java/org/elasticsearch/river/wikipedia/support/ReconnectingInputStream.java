@@ -0,0 +1,168 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Reads a remote dump, reconnecting with a <tt>Range</tt> request for the
+ * bytes not read yet whenever the connection fails. Not a single byte is
+ * lost or read twice, so the decoder reading the dump does not notice.
+ * <p/>
+ * <p>A connection ending before the length announced by the server is
+ * taken as a failure as well. Servers ignoring the <tt>Range</tt> header
+ * send the whole dump again, the bytes read already are skipped.</p>
+ */
+class ReconnectingInputStream extends InputStream {
+
+    private final URL url;
+    private final ReconnectPolicy policy;
+
+    private InputStream in;
+    private long offset;
+
+    /**
+     * Length of the dump, or <tt>-1</tt> if the server does not tell.
+     */
+    private long length = -1;
+    private int attempts;
+    private volatile boolean closed;
+
+    /**
+     * Connects to <tt>url</tt>, positioned at <tt>offset</tt>. Failing to
+     * connect is not retried.
+     */
+    ReconnectingInputStream(URL url, long offset, ReconnectPolicy policy) throws IOException {
+        this.url = url;
+        this.offset = offset;
+        this.policy = policy;
+        connect();
+    }
+
+    /**
+     * Takes over an established connection, positioned at <tt>offset</tt>.
+     *
+     * @param length length of the dump, or <tt>-1</tt> if unknown
+     */
+    ReconnectingInputStream(URL url, InputStream in, long offset, long length, ReconnectPolicy policy) {
+        this.url = url;
+        this.in = in;
+        this.offset = offset;
+        this.length = length;
+        this.policy = policy;
+    }
+
+    private void connect() throws IOException {
+        URLConnection connection = url.openConnection();
+        boolean ranged = false;
+        if (connection instanceof HttpURLConnection) {
+            if (offset > 0) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+            ranged = ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL;
+            String total = ranged ? connection.getHeaderField("Content-Range") : connection.getHeaderField("Content-Length");
+            if (total != null) {
+                try {
+                    // "bytes <first>-<last>/<length>" for a range
+                    length = Long.parseLong(total.substring(total.lastIndexOf('/') + 1).trim());
+                } catch (NumberFormatException e) {
+                    // "*" for an unknown length
+                }
+            }
+        }
+        InputStream stream = connection.getInputStream();
+        if (!ranged) {
+            RangeInputStream.skipTo(url, stream, offset);
+        }
+        in = stream;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        while (true) {
+            try {
+                if (in == null) {
+                    connect();
+                }
+                int read = in.read(b, off, len);
+                if (read < 0 && length >= 0 && offset < length) {
+                    throw new IOException("connection closed after " + offset + " of " + length + " bytes");
+                }
+                if (read > 0) {
+                    offset += read;
+                    attempts = 0;
+                }
+                return read;
+            } catch (IOException e) {
+                if (closed || attempts >= policy.getMaxAttempts()) {
+                    throw e;
+                }
+                attempts++;
+                disconnect();
+                if (policy.getListener() != null) {
+                    policy.getListener().reconnecting(url, offset, attempts, e);
+                }
+                try {
+                    Thread.sleep(policy.getDelayMillis() * attempts);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while reconnecting to [" + url + "]");
+                }
+            }
+        }
+    }
+
+    private void disconnect() {
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // the connection failed anyway
+            }
+            in = null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (in != null) {
+            in.close();
+            in = null;
+        }
+    }
+}
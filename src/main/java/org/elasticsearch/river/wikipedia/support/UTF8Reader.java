@@ -0,0 +1,211 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Decodes UTF-8 from a stream straight into the buffer of the caller.
+ * <p/>
+ * <p>Bytes are read in large chunks and runs of ASCII, most of the markup
+ * of a dump, are copied by a plain loop. Other characters are decoded
+ * inline. No {@link java.nio.charset.CharsetDecoder} and no intermediate
+ * <tt>char[]</tt> are involved, so a SAX parser reading from this reader
+ * gets its characters with a single copy from the decoded dump.</p>
+ * <p/>
+ * <p>Malformed input is replaced the way {@link java.io.InputStreamReader}
+ * does: every maximal invalid subsequence becomes one <tt>U+FFFD</tt>.</p>
+ */
+public class UTF8Reader extends Reader {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+    private boolean eof;
+
+    /**
+     * Second half of a surrogate pair which did not fit the caller's buffer,
+     * <tt>0</tt> if none.
+     */
+    private char pendingLowSurrogate;
+
+    public UTF8Reader(InputStream in) {
+        this(in, BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize size of the byte buffer, at least <tt>4</tt> to hold
+     *                   any encoded character
+     */
+    public UTF8Reader(InputStream in, int bufferSize) {
+        if (bufferSize < 4) {
+            throw new IllegalArgumentException("bufferSize(" + bufferSize + ") < 4.");
+        }
+        this.in = in;
+        this.buffer = new byte[bufferSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        char[] c = new char[1];
+        return read(c, 0, 1) == -1 ? -1 : c[0];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > cbuf.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int start = off;
+        int end = off + len;
+        if (pendingLowSurrogate != 0) {
+            cbuf[off++] = pendingLowSurrogate;
+            pendingLowSurrogate = 0;
+        }
+        while (true) {
+            off = decode(cbuf, off, end);
+            if (off > start) {
+                return off - start;
+            }
+            if (eof) {
+                return -1;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Moves the bytes left to the front of the buffer and reads more.
+     */
+    private void fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        int read;
+        do {
+            read = in.read(buffer, limit, buffer.length - limit);
+        } while (read == 0);
+        if (read < 0) {
+            eof = true;
+        } else {
+            limit += read;
+        }
+    }
+
+    /**
+     * Decodes the buffered bytes into <tt>cbuf</tt>, up to a character
+     * which is not completely buffered yet.
+     *
+     * @return the offset in <tt>cbuf</tt> after the last character
+     */
+    private int decode(char[] cbuf, int off, int end) {
+        final byte[] b = buffer;
+        final int l = limit;
+        int p = position;
+        while (off < end && p < l) {
+            // ASCII fast path
+            int stop = p + Math.min(end - off, l - p);
+            while (p < stop && b[p] >= 0) {
+                cbuf[off++] = (char) b[p++];
+            }
+            if (p == stop) {
+                continue;
+            }
+
+            int b1 = b[p] & 0xff;
+            if (b1 < 0xc2 || b1 > 0xf4) {
+                // continuation byte, overlong 2 byte lead or beyond U+10FFFF
+                cbuf[off++] = REPLACEMENT;
+                p++;
+                continue;
+            }
+            int length = b1 < 0xe0 ? 2 : b1 < 0xf0 ? 3 : 4;
+            if (p + length > l && !eof) {
+                break;
+            }
+
+            // the second byte excludes overlong forms and code points beyond U+10FFFF
+            int min = b1 == 0xe0 ? 0xa0 : b1 == 0xf0 ? 0x90 : 0x80;
+            int max = b1 == 0xf4 ? 0x8f : 0xbf;
+            int b2 = p + 1 < l ? b[p + 1] & 0xff : -1;
+            if (b2 < min || b2 > max) {
+                cbuf[off++] = REPLACEMENT;
+                p++;
+                continue;
+            }
+            if (length == 2) {
+                cbuf[off++] = (char) (((b1 & 0x1f) << 6) | (b2 & 0x3f));
+                p += 2;
+                continue;
+            }
+            int b3 = p + 2 < l ? b[p + 2] & 0xff : -1;
+            if ((b3 & 0xc0) != 0x80) {
+                cbuf[off++] = REPLACEMENT;
+                p += 2;
+                continue;
+            }
+            if (length == 3) {
+                char c = (char) (((b1 & 0x0f) << 12) | ((b2 & 0x3f) << 6) | (b3 & 0x3f));
+                // an encoded surrogate is replaced as a whole, like the JDK decoder does
+                cbuf[off++] = c >= 0xd800 && c <= 0xdfff ? REPLACEMENT : c;
+                p += 3;
+                continue;
+            }
+            int b4 = p + 3 < l ? b[p + 3] & 0xff : -1;
+            if ((b4 & 0xc0) != 0x80) {
+                cbuf[off++] = REPLACEMENT;
+                p += 3;
+                continue;
+            }
+            int codePoint = ((b1 & 0x07) << 18) | ((b2 & 0x3f) << 12) | ((b3 & 0x3f) << 6) | (b4 & 0x3f);
+            cbuf[off++] = (char) (0xd7c0 + (codePoint >>> 10));
+            char low = (char) (0xdc00 + (codePoint & 0x3ff));
+            if (off < end) {
+                cbuf[off++] = low;
+            } else {
+                pendingLowSurrogate = low;
+            }
+            p += 4;
+        }
+        position = p;
+        return off;
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        return pendingLowSurrogate != 0 || position < limit || in.available() > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Selects pages by an inclusive page id range and/or a list of titles.
+ * A page is accepted if it matches any of the given criteria.
+ */
+public class WikiPageFilter {
+
+    private final long fromId;
+    private final long toId;
+    private final Set<String> titles;
+
+    /**
+     * @param fromId first page id to accept, <tt>-1</tt> for no lower bound
+     * @param toId   last page id to accept, <tt>-1</tt> for no upper bound
+     * @param titles titles to accept, may be <tt>null</tt>
+     */
+    public WikiPageFilter(long fromId, long toId, Collection<String> titles) {
+        this.fromId = fromId;
+        this.toId = toId;
+        this.titles = titles == null ? null : new HashSet<String>(titles);
+    }
+
+    /**
+     * @return <tt>true</tt> if this filter selects by page id
+     */
+    public boolean hasIdRange() {
+        return fromId >= 0 || toId >= 0;
+    }
+
+    public boolean accept(long id, String title) {
+        if (hasIdRange() && id >= 0 && id >= fromId && (toId < 0 || id <= toId)) {
+            return true;
+        }
+        return titles != null && titles.contains(title);
+    }
+
+    public boolean accept(WikiPage page) {
+        long id;
+        try {
+            id = Long.parseLong(page.getID().trim());
+        } catch (NumberFormatException e) {
+            id = -1;
+        }
+        return accept(id, page.getTitle().trim());
+    }
+
+    /**
+     * Pages are ordered by id in the dumps.
+     *
+     * @return <tt>true</tt> if no page with an id of <tt>id</tt> or
+     *         larger can be accepted
+     */
+    public boolean isExhausted(long id) {
+        return titles == null && toId >= 0 && id > toId;
+    }
+}
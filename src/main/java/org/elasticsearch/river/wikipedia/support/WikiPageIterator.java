@@ -19,10 +19,12 @@
 
 package org.elasticsearch.river.wikipedia.support;
 
+import java.io.IOException;
 import java.util.Vector;
 
 /**
  * A class to iterate the pages after the wikipedia XML file has been parsed with {@link WikiXMLDOMParser}.
+ * Subclasses may read the pages lazily instead, see {@link WikiXMLStAXParser}.
  *
  * @author Delip Rao
  * @see WikiXMLDOMParser
@@ -33,6 +35,12 @@ public class WikiPageIterator {
     private int lastPage = 0;
     Vector<WikiPage> pageList = null;
 
+    /**
+     * For subclasses producing the pages themselves.
+     */
+    protected WikiPageIterator() {
+    }
+
     public WikiPageIterator(Vector<WikiPage> list) {
         pageList = list;
         if (pageList != null)
@@ -63,4 +71,13 @@ public class WikiPageIterator {
             return pageList.elementAt(currentPage++);
         return null;
     }
+
+    /**
+     * Releases what the iterator reads the pages from. Iterating over a
+     * list holds nothing to release.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+    }
 }
@@ -19,14 +19,27 @@
 
 package org.elasticsearch.river.wikipedia.support;
 
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CRCCheck;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CorruptBlockListener;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DataPool;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DecoderOptions;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2DecoderStats;
 import org.elasticsearch.river.wikipedia.bzip2.CBZip2InputStream;
+import org.elasticsearch.river.wikipedia.bzip2.ParallelCBZip2InputStream;
 import org.xml.sax.InputSource;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
 import java.net.URL;
-import java.util.zip.GZIPInputStream;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
 
 /**
  * @author Delip Rao
@@ -37,6 +50,36 @@ public abstract class WikiXMLParser {
     private URL wikiXMLFile = null;
     protected WikiPage currentPage = null;
 
+    private ExecutorService decoderExecutor = null;
+    private int decoderThreads = 1;
+    private BZip2DataPool decoderPool = null;
+    private BZip2CRCCheck crcCheck = BZip2CRCCheck.VERIFY;
+    private BZip2CorruptBlockListener corruptBlockListener = null;
+    private BZip2DecoderStats decoderStats = null;
+
+    private List<DumpCodec> codecs = DumpCodecs.defaults();
+
+    private URL gzipMemberIndex = null;
+
+    private ExecutorService readAheadExecutor = null;
+    private int readAheadBuffers;
+
+    private DumpCache dumpCache = null;
+
+    private ReconnectPolicy reconnectPolicy = null;
+
+    private DumpProgress progress = null;
+
+    private List<MultistreamIndex.Range> streamRanges = null;
+
+    private long resumeBitOffset = -1;
+    private int resumeBlockSize100k;
+    private BZip2BlockPosition blockPosition = null;
+
+    private boolean trackPageOffsets = false;
+    private PageResyncInputStream pageStarts = null;
+    private long pageOffset = -1;
+
     public WikiXMLParser(URL fileName) {
         wikiXMLFile = fileName;
     }
@@ -64,25 +107,383 @@ public abstract class WikiXMLParser {
      */
     public abstract WikiPageIterator getIterator() throws Exception;
 
+    /**
+     * Decode bzip2 compressed dumps and the members of gzip compressed
+     * dumps on several threads. By default the dump is decoded on the
+     * parsing thread.
+     *
+     * @param executor executor running the block decoders
+     * @param threads  number of blocks to decode concurrently
+     */
+    public void setDecoderExecutor(ExecutorService executor, int threads) {
+        decoderExecutor = executor;
+        decoderThreads = threads;
+    }
+
+    /**
+     * Borrow the buffers of the bzip2 decoders from a pool instead of
+     * allocating them.
+     */
+    public void setDecoderPool(BZip2DataPool pool) {
+        decoderPool = pool;
+    }
+
+    /**
+     * Verify the block CRCs of bzip2 compressed dumps as given, by default
+     * they are verified on the decoding thread.
+     */
+    public void setCRCCheck(BZip2CRCCheck crcCheck) {
+        this.crcCheck = crcCheck;
+    }
+
+    /**
+     * Skip corrupt blocks of bzip2 compressed dumps instead of failing.
+     * Pages overlapping a dropped block are skipped as well, parsing
+     * continues with the next page.
+     *
+     * @param listener listener to report dropped blocks to
+     */
+    public void setCorruptBlockListener(BZip2CorruptBlockListener listener) {
+        corruptBlockListener = listener;
+    }
+
+    /**
+     * Count compressed and decoded bytes, blocks and decoding times of
+     * bzip2 compressed dumps.
+     */
+    public void setDecoderStats(BZip2DecoderStats stats) {
+        decoderStats = stats;
+    }
+
+    /**
+     * Decode the dump with the first of <tt>codecs</tt> recognizing it, by
+     * default with one of {@link DumpCodecs#defaults()}. The decoder
+     * settings, stream ranges and resume position only apply to
+     * {@link DumpCodecs#BZIP2}.
+     */
+    public void setCodecs(List<DumpCodec> codecs) {
+        this.codecs = codecs;
+    }
+
+    /**
+     * Cut gzip compressed dumps into members at the offsets listed in the
+     * given index, one per line, instead of searching for member headers.
+     * Only used if members are decoded on several threads.
+     */
+    public void setGZipMemberIndex(URL index) {
+        gzipMemberIndex = index;
+    }
+
+    /**
+     * Read remote dumps ahead of decoding on another thread, into the given
+     * number of buffers of {@link ReadAheadInputStream#BUFFER_SIZE}. Local
+     * dumps are memory mapped and not read ahead.
+     *
+     * @param executor executor running the reading task
+     * @param buffers  number of buffers, at least <tt>2</tt>
+     */
+    public void setReadAhead(ExecutorService executor, int buffers) {
+        readAheadExecutor = executor;
+        readAheadBuffers = buffers;
+    }
+
+    /**
+     * Download the remote dump to the given cache while parsing it. Not
+     * used for stream ranges.
+     */
+    public void setDumpCache(DumpCache cache) {
+        dumpCache = cache;
+    }
+
+    /**
+     * Reconnect to a remote dump as given if the connection fails while
+     * reading it, continuing at the first byte not read yet. Not used for
+     * stream ranges.
+     */
+    public void setReconnectPolicy(ReconnectPolicy policy) {
+        reconnectPolicy = policy;
+    }
+
+    /**
+     * Track the position in the dump while parsing. The size of the dump is
+     * looked up unless it is set already. Only the position is tracked for
+     * stream ranges.
+     */
+    public void setProgress(DumpProgress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Only read the given streams of a bzip2 compressed multistream dump.
+     *
+     * @param ranges stream ranges as selected by
+     *               {@link MultistreamIndex#select(URL, WikiPageFilter)}
+     */
+    public void setStreamRanges(List<MultistreamIndex.Range> ranges) {
+        streamRanges = ranges;
+    }
+
+    /**
+     * Start parsing a bzip2 compressed dump at a block boundary instead of
+     * the beginning. Parsing starts with the first page beginning within
+     * that block. Not supported together with stream ranges.
+     *
+     * @param blockBitOffset compressed bit offset of the block, as reported
+     *                       by {@link #getBlockPosition()}
+     * @param blockSize100k  block size of the stream containing the block
+     */
+    public void setResumePosition(long blockBitOffset, int blockSize100k) {
+        resumeBitOffset = blockBitOffset;
+        resumeBlockSize100k = blockSize100k;
+    }
+
+    /**
+     * @return the position of the bzip2 decoder while parsing, or
+     *         <tt>null</tt> if the dump is not bzip2 compressed
+     */
+    public BZip2BlockPosition getBlockPosition() {
+        return blockPosition;
+    }
+
+    /**
+     * Track the decoded output offset of each page of a bzip2 compressed
+     * dump, see {@link #getPageOffset()}. The bytes of a page are handed to
+     * the XML parser once its end tag has been decoded.
+     */
+    public void setTrackPageOffsets(boolean track) {
+        trackPageOffsets = track;
+    }
+
+    /**
+     * @return decoded output offset of the <tt>&lt;page&gt;</tt> start tag
+     *         of the page last read, in the terms of
+     *         {@link #getBlockPosition()}, or <tt>-1</tt> if not tracked
+     */
+    public long getPageOffset() {
+        return pageOffset;
+    }
+
+    /**
+     * Called by the parsers for every page read, before it is passed on.
+     */
+    protected void pageRead() {
+        if (pageStarts != null) {
+            pageOffset = pageStarts.pollPageStart();
+        }
+    }
+
     /**
      * @return An InputSource created from wikiXMLFile
      * @throws Exception
      */
     protected InputSource getInputSource() throws Exception {
-        BufferedReader br = null;
-
-        if (wikiXMLFile.toExternalForm().endsWith(".gz")) {
-            br = new BufferedReader(new InputStreamReader(new GZIPInputStream(wikiXMLFile.openStream()), "UTF-8"));
-        } else if (wikiXMLFile.toExternalForm().endsWith(".bz2")) {
-            InputStream fis = wikiXMLFile.openStream();
-            byte[] ignoreBytes = new byte[2];
-            fis.read(ignoreBytes); //"B", "Z" bytes from commandline tools
-            br = new BufferedReader(new InputStreamReader(new CBZip2InputStream(fis), "UTF-8"));
+        Reader reader;
+
+        DumpCodec codec = detectCodec();
+        if (progress != null && progress.getSize() < 0 && streamRanges == null) {
+            try {
+                progress.setSize(DumpProgress.size(wikiXMLFile));
+            } catch (IOException e) {
+                // reading the dump will tell
+            }
+        }
+        if (codec == DumpCodecs.GZIP && decoderExecutor != null) {
+            long[] memberOffsets = null;
+            if (gzipMemberIndex != null) {
+                memberOffsets = ParallelGZipInputStream.readMemberOffsets(gzipMemberIndex.openStream());
+            }
+            InputStream gzip = new ParallelGZipInputStream(track(openStream(), 0), decoderExecutor, decoderThreads,
+                    memberOffsets);
+            reader = new UTF8Reader(gzip);
+        } else if (codec != DumpCodecs.BZIP2) {
+            reader = new UTF8Reader(codec.decode(track(openStream(), 0)));
+        } else if (resumeBitOffset >= 0 && streamRanges == null) {
+            // bit offsets do not count the "B", "Z" bytes
+            long offset = 2 + (resumeBitOffset >>> 3);
+            PageResyncInputStream resync = newResync();
+            BZip2DecoderOptions options = decoderOptions(resync).startAt(resumeBlockSize100k, resumeBitOffset);
+            ReadableByteChannel channel = track(openChannel(offset), offset);
+            InputStream bzip2 = channel != null ?
+                    bzip2(channel, options) :
+                    bzip2(track(openRemote(offset), offset), options);
+            blockPosition = (BZip2BlockPosition) bzip2;
+            reader = new UTF8Reader(resync(resync, new PageFragmentInputStream(bzip2)));
+        } else {
+            PageResyncInputStream resync = newResync();
+            BZip2DecoderOptions options = decoderOptions(resync);
+            // the "B", "Z" bytes in front of the dump were checked by detectCodec()
+            ReadableByteChannel channel = streamRanges == null ? track(openChannel(2), 2) : null;
+            InputStream bzip2;
+            if (channel != null) {
+                bzip2 = bzip2(channel, options);
+            } else {
+                InputStream fis = track(streamRanges == null ?
+                        openRemote(0) :
+                        readAhead(new RangeInputStream(wikiXMLFile, streamRanges)), 0);
+                DumpCodecs.skipBZip2Magic(fis);
+                bzip2 = bzip2(fis, options);
+            }
+            blockPosition = (BZip2BlockPosition) bzip2;
+            if (streamRanges != null) {
+                bzip2 = wrapFragments(bzip2);
+            }
+            reader = new UTF8Reader(resync(resync, bzip2));
+        }
+
+        return new InputSource(reader);
+    }
+
+    /**
+     * @return the stream keeping the pages parseable across gaps and
+     *         telling their offsets, <tt>null</tt> if neither is needed
+     */
+    private PageResyncInputStream newResync() {
+        if (corruptBlockListener == null && !trackPageOffsets) {
+            return null;
+        }
+        return new PageResyncInputStream(corruptBlockListener);
+    }
+
+    private BZip2DecoderOptions decoderOptions(PageResyncInputStream resync) {
+        return new BZip2DecoderOptions()
+                .pool(decoderPool)
+                .crcCheck(crcCheck)
+                .listener(corruptBlockListener == null ? null : resync)
+                .stats(decoderStats);
+    }
+
+    private InputStream bzip2(ReadableByteChannel channel, BZip2DecoderOptions options) throws IOException {
+        return decoderExecutor == null ?
+                new CBZip2InputStream(channel, true, options) :
+                new ParallelCBZip2InputStream(channel, decoderExecutor, decoderThreads, options);
+    }
+
+    private InputStream bzip2(InputStream in, BZip2DecoderOptions options) throws IOException {
+        return decoderExecutor == null ?
+                new CBZip2InputStream(in, true, options) :
+                new ParallelCBZip2InputStream(in, decoderExecutor, decoderThreads, options);
+    }
+
+    /**
+     * @return the first codec recognizing the first bytes of the dump
+     * @throws IOException if none does
+     */
+    private DumpCodec detectCodec() throws Exception {
+        byte[] magic = new byte[DumpCodecs.MAGIC_LENGTH];
+        int length;
+        InputStream in = RangeInputStream.open(wikiXMLFile, 0, magic.length);
+        try {
+            length = DumpCodecs.readMagic(in, magic);
+        } finally {
+            in.close();
+        }
+        DumpCodec codec = DumpCodecs.detect(codecs, magic, length);
+        if (codec == null) {
+            throw new IOException("none of the codecs " + codecs + " recognizes [" + wikiXMLFile + "]");
+        }
+        return codec;
+    }
+
+    /**
+     * Local dumps are memory mapped, the bzip2 decoders read from the
+     * mapping straight into their buffers.
+     *
+     * @return a channel positioned at <tt>offset</tt>, or <tt>null</tt> if
+     *         the dump is not a local file
+     */
+    private MappedInputChannel openChannel(long offset) throws Exception {
+        if (!"file".equals(wikiXMLFile.getProtocol())) {
+            return null;
+        }
+        return new MappedInputChannel(new File(wikiXMLFile.toURI())).position(offset);
+    }
+
+    /**
+     * @return the whole dump, memory mapped if it is a local file
+     */
+    private InputStream openStream() throws Exception {
+        MappedInputChannel channel = openChannel(0);
+        return channel == null ? openRemote(0) : channel.newInputStream();
+    }
+
+    /**
+     * @return the dump from <tt>offset</tt> on, through the cache if there
+     *         is one
+     */
+    private InputStream openRemote(long offset) throws IOException {
+        InputStream in;
+        if (dumpCache != null) {
+            in = dumpCache.open(offset, reconnectPolicy);
+        } else if (reconnectPolicy != null) {
+            in = new ReconnectingInputStream(wikiXMLFile, offset, reconnectPolicy);
+        } else if (offset == 0) {
+            in = wikiXMLFile.openStream();
         } else {
-            br = new BufferedReader(new InputStreamReader(wikiXMLFile.openStream(), "UTF-8"));
+            in = RangeInputStream.open(wikiXMLFile, offset, -1);
+        }
+        return readAhead(in);
+    }
+
+    /**
+     * Wraps a stream of a remote dump, if reading ahead.
+     */
+    private InputStream readAhead(InputStream in) {
+        if (readAheadExecutor == null || "file".equals(wikiXMLFile.getProtocol())) {
+            return in;
+        }
+        return new ReadAheadInputStream(in, readAheadExecutor, ReadAheadInputStream.BUFFER_SIZE, readAheadBuffers);
+    }
+
+    /**
+     * Counts the bytes read from the dump, if tracking progress.
+     *
+     * @param offset position of the first byte of <tt>in</tt> in the dump
+     */
+    private InputStream track(InputStream in, long offset) {
+        if (progress == null) {
+            return in;
+        }
+        progress.start(offset);
+        return progress.track(in);
+    }
+
+    private ReadableByteChannel track(ReadableByteChannel channel, long offset) {
+        if (progress == null || channel == null) {
+            return channel;
+        }
+        progress.start(offset);
+        return progress.track(channel);
+    }
+
+    /**
+     * Puts the resync stream on top of the decoded dump, if there is one.
+     */
+    private InputStream resync(PageResyncInputStream resync, InputStream dump) {
+        if (resync == null) {
+            return dump;
+        }
+        resync.setInput(dump);
+        if (trackPageOffsets) {
+            resync.trackPageStarts(blockPosition);
+            pageStarts = resync;
         }
+        return resync;
+    }
 
-        return new InputSource(br);
+    /**
+     * Streams selected from a multistream dump only hold <tt>&lt;page&gt;</tt>
+     * elements. The header with the <tt>&lt;mediawiki&gt;</tt> start tag is
+     * a stream of its own, and so is the footer with the end tag. The
+     * footer is part of a range reaching to the end of the dump.
+     */
+    private InputStream wrapFragments(InputStream pages) throws Exception {
+        Vector<InputStream> parts = new Vector<InputStream>();
+        parts.add(new ByteArrayInputStream("<mediawiki>".getBytes("UTF-8")));
+        parts.add(pages);
+        if (streamRanges.isEmpty() || streamRanges.get(streamRanges.size() - 1).getEnd() >= 0) {
+            parts.add(new ByteArrayInputStream("</mediawiki>".getBytes("UTF-8")));
+        }
+        return new SequenceInputStream(parts.elements());
     }
 
     protected void notifyPage(WikiPage page) {
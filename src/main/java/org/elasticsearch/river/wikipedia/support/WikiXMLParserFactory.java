@@ -30,4 +30,8 @@ public class WikiXMLParserFactory {
         return new WikiXMLSAXParser(fileName);
     }
 
+    public static WikiXMLParser getStAXParser(URL fileName) {
+        return new WikiXMLStAXParser(fileName);
+    }
+
 }
@@ -64,7 +64,12 @@ public class WikiXMLSAXParser extends WikiXMLParser {
      * @throws Exception
      */
     public void parse() throws Exception {
-        xmlReader.setContentHandler(new SAXPageCallbackHandler(pageHandler));
+        xmlReader.setContentHandler(new SAXPageCallbackHandler(new PageCallbackHandler() {
+            public void process(WikiPage page) {
+                pageRead();
+                pageHandler.process(page);
+            }
+        }));
         xmlReader.parse(getInputSource());
     }
 
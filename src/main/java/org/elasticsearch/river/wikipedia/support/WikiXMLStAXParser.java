@@ -0,0 +1,264 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URL;
+
+/**
+ * A StAX (pull) parser for Wikipedia XML dumps.
+ * <p/>
+ * <p>Pages are read one at a time, only when asked for. The iterator returned
+ * by {@link #getIterator()} streams the dump: every call to
+ * {@link WikiPageIterator#nextPage()} reads just the XML of the next page, so
+ * memory use does not depend on the size of the dump, and the caller sets the
+ * pace at which the dump is read and decoded.</p>
+ * <p/>
+ * <p>Everything configured on {@link WikiXMLParser} (codecs, decoder threads,
+ * resuming, progress and so on) applies as it does to the SAX parser.</p>
+ */
+public class WikiXMLStAXParser extends WikiXMLParser {
+
+    private final XMLInputFactory factory;
+    private PageCallbackHandler pageHandler;
+
+    public WikiXMLStAXParser(URL fileName) {
+        super(fileName);
+        factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.FALSE);
+        pageHandler = new IteratorHandler(this);
+    }
+
+    /**
+     * Set a callback handler. The callback is executed every time a
+     * page instance is detected in the stream. Custom handlers are
+     * implementations of {@link PageCallbackHandler}
+     *
+     * @param handler
+     * @throws Exception
+     */
+    public void setPageCallback(PageCallbackHandler handler) throws Exception {
+        pageHandler = handler;
+    }
+
+    /**
+     * The main parse method, passes every page of the dump to the
+     * callback handler.
+     *
+     * @throws Exception
+     */
+    public void parse() throws Exception {
+        PageReader pages = new PageReader(factory, getInputSource().getCharacterStream());
+        try {
+            WikiPage page;
+            while ((page = pages.next()) != null) {
+                pageRead();
+                pageHandler.process(page);
+            }
+        } finally {
+            pages.close();
+        }
+    }
+
+    /**
+     * Opens the dump and returns an iterator reading its pages lazily. The
+     * iterator can't be reset, and should be closed if it is not read to
+     * the end.
+     *
+     * @throws Exception
+     */
+    @Override
+    public WikiPageIterator getIterator() throws Exception {
+        if (!(pageHandler instanceof IteratorHandler)) {
+            throw new Exception("Custom page callback found. Will not iterate.");
+        }
+        return new StreamingPageIterator(new PageReader(factory, getInputSource().getCharacterStream())) {
+            @Override
+            public WikiPage nextPage() {
+                WikiPage page = super.nextPage();
+                if (page != null) {
+                    pageRead();
+                }
+                return page;
+            }
+        };
+    }
+
+    /**
+     * Pulls the pages out of the XML events. Only the text of the
+     * <tt>title</tt>, the first <tt>id</tt> (the one of the page, not of the
+     * revision) and the <tt>text</tt> element are kept, and the buffers
+     * collecting them are reused from page to page.
+     */
+    static class PageReader {
+
+        private static final int NONE = 0;
+        private static final int TITLE = 1;
+        private static final int ID = 2;
+        private static final int TEXT = 3;
+
+        private final Reader reader;
+        private final XMLStreamReader xml;
+
+        private final StringBuilder title = new StringBuilder();
+        private final StringBuilder id = new StringBuilder();
+        private final StringBuilder text = new StringBuilder();
+
+        PageReader(XMLInputFactory factory, Reader reader) throws XMLStreamException {
+            this.reader = reader;
+            this.xml = factory.createXMLStreamReader(reader);
+        }
+
+        /**
+         * @return the next page, <tt>null</tt> at the end of the dump
+         */
+        WikiPage next() throws XMLStreamException {
+            boolean inPage = false;
+            boolean hasId = false;
+            int field = NONE;
+            while (xml.hasNext()) {
+                switch (xml.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        String name = xml.getLocalName();
+                        if (name.equals("page")) {
+                            inPage = true;
+                            hasId = false;
+                            title.setLength(0);
+                            id.setLength(0);
+                            text.setLength(0);
+                        } else if (!inPage) {
+                            // mediawiki, siteinfo and what is in it
+                        } else if (name.equals("title")) {
+                            field = TITLE;
+                        } else if (name.equals("id") && !hasId) {
+                            field = ID;
+                        } else if (name.equals("text")) {
+                            field = TEXT;
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        if (field != NONE) {
+                            StringBuilder target = field == TITLE ? title : field == ID ? id : text;
+                            target.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (field == ID) {
+                            hasId = true;
+                        }
+                        field = NONE;
+                        if (inPage && xml.getLocalName().equals("page")) {
+                            WikiPage page = new WikiPage();
+                            page.setTitle(title.toString());
+                            page.setID(id.toString());
+                            page.setWikiText(text.toString());
+                            return page;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return null;
+        }
+
+        void close() throws IOException {
+            try {
+                xml.close();
+            } catch (XMLStreamException e) {
+                // the reader is closed below
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Reads one page ahead at most, when asked whether there are more.
+     */
+    static class StreamingPageIterator extends WikiPageIterator {
+
+        private final PageReader pages;
+        private WikiPage next;
+        private boolean done;
+
+        StreamingPageIterator(PageReader pages) {
+            this.pages = pages;
+        }
+
+        @Override
+        public boolean hasMorePages() {
+            if (next == null && !done) {
+                try {
+                    next = pages.next();
+                } catch (XMLStreamException e) {
+                    closeQuietly();
+                    throw new IllegalStateException("failed to read the next page", e);
+                }
+                if (next == null) {
+                    closeQuietly();
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public WikiPage nextPage() {
+            if (!hasMorePages()) {
+                return null;
+            }
+            WikiPage page = next;
+            next = null;
+            return page;
+        }
+
+        /**
+         * The dump is read only once.
+         */
+        @Override
+        public void reset() {
+            throw new UnsupportedOperationException("a streaming page iterator can't be reset");
+        }
+
+        @Override
+        public void close() throws IOException {
+            done = true;
+            next = null;
+            pages.close();
+        }
+
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // nothing more to read anyway
+            }
+        }
+    }
+}
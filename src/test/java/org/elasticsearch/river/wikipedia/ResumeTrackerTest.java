@@ -0,0 +1,233 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia;
+
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class ResumeTrackerTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testNoCheckpointAfterPageStart() {
+        ResumeTracker tracker = new ResumeTracker();
+        FakePosition position = new FakePosition();
+
+        // the parser has read ahead into a block starting after the page
+        long blockOutputOffset = randomOffset(1, 900000);
+        position.at(7400032, 9, blockOutputOffset, blockOutputOffset + randomOffset(0, 900000));
+        tracker.pageProcessed(position, blockOutputOffset - 1, 1);
+        assertThat(tracker.getCheckpoint(), nullValue());
+
+        tracker.pageProcessed(position, blockOutputOffset, 2);
+        assertCheckpoint(tracker.getCheckpoint(), 7400032, 2);
+    }
+
+    @Test
+    public void testPageLargerThanReadAhead() {
+        ResumeTracker tracker = new ResumeTracker();
+        FakePosition position = new FakePosition();
+
+        position.at(32, 9, 0, 1000);
+        tracker.pageProcessed(position, 0, 0);
+        assertCheckpoint(tracker.getCheckpoint(), 32, 0);
+
+        // page 2 starts at 200 and takes more than 1MB, it is held back as
+        // a whole before page 1 is reported
+        long pageEnd = 200 + randomOffset(1024 * 1024 + 1, 3 * 1024 * 1024);
+        position.at(5400032, 9, pageEnd - 1000, pageEnd + 100);
+        tracker.pageProcessed(position, 100, 1);
+        assertCheckpoint(tracker.getCheckpoint(), 32, 1);
+        tracker.pageProcessed(position, 200, 2);
+        assertCheckpoint(tracker.getCheckpoint(), 32, 2);
+
+        tracker.pageProcessed(position, pageEnd, 3);
+        assertCheckpoint(tracker.getCheckpoint(), 5400032, 3);
+    }
+
+    @Test
+    public void testCheckpointBeforeNextPage() {
+        // blocks of random sizes, with bit offsets following their output offsets
+        List<long[]> blocks = new ArrayList<long[]>();
+        long outputOffset = 0;
+        for (int i = 0; i < 50; i++) {
+            blocks.add(new long[]{32 + outputOffset * 2, outputOffset});
+            outputOffset += randomIntBetween(1, 900000);
+        }
+        long dumpLength = outputOffset;
+
+        ResumeTracker tracker = new ResumeTracker();
+        FakePosition position = new FakePosition();
+        List<Long> pageStarts = new ArrayList<Long>();
+        long pageStart = 0;
+        for (long pageId = 0; ; pageId++) {
+            long pageEnd = pageStart + randomIntBetween(1, randomBoolean() ? 200000 : 3000000);
+            if (pageEnd >= dumpLength) {
+                break;
+            }
+            pageStarts.add(pageStart);
+            // the parser has read ahead of the end of the page
+            long read = Math.min(dumpLength, pageEnd + randomOffset(0, 3000000));
+            long[] block = blockAt(blocks, read);
+            position.at(block[0], 9, block[1], read);
+            tracker.pageProcessed(position, pageStart, pageId);
+
+            ResumeTracker.Checkpoint checkpoint = tracker.getCheckpoint();
+            if (checkpoint != null) {
+                assertThat(checkpoint.pageId, lessThanOrEqualTo(pageId));
+                assertThat(checkpoint.blockSize100k, equalTo(9));
+                // the page following the checkpoint starts after the start
+                // of the checkpoint page
+                assertThat(blockWithBitOffset(blocks, checkpoint.blockBitOffset)[1],
+                        lessThanOrEqualTo(pageStarts.get((int) checkpoint.pageId)));
+            }
+            pageStart = pageEnd;
+        }
+        assertThat(tracker.getCheckpoint(), notNullValue());
+    }
+
+    @Test
+    public void testDumpFinished() {
+        ResumeTracker tracker = new ResumeTracker();
+        FakePosition position = new FakePosition();
+        position.at(32, 9, 0, 1000);
+        tracker.pageProcessed(position, 0, 1);
+        assertCheckpoint(tracker.getCheckpoint(), 32, 1);
+
+        tracker.dumpFinished();
+        assertThat(tracker.getCheckpoint(), sameInstance(ResumeTracker.END));
+    }
+
+    @Test
+    public void testCheckpointAfterEarlierBulks() {
+        ResumeTracker tracker = new ResumeTracker();
+        FakePosition position = new FakePosition();
+
+        // no restart point yet
+        tracker.beforeBulk(1);
+        assertThat(tracker.afterBulk(1), nullValue());
+
+        position.at(32, 9, 0, 1000);
+        tracker.pageProcessed(position, 0, 10);
+        tracker.beforeBulk(2);
+        position.at(1000, 9, 500000, 501000);
+        tracker.pageProcessed(position, 500000, 20);
+        tracker.beforeBulk(3);
+
+        // bulk 2 is still in flight, pages before the restart point of
+        // bulk 3 might not be indexed
+        assertThat(tracker.afterBulk(3), nullValue());
+        assertCheckpoint(tracker.afterBulk(2), 32, 10);
+        assertThat(tracker.afterBulk(2), nullValue());
+
+        // a failed bulk does not hold back later ones
+        tracker.beforeBulk(4);
+        tracker.beforeBulk(5);
+        tracker.bulkFailed(4);
+        assertCheckpoint(tracker.afterBulk(5), 1000, 20);
+    }
+
+    @Test
+    public void testEndSavedOnce() {
+        ResumeTracker tracker = new ResumeTracker();
+        tracker.dumpFinished();
+
+        tracker.beforeBulk(1);
+        tracker.beforeBulk(2);
+        assertThat(tracker.afterBulk(1), sameInstance(ResumeTracker.END));
+        tracker.checkpointSaved(ResumeTracker.END);
+        assertThat(tracker.afterBulk(2), sameInstance(ResumeTracker.END));
+
+        tracker.beforeBulk(3);
+        assertThat(tracker.afterBulk(3), nullValue());
+    }
+
+    private long randomOffset(long min, long max) {
+        return min + (long) (getRandom().nextDouble() * (max - min + 1));
+    }
+
+    private static void assertCheckpoint(ResumeTracker.Checkpoint checkpoint, long blockBitOffset, long pageId) {
+        assertThat(checkpoint, notNullValue());
+        assertThat(checkpoint.blockBitOffset, equalTo(blockBitOffset));
+        assertThat(checkpoint.pageId, equalTo(pageId));
+    }
+
+    private static long[] blockAt(List<long[]> blocks, long outputOffset) {
+        long[] found = blocks.get(0);
+        for (long[] block : blocks) {
+            if (block[1] <= outputOffset) {
+                found = block;
+            }
+        }
+        return found;
+    }
+
+    private static long[] blockWithBitOffset(List<long[]> blocks, long bitOffset) {
+        for (long[] block : blocks) {
+            if (block[0] == bitOffset) {
+                return block;
+            }
+        }
+        throw new AssertionError("no block at bit offset " + bitOffset);
+    }
+
+    private static class FakePosition implements BZip2BlockPosition {
+
+        long blockBitOffset;
+        int blockSize100k;
+        long blockOutputOffset;
+        long outputOffset;
+
+        void at(long blockBitOffset, int blockSize100k, long blockOutputOffset, long outputOffset) {
+            this.blockBitOffset = blockBitOffset;
+            this.blockSize100k = blockSize100k;
+            this.blockOutputOffset = blockOutputOffset;
+            this.outputOffset = outputOffset;
+        }
+
+        @Override
+        public long getBlockBitOffset() {
+            return blockBitOffset;
+        }
+
+        @Override
+        public int getBlockSize100k() {
+            return blockSize100k;
+        }
+
+        @Override
+        public long getBlockOutputOffset() {
+            return blockOutputOffset;
+        }
+
+        @Override
+        public long getOutputOffset() {
+            return outputOffset;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia;
+
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2OutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static org.elasticsearch.test.ElasticsearchTestCase.randomIntBetween;
+
+/**
+ * Dump bytes and stream helpers shared by the tests.
+ */
+public final class WikipediaTestUtils {
+
+    private WikipediaTestUtils() {
+    }
+
+    /**
+     * @return <tt>length</tt> bytes of random wiki markup, with occasional
+     *         long runs of one byte
+     */
+    public static byte[] randomText(int length) {
+        String[] words = {"<page>", "</page>", "<title>", "</title>", "[[", "]]", "{{", "}}",
+                "the", "of", "wikipedia", "river", "elasticsearch", "category", "\n", " ", " ", " "};
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        while (out.size() < length) {
+            byte[] word = words[randomIntBetween(0, words.length - 1)].getBytes();
+            if (randomIntBetween(0, 100) == 0) {
+                // long runs exercise the run length encoding
+                int run = randomIntBetween(4, 300);
+                for (int i = 0; i < run; i++) {
+                    out.write(word[0]);
+                }
+            } else {
+                out.write(word, 0, word.length);
+            }
+        }
+        byte[] text = out.toByteArray();
+        byte[] truncated = new byte[length];
+        System.arraycopy(text, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    /**
+     * @return <tt>data</tt> bzip2 compressed, without the <tt>"BZ"</tt> magic
+     */
+    public static byte[] compress(byte[] data, int blockSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, blockSize);
+        bzip2.write(data, 0, data.length);
+        bzip2.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads <tt>in</tt> up to its end in randomly sized chunks and closes it.
+     */
+    public static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[randomIntBetween(1, 16384)];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
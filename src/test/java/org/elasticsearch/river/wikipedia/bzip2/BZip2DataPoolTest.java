@@ -0,0 +1,106 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.compress;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.randomText;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class BZip2DataPoolTest extends ElasticsearchTestCase {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdownExecutor() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testReuseAcrossDecoders() throws IOException {
+        BZip2DataPool pool = new BZip2DataPool(64 * 1024 * 1024);
+        byte[] expected = randomText(randomIntBetween(1, 300000));
+        byte[] compressed = compress(expected, randomIntBetween(1, 9));
+
+        for (int i = 0; i < 3; i++) {
+            byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                    new BZip2DecoderOptions().pool(pool)));
+            assertThat(actual, equalTo(expected));
+        }
+        assertThat(pool.getMisses(), equalTo(1L));
+        assertThat(pool.getHits(), equalTo(2L));
+        assertThat(pool.getSizeInBytes(), greaterThan(0L));
+    }
+
+    @Test
+    public void testSmallMode() throws IOException {
+        BZip2DataPool pool = new BZip2DataPool(64 * 1024 * 1024);
+        BZip2DataPool small = pool.smallMode();
+        assertThat(small.isSmallMode(), equalTo(true));
+        assertThat(small.smallMode(), sameInstance(small));
+
+        byte[] expected = randomText(randomIntBetween(1, 600000));
+        byte[] compressed = compress(expected, randomIntBetween(1, 9));
+
+        byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                new BZip2DecoderOptions().pool(small)));
+        assertThat(actual, equalTo(expected));
+        actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                new BZip2DecoderOptions().pool(pool)));
+        assertThat(actual, equalTo(expected));
+
+        // both modes share the budget, but not the buffers
+        assertThat(pool.getMisses(), equalTo(2L));
+        assertThat(small.getSizeInBytes(), equalTo(pool.getSizeInBytes()));
+    }
+
+    @Test
+    public void testParallelDecodersStayWithinBudget() throws IOException {
+        long budget = randomIntBetween(0, 3) * 1200 * 1024;
+        BZip2DataPool pool = new BZip2DataPool(budget);
+        if (randomBoolean()) {
+            pool = pool.smallMode();
+        }
+        byte[] expected = randomText(randomIntBetween(300000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        byte[] actual = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4),
+                new BZip2DecoderOptions().pool(pool)));
+        assertThat(actual, equalTo(expected));
+        assertThat(pool.getSizeInBytes(), lessThanOrEqualTo(budget));
+
+        pool.clear();
+        assertThat(pool.getSizeInBytes(), equalTo(0L));
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.compress;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.randomText;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class CBZip2InputStreamTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testDecodeFromTrickleStream() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 300000));
+        byte[] compressed = compress(expected, randomIntBetween(1, 9));
+
+        // the source hands out at most a few bytes per read
+        InputStream trickle = new ByteArrayInputStream(compressed) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, randomIntBetween(1, 7)));
+            }
+        };
+        byte[] actual = readFully(new CBZip2InputStream(trickle));
+        assertThat(actual, equalTo(expected));
+    }
+
+    @Test
+    public void testStopAtFirstStream() throws IOException {
+        byte[] first = randomText(randomIntBetween(1, 10000));
+        byte[] compressed = compress(first, randomIntBetween(1, 9));
+        byte[] second = compress(randomText(randomIntBetween(1, 10000)), randomIntBetween(1, 9));
+
+        ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+        concatenated.write(compressed, 0, compressed.length);
+        concatenated.write('B');
+        concatenated.write('Z');
+        concatenated.write(second, 0, second.length);
+
+        byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(concatenated.toByteArray()), false));
+        assertThat(actual, equalTo(first));
+    }
+
+    @Test
+    public void testResumeAtBlock() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        assertThat(blocks.size(), greaterThan(1));
+
+        long[] block = blocks.get(randomIntBetween(0, blocks.size() - 1));
+        int start = (int) (block[0] >>> 3);
+        CBZip2InputStream resumed = new CBZip2InputStream(
+                new ByteArrayInputStream(compressed, start, compressed.length - start), true,
+                new BZip2DecoderOptions().startAt(1, block[0]));
+        assertThat(resumed.getBlockBitOffset(), equalTo(block[0]));
+
+        byte[] actual = readFully(resumed);
+        byte[] suffix = new byte[expected.length - (int) block[1]];
+        System.arraycopy(expected, (int) block[1], suffix, 0, suffix.length);
+        assertThat(actual, equalTo(suffix));
+    }
+
+    @Test
+    public void testCRCCheckModes() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 300000));
+        byte[] compressed = compress(expected, 1);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            BZip2CRCCheck[] modes = {BZip2CRCCheck.VERIFY, BZip2CRCCheck.SKIP, BZip2CRCCheck.async(executor)};
+            for (BZip2CRCCheck mode : modes) {
+                byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                        new BZip2DecoderOptions().crcCheck(mode)));
+                assertThat(actual, equalTo(expected));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testReadChannelIntoByteBuffer() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        long[] block = blocks.get(randomIntBetween(0, blocks.size() - 1));
+
+        File file = File.createTempFile("wikipedia", ".bz2");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(compressed);
+            } finally {
+                out.close();
+            }
+
+            FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+            channel.position(block[0] >>> 3);
+            CBZip2InputStream in = new CBZip2InputStream(channel, true,
+                    new BZip2DecoderOptions().startAt(1, block[0]));
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(randomIntBetween(1, 100000));
+            ByteArrayOutputStream actual = new ByteArrayOutputStream();
+            while (in.read(buffer) >= 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    actual.write(buffer.get());
+                }
+                buffer.clear();
+            }
+            in.close();
+            assertThat(in.isOpen(), equalTo(false));
+            assertThat(channel.isOpen(), equalTo(false));
+
+            byte[] suffix = new byte[expected.length - (int) block[1]];
+            System.arraycopy(expected, (int) block[1], suffix, 0, suffix.length);
+            assertThat(actual.toByteArray(), equalTo(suffix));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRecoverBlockCRCError() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        int corrupt = randomIntBetween(0, blocks.size() - 1);
+        flipStoredBlockCRC(compressed, blocks.get(corrupt)[0]);
+
+        RecordingListener listener = new RecordingListener();
+        CBZip2InputStream in = new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                new BZip2DecoderOptions().listener(listener));
+        byte[] actual = readFully(in);
+        assertThat(in.getCorruptBlocks(), equalTo(1L));
+        assertThat(listener.gaps.size(), equalTo(1));
+        assertThat(listener.gaps.get(0)[0], equalTo(blocks.get(corrupt)[0]));
+        assertThat(listener.gaps.get(0)[2], equalTo(blocks.get(corrupt)[1]));
+        assertThat(actual, equalTo(withoutBlock(expected, blocks, corrupt)));
+    }
+
+    @Test
+    public void testRecoverMalformedBlock() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        // somewhere within the Huffman coded data of a block, past its
+        // coding tables
+        int corrupt = randomIntBetween(0, blocks.size() - 2);
+        int to = (int) (blocks.get(corrupt + 1)[0] >>> 3) - 100;
+        int from = (int) ((blocks.get(corrupt)[0] >>> 3) + to) / 2;
+        int at = randomIntBetween(from, to);
+        compressed[at] = (byte) ~compressed[at];
+
+        RecordingListener listener = new RecordingListener();
+        byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                new BZip2DecoderOptions().listener(listener)));
+        assertThat(listener.gaps.size(), greaterThan(0));
+        assertThat(listener.gaps.get(0)[0], equalTo(blocks.get(corrupt)[0]));
+        assertWholeBlocks(actual, expected, blocks);
+    }
+
+    @Test(expected = IOException.class)
+    public void testMalformedBlockFailsWithoutRecovery() throws IOException {
+        byte[] compressed = compress(randomText(randomIntBetween(1000, 300000)), 1);
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        // the block header magic
+        int at = (int) (blocks.get(0)[0] >>> 3) + 2;
+        compressed[at] = (byte) ~compressed[at];
+
+        readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    @Test
+    public void testDecoderStats() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 600000));
+        byte[] compressed = compress(expected, 1);
+        List<long[]> blocks = blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+
+        BZip2DecoderStats stats = new BZip2DecoderStats();
+        byte[] actual = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed), true,
+                new BZip2DecoderOptions().stats(stats)));
+        assertThat(actual, equalTo(expected));
+        assertStats(stats, compressed.length, expected.length, blocks.size());
+    }
+
+    static void assertStats(BZip2DecoderStats stats, long compressedBytes, long decodedBytes, long blocks) {
+        assertThat(stats.getCompressedBytes(), equalTo(compressedBytes));
+        assertThat(stats.getDecodedBytes(), equalTo(decodedBytes));
+        assertThat(stats.getBlocks(), equalTo(blocks));
+        long total = 0;
+        for (long sizes : stats.getBlockSizes()) {
+            total += sizes;
+        }
+        assertThat(total, equalTo(blocks));
+        assertThat(stats.getCRCErrors(), equalTo(0L));
+        assertThat(stats.getCorruptBlocks(), equalTo(0L));
+    }
+
+    static class RecordingListener implements BZip2CorruptBlockListener {
+
+        final List<long[]> gaps = new ArrayList<long[]>();
+
+        @Override
+        public void corruptBlock(long blockBitOffset, long nextBitOffset, long outputOffset, Throwable cause) {
+            gaps.add(new long[]{blockBitOffset, nextBitOffset, outputOffset});
+        }
+    }
+
+    /**
+     * Flips a bit of the CRC stored in the header of the block at <tt>blockBitOffset</tt>.
+     */
+    static void flipStoredBlockCRC(byte[] compressed, long blockBitOffset) {
+        long bit = blockBitOffset + 48 + randomIntBetween(0, 31);
+        compressed[(int) (bit >>> 3)] ^= 0x80 >>> (bit & 7);
+    }
+
+    static byte[] withoutBlock(byte[] expected, List<long[]> blocks, int block) {
+        int start = (int) blocks.get(block)[1];
+        int end = block + 1 < blocks.size() ? (int) blocks.get(block + 1)[1] : expected.length;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(expected, 0, start);
+        out.write(expected, end, expected.length - end);
+        return out.toByteArray();
+    }
+
+    /**
+     * Asserts that <tt>actual</tt> consists of whole blocks of <tt>expected</tt>.
+     */
+    static void assertWholeBlocks(byte[] actual, byte[] expected, List<long[]> blocks) {
+        int pos = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            int start = (int) blocks.get(i)[1];
+            int end = i + 1 < blocks.size() ? (int) blocks.get(i + 1)[1] : expected.length;
+            boolean kept = pos + end - start <= actual.length;
+            for (int j = start; kept && j < end; j++) {
+                kept = actual[pos + j - start] == expected[j];
+            }
+            if (kept) {
+                pos += end - start;
+            }
+        }
+        assertThat(pos, equalTo(actual.length));
+    }
+
+    /**
+     * @return bit offset and output offset of every block
+     */
+    static List<long[]> blockPositions(InputStream in) throws IOException {
+        BZip2BlockPosition position = (BZip2BlockPosition) in;
+        List<long[]> blocks = new ArrayList<long[]>();
+        while (in.read() >= 0) {
+            if (blocks.isEmpty() || blocks.get(blocks.size() - 1)[0] != position.getBlockBitOffset()) {
+                assertThat(position.getOutputOffset(), equalTo(position.getBlockOutputOffset() + 1));
+                blocks.add(new long[]{position.getBlockBitOffset(), position.getBlockOutputOffset()});
+            }
+        }
+        in.close();
+        return blocks;
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStream() throws IOException {
+        byte[] compressed = compress(randomText(randomIntBetween(1000, 300000)), 1);
+        byte[] truncated = new byte[randomIntBetween(20, compressed.length - 11)];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        readFully(new CBZip2InputStream(new ByteArrayInputStream(truncated)));
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.compress;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.randomText;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+
+public class CBZip2OutputStreamTest extends ElasticsearchTestCase {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdownExecutor() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testParallelSameAsSerial() throws IOException {
+        byte[] data = randomText(randomIntBetween(0, 600000));
+        int blockSize = randomIntBetween(1, 2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, blockSize, executor, randomIntBetween(1, 4));
+        write(bzip2, data);
+        bzip2.close();
+
+        assertThat(out.toByteArray(), equalTo(compress(data, blockSize)));
+        assertThat(bzip2.getStreamOffsets(), equalTo(new long[]{0}));
+    }
+
+    @Test
+    public void testRepetitiveBlocks() throws IOException {
+        byte[] template = "{{Infobox|name=|image=}}\n".getBytes("US-ASCII");
+        byte[] data = new byte[randomIntBetween(1, 400000)];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = template[i % template.length];
+        }
+        byte[] compressed = compress(data, randomIntBetween(1, 9));
+
+        assertThat(readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed))), equalTo(data));
+    }
+
+    @Test
+    public void testMultistream() throws IOException {
+        byte[] data = randomText(randomIntBetween(1, 600000));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('B');
+        out.write('Z');
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, 1, executor, randomIntBetween(1, 4), true);
+        write(bzip2, data);
+        bzip2.close();
+        byte[] compressed = out.toByteArray();
+
+        long[] offsets = bzip2.getStreamOffsets();
+        assertThat(offsets[0], equalTo(0L));
+        for (long offset : offsets) {
+            assertThat(new String(compressed, (int) offset, 3, "US-ASCII"), equalTo("BZh"));
+        }
+        // every stream decodes on its own to a block of the input
+        int decoded = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            int from = (int) offsets[i] + 2;
+            int to = i + 1 < offsets.length ? (int) offsets[i + 1] : compressed.length;
+            byte[] block = readFully(new CBZip2InputStream(
+                    new ByteArrayInputStream(compressed, from, to - from), false));
+            for (int j = 0; j < block.length; j++) {
+                assertThat(block[j], equalTo(data[decoded + j]));
+            }
+            decoded += block.length;
+        }
+        assertThat(decoded, equalTo(data.length));
+
+        byte[] actual = readFully(new CBZip2InputStream(
+                new ByteArrayInputStream(compressed, 2, compressed.length - 2), true));
+        assertThat(actual, equalTo(data));
+    }
+
+    @Test
+    public void testEmptyMultistream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, 9, executor, 2, true);
+        bzip2.close();
+
+        assertThat(out.toByteArray(), equalTo(compress(new byte[0], 9)));
+        assertThat(bzip2.getStreamOffsets(), equalTo(new long[]{0}));
+    }
+
+    @Test
+    public void testParallelUnderGCPressure() throws Exception {
+        // many small blocks through a single pair of buffers, while
+        // finished block encoders are collected
+        byte[] data = randomText(randomIntBetween(2000000, 3000000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, 1, executor, 1);
+        Thread collector = startCollector();
+        try {
+            write(bzip2, data);
+            bzip2.close();
+        } finally {
+            collector.interrupt();
+            collector.join();
+        }
+        assertThat(out.toByteArray(), equalTo(compress(data, 1)));
+    }
+
+    @Test
+    public void testMultistreamUnderGCPressure() throws Exception {
+        byte[] data = randomText(randomIntBetween(2000000, 3000000));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, 1, executor, 1, true);
+        Thread collector = startCollector();
+        try {
+            write(bzip2, data);
+            bzip2.close();
+        } finally {
+            collector.interrupt();
+            collector.join();
+        }
+        assertThat(bzip2.getStreamOffsets().length, greaterThan(10));
+        assertThat(readFully(new CBZip2InputStream(new ByteArrayInputStream(out.toByteArray()))), equalTo(data));
+    }
+
+    /**
+     * Starts a thread running the garbage collector and finalizers until
+     * it is interrupted.
+     */
+    private static Thread startCollector() {
+        Thread collector = new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    System.gc();
+                    System.runFinalization();
+                }
+            }
+        });
+        collector.setDaemon(true);
+        collector.start();
+        return collector;
+    }
+
+    private static void write(CBZip2OutputStream out, byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; ) {
+            int length = Math.min(data.length - offset, randomIntBetween(1, 100000));
+            out.write(data, offset, length);
+            offset += length;
+        }
+    }
+}
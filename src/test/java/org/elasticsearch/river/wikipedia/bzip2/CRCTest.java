@@ -0,0 +1,44 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class CRCTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testBulkUpdateSameAsBytewise() {
+        byte[] buf = new byte[randomIntBetween(0, 1000)];
+        getRandom().nextBytes(buf);
+        int off = randomIntBetween(0, buf.length);
+        int len = randomIntBetween(0, buf.length - off);
+
+        CRC bytewise = new CRC();
+        for (int i = off; i < off + len; i++) {
+            bytewise.updateCRC(buf[i] & 0xff);
+        }
+        CRC bulk = new CRC();
+        bulk.updateCRC(buf, off, len);
+        assertThat(bulk.getFinalCRC(), equalTo(bytewise.getFinalCRC()));
+    }
+}
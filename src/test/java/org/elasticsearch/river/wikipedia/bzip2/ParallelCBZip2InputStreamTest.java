@@ -0,0 +1,298 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.compress;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.randomText;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ParallelCBZip2InputStreamTest extends ElasticsearchTestCase {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdownExecutor() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDecodeMultipleBlocks() throws IOException {
+        byte[] expected = randomText(randomIntBetween(300000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        byte[] actual = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4)));
+        assertThat(actual, equalTo(expected));
+    }
+
+    @Test
+    public void testDecodeSameAsSerial() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 250000));
+        byte[] compressed = compress(expected, randomIntBetween(1, 9));
+
+        byte[] serial = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        byte[] parallel = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, 2));
+        assertThat(serial, equalTo(expected));
+        assertThat(parallel, equalTo(expected));
+    }
+
+    @Test
+    public void testReadChannelIntoByteBuffer() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 250000));
+        byte[] compressed = compress(expected, randomIntBetween(1, 9));
+
+        ParallelCBZip2InputStream in = new ParallelCBZip2InputStream(
+                Channels.newChannel(new ByteArrayInputStream(compressed)), executor, 2, new BZip2DecoderOptions());
+        // one byte to spare, a full buffer would never see the end of the stream
+        ByteBuffer buffer = ByteBuffer.allocate(expected.length + 1);
+        while (in.read(buffer) >= 0) {
+            assertThat(in.read(ByteBuffer.allocate(0)), equalTo(0));
+        }
+        in.close();
+        assertThat(buffer.position(), equalTo(expected.length));
+
+        byte[] actual = new byte[expected.length];
+        buffer.flip();
+        buffer.get(actual);
+        assertThat(actual, equalTo(expected));
+    }
+
+    @Test
+    public void testDecodeConcatenatedStreams() throws IOException {
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        int streams = randomIntBetween(2, 20);
+        for (int i = 0; i < streams; i++) {
+            byte[] text = randomText(randomIntBetween(0, 150000));
+            byte[] stream = compress(text, randomIntBetween(1, 9));
+            expected.write(text, 0, text.length);
+            if (i == 0) {
+                compressed.write(stream, 0, stream.length);
+            } else {
+                // every stream but the first one keeps its "BZ" magic
+                compressed.write('B');
+                compressed.write('Z');
+                compressed.write(stream, 0, stream.length);
+            }
+        }
+
+        byte[] serial = readFully(new CBZip2InputStream(new ByteArrayInputStream(compressed.toByteArray())));
+        byte[] parallel = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed.toByteArray()), executor, randomIntBetween(1, 4)));
+        assertThat(serial, equalTo(expected.toByteArray()));
+        assertThat(parallel, equalTo(expected.toByteArray()));
+    }
+
+    @Test
+    public void testResumeAtBlock() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> serial = CBZip2InputStreamTest.blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        List<long[]> parallel = CBZip2InputStreamTest.blockPositions(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, 2));
+        assertThat(parallel.size(), equalTo(serial.size()));
+        for (int i = 0; i < serial.size(); i++) {
+            assertThat(parallel.get(i), equalTo(serial.get(i)));
+        }
+
+        long[] block = serial.get(randomIntBetween(0, serial.size() - 1));
+        int start = (int) (block[0] >>> 3);
+        byte[] actual = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed, start, compressed.length - start), executor, 2,
+                new BZip2DecoderOptions().startAt(1, block[0])));
+        byte[] suffix = new byte[expected.length - (int) block[1]];
+        System.arraycopy(expected, (int) block[1], suffix, 0, suffix.length);
+        assertThat(actual, equalTo(suffix));
+    }
+
+    @Test
+    public void testRecoverCorruptBlocks() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+
+        List<long[]> blocks = CBZip2InputStreamTest.blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+        int corrupt = randomIntBetween(0, blocks.size() - 1);
+        CBZip2InputStreamTest.flipStoredBlockCRC(compressed, blocks.get(corrupt)[0]);
+
+        CBZip2InputStreamTest.RecordingListener listener = new CBZip2InputStreamTest.RecordingListener();
+        ParallelCBZip2InputStream in = new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed),
+                executor, randomIntBetween(1, 4), new BZip2DecoderOptions().listener(listener));
+        byte[] actual = readFully(in);
+        assertThat(in.getCorruptBlocks(), equalTo(1L));
+        assertThat(listener.gaps.size(), equalTo(1));
+        assertThat(listener.gaps.get(0)[0], equalTo(blocks.get(corrupt)[0]));
+        assertThat(listener.gaps.get(0)[2], equalTo(blocks.get(corrupt)[1]));
+        assertThat(actual, equalTo(CBZip2InputStreamTest.withoutBlock(expected, blocks, corrupt)));
+    }
+
+    @Test
+    public void testRecoverTruncatedStream() throws IOException {
+        byte[] expected = randomText(randomIntBetween(250000, 600000));
+        byte[] compressed = compress(expected, 1);
+        List<long[]> blocks = CBZip2InputStreamTest.blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+
+        // cut off within a block, behind its header
+        int cut = randomIntBetween(0, blocks.size() - 1);
+        int from = (int) (blocks.get(cut)[0] >>> 3) + 16;
+        int to = cut + 1 < blocks.size() ? (int) (blocks.get(cut + 1)[0] >>> 3) : compressed.length - 11;
+        byte[] truncated = new byte[randomIntBetween(from, to)];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        CBZip2InputStreamTest.RecordingListener listener = new CBZip2InputStreamTest.RecordingListener();
+        ParallelCBZip2InputStream in = new ParallelCBZip2InputStream(new ByteArrayInputStream(truncated),
+                executor, randomIntBetween(1, 4), new BZip2DecoderOptions().listener(listener));
+        byte[] actual = readFully(in);
+        assertThat(in.getCorruptBlocks(), equalTo(1L));
+        assertThat(listener.gaps.size(), equalTo(1));
+        assertThat(listener.gaps.get(0)[0], equalTo(blocks.get(cut)[0]));
+        assertThat(listener.gaps.get(0)[1], equalTo(-1L));
+        assertThat(listener.gaps.get(0)[2], equalTo(blocks.get(cut)[1]));
+        assertThat(actual, equalTo(Arrays.copyOf(expected, (int) blocks.get(cut)[1])));
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStreamFailsWithoutRecovery() throws IOException {
+        byte[] compressed = compress(randomText(randomIntBetween(1000, 300000)), 1);
+        byte[] truncated = new byte[randomIntBetween(20, compressed.length - 11)];
+        System.arraycopy(compressed, 0, truncated, 0, truncated.length);
+
+        readFully(new ParallelCBZip2InputStream(new ByteArrayInputStream(truncated), executor, randomIntBetween(1, 4)));
+    }
+
+    @Test
+    public void testDecoderStats() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 600000));
+        byte[] compressed = compress(expected, 1);
+        List<long[]> blocks = CBZip2InputStreamTest.blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed)));
+
+        BZip2DecoderStats stats = new BZip2DecoderStats();
+        byte[] actual = readFully(new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed),
+                executor, randomIntBetween(1, 4), new BZip2DecoderOptions().stats(stats)));
+        assertThat(actual, equalTo(expected));
+        CBZip2InputStreamTest.assertStats(stats, compressed.length, expected.length, blocks.size());
+    }
+
+    @Test
+    public void testEmptyStream() throws IOException {
+        byte[] compressed = compress(new byte[0], 9);
+
+        byte[] actual = readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, 2));
+        assertThat(actual.length, equalTo(0));
+    }
+
+    @Test
+    public void testFalseBlockMagic() throws IOException {
+        assertDecodesFalseMagic(BZip2BlockScanner.BLOCK_MAGIC);
+    }
+
+    @Test
+    public void testFalseStreamEndMagic() throws IOException {
+        assertDecodesFalseMagic(BZip2BlockScanner.EOS_MAGIC);
+    }
+
+    /**
+     * Plants <tt>magic</tt> in every block: the map of the bytes used by a
+     * block follows right after its header, so the block just has to be
+     * made of the right bytes.
+     */
+    private void assertDecodesFalseMagic(long magic) throws IOException {
+        byte[] spelling = spelling(magic);
+        byte[] expected = new byte[randomIntBetween(150000, 300000)];
+        for (int i = 0; i < expected.length; i++) {
+            // no runs, their lengths would be bytes of the block as well
+            do {
+                expected[i] = spelling[randomIntBetween(0, spelling.length - 1)];
+            } while (i > 0 && expected[i] == expected[i - 1]);
+        }
+        byte[] compressed = compress(expected, 1);
+        int blocks = CBZip2InputStreamTest.blockPositions(new CBZip2InputStream(new ByteArrayInputStream(compressed))).size();
+        int streamEnds = 1;
+        assertTrue(countMagic(compressed, magic) > (magic == BZip2BlockScanner.BLOCK_MAGIC ? blocks : streamEnds));
+
+        assertThat(readFully(new ParallelCBZip2InputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4))), equalTo(expected));
+
+        CBZip2InputStreamTest.RecordingListener listener = new CBZip2InputStreamTest.RecordingListener();
+        ParallelCBZip2InputStream in = new ParallelCBZip2InputStream(new ByteArrayInputStream(compressed),
+                executor, randomIntBetween(1, 4), new BZip2DecoderOptions().listener(listener));
+        assertThat(readFully(in), equalTo(expected));
+        assertThat(in.getCorruptBlocks(), equalTo(0L));
+        assertThat(listener.gaps.size(), equalTo(0));
+    }
+
+    /**
+     * Returns the bytes whose map spells <tt>magic</tt>: the 16 bits telling
+     * which ranges of 16 byte values are used, followed by the 16 bits
+     * telling which bytes of the first and the second range are used.
+     */
+    private static byte[] spelling(long magic) {
+        int ranges = (int) (magic >>> 32) & 0xffff;
+        int[] maps = {(int) (magic >>> 16) & 0xffff, (int) magic & 0xffff};
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        int used = 0;
+        for (int range = 0; range < 16; range++) {
+            if ((ranges & (0x8000 >>> range)) == 0) {
+                continue;
+            }
+            int map = used < maps.length ? maps[used] : 0x8000;
+            used++;
+            for (int i = 0; i < 16; i++) {
+                if ((map & (0x8000 >>> i)) != 0) {
+                    bytes.write(range * 16 + i);
+                }
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static int countMagic(byte[] compressed, long magic) {
+        int count = 0;
+        long window = 0;
+        for (int i = 0; i < compressed.length; i++) {
+            window = (window << 8) | (compressed[i] & 0xff);
+            for (int shift = 0; shift < 8; shift++) {
+                if (i * 8 + 8 - shift >= 48 && ((window >>> shift) & 0xffffffffffffL) == magic) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.bzip2;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class SuffixArraysTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testSameAsComparisonSort() {
+        for (int iteration = 0; iteration < 200; iteration++) {
+            int length = randomIntBetween(1, 300);
+            int alphabet = randomIntBetween(1, 4);
+            byte[] block = new byte[length + 1];
+            for (int i = 1; i <= length; i++) {
+                block[i] = (byte) randomIntBetween('a', 'a' + alphabet - 1);
+            }
+            assertSorted(block, length);
+        }
+    }
+
+    @Test
+    public void testPeriodicBlocks() {
+        for (int iteration = 0; iteration < 100; iteration++) {
+            int period = randomIntBetween(1, 20);
+            int length = period * randomIntBetween(1, 20);
+            byte[] block = new byte[length + 1];
+            for (int i = 1; i <= period; i++) {
+                block[i] = (byte) randomIntBetween(0, 2);
+            }
+            for (int i = period + 1; i <= length; i++) {
+                block[i] = block[i - period];
+            }
+            assertSorted(block, length);
+        }
+    }
+
+    @Test
+    public void testReuse() {
+        // the buckets are shared by all levels and kept from block to block
+        SuffixArrays suffixArrays = new SuffixArrays(300);
+        for (int iteration = 0; iteration < 100; iteration++) {
+            int length = randomIntBetween(1, 300);
+            byte[] block = new byte[length + 1];
+            for (int i = 1; i <= length; i++) {
+                block[i] = (byte) (randomBoolean() ? randomIntBetween(0, 255) : randomIntBetween('a', 'b'));
+            }
+            assertSorted(suffixArrays, block, length);
+        }
+    }
+
+    private static void assertSorted(final byte[] block, final int length) {
+        assertSorted(new SuffixArrays(length), block, length);
+    }
+
+    /**
+     * Checks the transformed block, which does not depend on the order of
+     * equal rotations.
+     */
+    private static void assertSorted(final SuffixArrays suffixArrays, final byte[] block, final int length) {
+        int[] fmap = new int[length + 1];
+        suffixArrays.sortRotations(block, length, fmap, new int[length + 1]);
+
+        Integer[] expected = new Integer[length];
+        for (int i = 0; i < length; i++) {
+            expected[i] = i;
+        }
+        Arrays.sort(expected, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                for (int k = 0; k < length; k++) {
+                    int diff = (block[(a + k) % length + 1] & 0xff) - (block[(b + k) % length + 1] & 0xff);
+                    if (diff != 0) {
+                        return diff;
+                    }
+                }
+                return 0;
+            }
+        });
+
+        boolean[] seen = new boolean[length];
+        for (int i = 0; i < length; i++) {
+            assertThat(seen[fmap[i]], equalTo(false));
+            seen[fmap[i]] = true;
+            assertThat(preceding(block, length, fmap[i]), equalTo(preceding(block, length, expected[i])));
+        }
+    }
+
+    private static byte preceding(byte[] block, int length, int rotation) {
+        return block[rotation == 0 ? length : rotation];
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+
+public class DumpCacheTest extends ElasticsearchTestCase {
+
+    private HttpServer server;
+    private File directory;
+    private byte[] dump;
+    private String checksums;
+    private boolean ignoreRange;
+    private boolean lastModified;
+    private int version = 1;
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void startServer() throws Exception {
+        dump = new byte[randomIntBetween(1, 500000)];
+        getRandom().nextBytes(dump);
+        lastModified = randomBoolean();
+        String algorithm = randomBoolean() ? "MD5" : "SHA-1";
+        checksums = "0123456789abcdef0123456789abcdef  enwiki-latest-pages-logging.xml.gz\n"
+                + toHex(MessageDigest.getInstance(algorithm).digest(dump)) + "  enwiki-latest-pages-articles.xml.bz2\n";
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (exchange.getRequestURI().getPath().endsWith("md5sums.txt")) {
+                    send(exchange, 200, checksums.getBytes("UTF-8"), null);
+                    return;
+                }
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                ranges.add(String.valueOf(range));
+                exchange.getResponseHeaders().add(lastModified ? "Last-Modified" : "ETag", validator());
+                if (range == null || ignoreRange || (ifRange != null && !ifRange.equals(validator()))) {
+                    send(exchange, 200, dump, null);
+                    return;
+                }
+                int start = Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (start >= dump.length) {
+                    send(exchange, 416, new byte[0], "bytes */" + dump.length);
+                    return;
+                }
+                byte[] rest = new byte[dump.length - start];
+                System.arraycopy(dump, start, rest, 0, rest.length);
+                send(exchange, 206, rest, "bytes " + start + "-" + (dump.length - 1) + "/" + dump.length);
+            }
+        });
+        server.start();
+        directory = new File(System.getProperty("java.io.tmpdir"), "dump-cache-" + System.nanoTime());
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testDownloadWhileReading() throws IOException {
+        DumpCache cache = cache(true);
+        assertThat(cache.isComplete(), equalTo(false));
+
+        assertThat(readFully(cache.open(0)), equalTo(dump));
+        assertThat(cache.isComplete(), equalTo(true));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+        assertThat(new File(directory, cache.getFile().getName() + ".part").exists(), equalTo(false));
+    }
+
+    @Test
+    public void testResumePartialDownload() throws IOException {
+        int cached = randomIntBetween(1, dump.length);
+        writePart(dump, cached);
+
+        DumpCache cache = cache(true);
+        assertThat(readFully(cache.open(0)), equalTo(dump));
+        assertThat(ranges, equalTo(Collections.singletonList("bytes=" + cached + "-")));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+    }
+
+    @Test
+    public void testDumpChangedBetweenRuns() throws IOException {
+        dump = new byte[DumpCache.MAX_DRAIN + randomIntBetween(1, 500000)];
+        getRandom().nextBytes(dump);
+        DumpCache cache = cache(false);
+        InputStream in = cache.open(0);
+        byte[] head = new byte[randomIntBetween(1, dump.length - DumpCache.MAX_DRAIN - 1)];
+        for (int read = 0; read < head.length; ) {
+            read += in.read(head, read, head.length - read);
+        }
+        in.close();
+        assertThat(cache.isComplete(), equalTo(false));
+
+        // a new dump is published under the same name
+        dump = new byte[randomIntBetween(1, 500000)];
+        getRandom().nextBytes(dump);
+        version++;
+        ranges.clear();
+
+        cache = cache(false);
+        assertThat(readFully(cache.open(0)), equalTo(dump));
+        assertThat(ranges, equalTo(Collections.singletonList("bytes=" + head.length + "-")));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+    }
+
+    @Test
+    public void testPartWithoutValidator() throws IOException {
+        byte[] stale = new byte[randomIntBetween(1, 1000)];
+        writePart(stale, stale.length, false);
+
+        DumpCache cache = cache(true);
+        assertThat(readFully(cache.open(0)), equalTo(dump));
+        assertThat(ranges, equalTo(Collections.singletonList("null")));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+    }
+
+    @Test
+    public void testServerIgnoringRange() throws IOException {
+        ignoreRange = true;
+        byte[] stale = new byte[randomIntBetween(1, 1000)];
+        writePart(stale, stale.length);
+
+        DumpCache cache = cache(true);
+        assertThat(readFully(cache.open(0)), equalTo(dump));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+    }
+
+    @Test
+    public void testOpenAtOffset() throws IOException {
+        int offset = randomIntBetween(0, dump.length);
+        byte[] expected = new byte[dump.length - offset];
+        System.arraycopy(dump, offset, expected, 0, expected.length);
+
+        DumpCache cache = cache(randomBoolean());
+        assertThat(readFully(cache.open(offset)), equalTo(expected));
+        assertThat(readFully(new FileInputStream(cache.getFile())), equalTo(dump));
+    }
+
+    @Test
+    public void testCloseNearTheEnd() throws IOException {
+        DumpCache cache = cache(true);
+        InputStream in = cache.open(0);
+        byte[] head = new byte[Math.max(0, dump.length - randomIntBetween(1, DumpCache.MAX_DRAIN))];
+        for (int read = 0; read < head.length; ) {
+            read += in.read(head, read, head.length - read);
+        }
+        in.close();
+        assertThat(cache.isComplete(), equalTo(true));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws IOException {
+        checksums = "0123456789abcdef0123456789abcdef *enwiki-latest-pages-articles.xml.bz2\n";
+        DumpCache cache = cache(true);
+        try {
+            readFully(cache.open(0));
+            fail("expected a checksum mismatch");
+        } catch (IOException e) {
+            assertThat(e.getMessage().contains("does not match"), equalTo(true));
+        }
+        assertThat(cache.isComplete(), equalTo(false));
+        assertThat(new File(directory, cache.getFile().getName() + ".part").exists(), equalTo(false));
+    }
+
+    private DumpCache cache(boolean verify) throws IOException {
+        String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/enwiki/latest/";
+        return new DumpCache(new URL(base + "enwiki-latest-pages-articles.xml.bz2"), directory,
+                verify ? new URL(base + "enwiki-latest-md5sums.txt") : null);
+    }
+
+    private void writePart(byte[] bytes, int length) throws IOException {
+        writePart(bytes, length, true);
+    }
+
+    /**
+     * @param validated whether to keep the validator of the current dump
+     *                  along, as if the part file was started by it
+     */
+    private void writePart(byte[] bytes, int length, boolean validated) throws IOException {
+        assertThat(directory.mkdirs(), equalTo(true));
+        OutputStream out = new FileOutputStream(new File(directory, "enwiki-latest-pages-articles.xml.bz2.part"));
+        out.write(bytes, 0, length);
+        out.close();
+        if (validated) {
+            out = new FileOutputStream(new File(directory, "enwiki-latest-pages-articles.xml.bz2.part.validator"));
+            out.write(validator().getBytes("UTF-8"));
+            out.close();
+        }
+    }
+
+    private String validator() {
+        return lastModified ? "Mon, 0" + version + " Jan 2024 00:00:00 GMT" : "\"" + version + "\"";
+    }
+
+    private static void send(HttpExchange exchange, int status, byte[] body, String contentRange) throws IOException {
+        if (contentRange != null) {
+            exchange.getResponseHeaders().add("Content-Range", contentRange);
+        }
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2OutputStream;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class DumpCodecsTest extends ElasticsearchTestCase {
+
+    private static final String DUMP = "<mediawiki>\n" +
+            "  <page><title>First</title><id>1</id><revision><text>one</text></revision></page>\n" +
+            "  <page><title>Second</title><id>2</id><revision><text>two</text></revision></page>\n" +
+            "</mediawiki>\n";
+
+    @Test
+    public void testDetectAndDecode() throws IOException {
+        for (DumpCodec codec : DumpCodecs.defaults()) {
+            PushbackInputStream in = new PushbackInputStream(
+                    new ByteArrayInputStream(encode(codec, DUMP)), DumpCodecs.MAGIC_LENGTH);
+            assertThat(DumpCodecs.detect(DumpCodecs.defaults(), in), sameInstance(codec));
+            assertThat(new String(readFully(codec.decode(in)), "UTF-8"), equalTo(DUMP));
+        }
+    }
+
+    @Test
+    public void testDetectByteOrderMark() {
+        byte[] magic = {(byte) 0xef, (byte) 0xbb, (byte) 0xbf, '<'};
+        assertThat(DumpCodecs.detect(DumpCodecs.defaults(), magic, 4), sameInstance(DumpCodecs.XML));
+    }
+
+    @Test
+    public void testDetectUnknown() {
+        byte[] magic = {'B', 'Z', 'h', '0'};
+        assertThat(DumpCodecs.detect(DumpCodecs.defaults(), magic, 4), nullValue());
+        assertThat(DumpCodecs.detect(DumpCodecs.defaults(), magic, 0), nullValue());
+        assertThat(DumpCodecs.detect(Arrays.asList(DumpCodecs.BZIP2, DumpCodecs.GZIP), "<xml".getBytes(), 4), nullValue());
+    }
+
+    @Test
+    public void testGetByName() {
+        assertThat(DumpCodecs.get("bzip2"), sameInstance(DumpCodecs.BZIP2));
+        assertThat(DumpCodecs.get("gzip"), sameInstance(DumpCodecs.GZIP));
+        assertThat(DumpCodecs.get("xml"), sameInstance(DumpCodecs.XML));
+        assertThat(DumpCodecs.get(PassThroughCodec.class.getName()).getClass().getName(),
+                equalTo(PassThroughCodec.class.getName()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetUnknown() {
+        DumpCodecs.get("lzma");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetNoCodecClass() {
+        DumpCodecs.get(String.class.getName());
+    }
+
+    @Test
+    public void testParseRenamedDump() throws Exception {
+        DumpCodec codec = DumpCodecs.defaults().get(randomIntBetween(0, DumpCodecs.defaults().size() - 1));
+        // the suffix does not tell the format
+        File file = File.createTempFile("dump", ".bin");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encode(codec, DUMP));
+        } finally {
+            out.close();
+        }
+
+        final List<String> titles = new ArrayList<String>();
+        WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(file.toURI().toURL());
+        parser.setPageCallback(new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+                titles.add(page.getTitle().trim());
+            }
+        });
+        parser.parse();
+        assertThat(titles, equalTo(Arrays.asList("First", "Second")));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseUnknownFormat() throws Exception {
+        File file = File.createTempFile("dump", ".xml.bz2");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encode(DumpCodecs.GZIP, DUMP));
+        } finally {
+            out.close();
+        }
+
+        WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(file.toURI().toURL());
+        parser.setCodecs(Arrays.asList(DumpCodecs.BZIP2, DumpCodecs.XML));
+        parser.setPageCallback(new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+            }
+        });
+        parser.parse();
+    }
+
+    /**
+     * A codec which can be configured by class name.
+     */
+    public static class PassThroughCodec implements DumpCodec {
+
+        @Override
+        public boolean matches(byte[] magic, int length) {
+            return false;
+        }
+
+        @Override
+        public InputStream decode(InputStream in) {
+            return in;
+        }
+    }
+
+    private static byte[] encode(DumpCodec codec, String dump) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out;
+        if (codec == DumpCodecs.BZIP2) {
+            bytes.write('B');
+            bytes.write('Z');
+            out = new CBZip2OutputStream(bytes, randomIntBetween(1, 9));
+        } else if (codec == DumpCodecs.GZIP) {
+            out = new GZIPOutputStream(bytes);
+        } else {
+            out = bytes;
+        }
+        out.write(dump.getBytes("UTF-8"));
+        out.close();
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class DumpFilesTest extends ElasticsearchTestCase {
+
+    private static final String[] PARTS = {
+            "enwiki-latest-pages-articles1.xml-p1p41242.bz2",
+            "enwiki-latest-pages-articles2.xml-p41243p151573.bz2",
+            "enwiki-latest-pages-articles10.xml-p2336423p3046512.bz2",
+            "enwiki-latest-pages-articles27.xml-p69007743p69525325.bz2"
+    };
+
+    private static final String[] OTHERS = {
+            "enwiki-latest-pages-articles.xml.bz2",
+            "enwiki-latest-pages-articles-multistream1.xml-p1p41242.bz2",
+            "enwiki-latest-md5sums.txt"
+    };
+
+    @Test
+    public void testNaturalOrder() {
+        List<String> names = new ArrayList<String>(Arrays.asList("a10", "a2", "a1b", "a01", "b", "a1", "a"));
+        Collections.shuffle(names, getRandom());
+        Collections.sort(names, DumpFiles.NATURAL_ORDER);
+        assertThat(names, equalTo(Arrays.asList("a", "a01", "a1", "a1b", "a2", "a10", "b")));
+    }
+
+    @Test
+    public void testNoPattern() throws IOException {
+        String url = "http://dumps.wikimedia.org/enwiki/latest/enwiki-latest-pages-articles.xml.bz2";
+        assertThat(DumpFiles.expand(url), equalTo(Collections.singletonList(new URL(url))));
+    }
+
+    @Test
+    public void testExpandDirectory() throws IOException {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "dump-files-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        try {
+            List<String> names = new ArrayList<String>(Arrays.asList(PARTS));
+            names.addAll(Arrays.asList(OTHERS));
+            for (String name : names) {
+                assertTrue(new File(directory, name).createNewFile());
+            }
+            String base = directory.toURI().toURL().toExternalForm();
+            assertThat(DumpFiles.expand(base + "enwiki-latest-pages-articles[0-9]*.xml-p*.bz2"), equalTo(urls(base)));
+            assertThat(DumpFiles.expand(Arrays.asList(base + PARTS[0], base + "*-articles?.xml-p*",
+                    base + "*-articles??.xml-p*")), equalTo(urls(base)));
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testExpandIndexPage() throws IOException {
+        final StringBuilder page = new StringBuilder("<html><body><a href=\"../\">../</a>\n");
+        List<String> names = new ArrayList<String>(Arrays.asList(PARTS));
+        names.addAll(Arrays.asList(OTHERS));
+        Collections.shuffle(names, getRandom());
+        for (String name : names) {
+            String href = randomBoolean() ? name : "/enwiki/latest/" + name;
+            page.append("<a href=\"").append(href).append("\">").append(name).append("</a>\n");
+        }
+        page.append("<a href=\"?C=N;O=D\">Name</a><a href=\"/other/").append(PARTS[0]).append("\">x</a>\n");
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = page.toString().getBytes("UTF-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                out.close();
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/enwiki/latest/";
+            assertThat(DumpFiles.expand(base + "enwiki-latest-pages-articles[0-9]*.bz2"), equalTo(urls(base)));
+            try {
+                DumpFiles.expand(base + "frwiki-*.bz2");
+                fail("expected no match");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static List<URL> urls(String base) throws IOException {
+        List<URL> urls = new ArrayList<URL>();
+        for (String part : PARTS) {
+            urls.add(new URL(base + part));
+        }
+        return urls;
+    }
+}
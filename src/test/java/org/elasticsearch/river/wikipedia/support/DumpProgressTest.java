@@ -0,0 +1,146 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2OutputStream;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class DumpProgressTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testTrackStream() throws IOException {
+        byte[] bytes = new byte[randomIntBetween(1, 100000)];
+        int offset = randomIntBetween(0, 1000);
+        DumpProgress progress = new DumpProgress();
+        progress.setSize(offset + bytes.length);
+        assertThat(progress.isStarted(), equalTo(false));
+        assertThat(progress.getRemainingMillis(), equalTo(-1L));
+
+        progress.start(offset);
+        InputStream in = progress.track(new ByteArrayInputStream(bytes));
+        int skip = randomIntBetween(0, bytes.length);
+        assertThat(in.skip(skip), equalTo((long) skip));
+        byte[] buffer = new byte[randomIntBetween(1, 1000)];
+        while (in.read(buffer, 0, randomIntBetween(1, buffer.length)) != -1) {
+            if (randomBoolean()) {
+                in.read();
+            }
+        }
+        assertThat(progress.getPosition(), equalTo((long) offset + bytes.length));
+        assertThat(progress.getBytesRead(), equalTo((long) bytes.length));
+        assertThat(progress.getFraction(), equalTo(1.0));
+    }
+
+    @Test
+    public void testRemainingMillis() {
+        assertThat(DumpProgress.remainingMillis(3000, 1000, 500), equalTo(1500L));
+        assertThat(DumpProgress.remainingMillis(0, 1000, 500), equalTo(0L));
+        assertThat(DumpProgress.remainingMillis(-1, 1000, 500), equalTo(-1L));
+        assertThat(DumpProgress.remainingMillis(3000, 0, 500), equalTo(-1L));
+    }
+
+    @Test
+    public void testParse() throws Exception {
+        StringBuilder dump = new StringBuilder("<mediawiki>\n");
+        int pages = randomIntBetween(1, 2000);
+        for (int i = 1; i <= pages; i++) {
+            dump.append("  <page><title>Page ").append(i).append("</title><id>").append(i)
+                    .append("</id><revision><text>text of page ").append(i).append("</text></revision></page>\n");
+        }
+        dump.append("</mediawiki>\n");
+        File file = File.createTempFile("dump-progress", ".xml.bz2");
+        try {
+            OutputStream out = new FileOutputStream(file);
+            out.write('B');
+            out.write('Z');
+            CBZip2OutputStream bzip2 = new CBZip2OutputStream(out, 1);
+            bzip2.write(dump.toString().getBytes("UTF-8"));
+            bzip2.close();
+
+            final DumpProgress progress = new DumpProgress();
+            WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(file.toURI().toURL());
+            parser.setProgress(progress);
+            parser.setPageCallback(new PageCallbackHandler() {
+                @Override
+                public void process(WikiPage page) {
+                    progress.pageProcessed();
+                }
+            });
+            parser.parse();
+            assertThat(progress.getSize(), equalTo(file.length()));
+            assertThat(progress.getPosition(), equalTo(file.length()));
+            assertThat(progress.getPages(), equalTo((long) pages));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testSize() throws IOException {
+        final byte[] dump = new byte[randomIntBetween(0, 100000)];
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!"HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.sendResponseHeaders(405, -1);
+                } else if (exchange.getRequestURI().getPath().endsWith(".bz2")) {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(dump.length));
+                    exchange.sendResponseHeaders(200, -1);
+                } else {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            assertThat(DumpProgress.size(new URL(base + "enwiki-latest-pages-articles.xml.bz2")), equalTo((long) dump.length));
+            assertThat(DumpProgress.size(new URL(base + "missing")), equalTo(-1L));
+        } finally {
+            server.stop(0);
+        }
+
+        File file = File.createTempFile("dump-progress", ".xml");
+        try {
+            FileOutputStream out = new FileOutputStream(file);
+            out.write(dump);
+            out.close();
+            assertThat(DumpProgress.size(file.toURI().toURL()), equalTo((long) dump.length));
+        } finally {
+            file.delete();
+        }
+    }
+}
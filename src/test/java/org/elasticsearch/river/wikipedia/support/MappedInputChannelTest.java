@@ -0,0 +1,120 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class MappedInputChannelTest extends ElasticsearchTestCase {
+
+    private File file;
+    private byte[] content;
+
+    @Before
+    public void writeFile() throws IOException {
+        content = new byte[randomIntBetween(1, 100000)];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) randomIntBetween(0, 255);
+        }
+        file = File.createTempFile("wikipedia", ".xml");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void testReadAcrossWindows() throws IOException {
+        MappedInputChannel channel = new MappedInputChannel(file, randomIntBetween(1, 10000));
+        assertThat(channel.size(), equalTo((long) content.length));
+
+        ByteBuffer actual = ByteBuffer.allocate(content.length);
+        ByteBuffer buffer = ByteBuffer.allocate(randomIntBetween(1, 20000));
+        while (channel.read(buffer) >= 0) {
+            buffer.flip();
+            actual.put(buffer);
+            buffer.clear();
+        }
+        assertThat(channel.position(), equalTo((long) content.length));
+        channel.close();
+        assertThat(actual.array(), equalTo(content));
+    }
+
+    @Test
+    public void testPosition() throws IOException {
+        MappedInputChannel channel = new MappedInputChannel(file, randomIntBetween(1, 10000));
+        for (int i = 0; i < 10; i++) {
+            int position = randomIntBetween(0, content.length - 1);
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            assertThat(channel.position(position).read(buffer), equalTo(1));
+            assertThat(buffer.get(0), equalTo(content[position]));
+            assertThat(channel.position(), equalTo(position + 1L));
+        }
+        assertThat(channel.position(content.length + 1).read(ByteBuffer.allocate(1)), equalTo(-1));
+        channel.close();
+    }
+
+    @Test
+    public void testInputStream() throws IOException {
+        MappedInputChannel channel = new MappedInputChannel(file, randomIntBetween(1, 10000));
+        InputStream in = channel.position(randomIntBetween(0, content.length)).newInputStream();
+        int start = (int) channel.position();
+        // GZIPInputStream needs the number of bytes left to read multi-member files
+        assertThat(in.available(), equalTo(content.length - start));
+
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        byte[] buffer = new byte[randomIntBetween(1, 20000)];
+        for (int read; (read = in.read(buffer)) != -1; ) {
+            actual.write(buffer, 0, read);
+        }
+        assertThat(in.available(), equalTo(0));
+        in.close();
+        assertThat(channel.isOpen(), equalTo(false));
+
+        byte[] expected = new byte[content.length - start];
+        System.arraycopy(content, start, expected, 0, expected.length);
+        assertThat(actual.toByteArray(), equalTo(expected));
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void testReadClosed() throws IOException {
+        MappedInputChannel channel = new MappedInputChannel(file);
+        channel.close();
+        channel.read(ByteBuffer.allocate(1));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2OutputStream;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class MultistreamIndexTest extends ElasticsearchTestCase {
+
+    private static final String INDEX = "100:1:First\n" +
+            "100:2:Second\n" +
+            "200:3:Third: a title with colons\n" +
+            "200:4:Fourth\n" +
+            "300:5:Fifth\n" +
+            "400:6:Sixth\n";
+
+    @Test
+    public void testSelectIdRange() throws IOException {
+        List<MultistreamIndex.Range> ranges = select(new WikiPageFilter(2, 3, null));
+        assertThat(ranges.size(), equalTo(1));
+        assertThat(ranges.get(0).getStart(), equalTo(100L));
+        assertThat(ranges.get(0).getEnd(), equalTo(300L));
+    }
+
+    @Test
+    public void testSelectTitles() throws IOException {
+        List<MultistreamIndex.Range> ranges = select(new WikiPageFilter(-1, -1,
+                Arrays.asList("Third: a title with colons", "Sixth")));
+        assertThat(ranges.size(), equalTo(2));
+        assertThat(ranges.get(0).getStart(), equalTo(200L));
+        assertThat(ranges.get(0).getEnd(), equalTo(300L));
+        assertThat(ranges.get(1).getStart(), equalTo(400L));
+        assertThat(ranges.get(1).getEnd(), equalTo(-1L));
+    }
+
+    @Test
+    public void testParseSelectedStreams() throws Exception {
+        // header stream, one stream per three pages, footer stream
+        ByteArrayOutputStream dump = new ByteArrayOutputStream();
+        StringBuilder index = new StringBuilder();
+        writeStream(dump, "<mediawiki xmlns=\"http://www.mediawiki.org/xml/export-0.8/\">\n" +
+                "  <siteinfo><sitename>Wikipedia</sitename></siteinfo>\n");
+        int pages = randomIntBetween(1, 40);
+        for (int id = 1; id <= pages; id += 3) {
+            StringBuilder stream = new StringBuilder();
+            for (int i = id; i < id + 3 && i <= pages; i++) {
+                index.append(dump.size()).append(':').append(i).append(":Page ").append(i).append('\n');
+                stream.append("  <page>\n    <title>Page ").append(i).append("</title>\n    <id>").append(i)
+                        .append("</id>\n    <revision><id>").append(1000 + i)
+                        .append("</id><text>text of ").append(i).append("</text></revision>\n  </page>\n");
+            }
+            writeStream(dump, stream.toString());
+        }
+        writeStream(dump, "</mediawiki>\n");
+
+        File file = File.createTempFile("multistream", ".xml.bz2");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            dump.writeTo(out);
+        } finally {
+            out.close();
+        }
+
+        int fromId = randomIntBetween(1, pages);
+        int toId = randomIntBetween(fromId, pages);
+        WikiPageFilter filter = new WikiPageFilter(fromId, toId, null);
+        List<MultistreamIndex.Range> ranges = MultistreamIndex.select(
+                new BufferedReader(new StringReader(index.toString())), filter);
+
+        final List<Long> ids = new ArrayList<Long>();
+        final PageCallbackHandler handler = new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+                ids.add(Long.parseLong(page.getID().trim()));
+            }
+        };
+        WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(file.toURI().toURL());
+        parser.setPageCallback(handler);
+        parser.setStreamRanges(ranges);
+        parser.parse();
+
+        // whole streams are read, so the selected pages are surrounded by their neighbours
+        assertThat(ids.get(0), equalTo((long) ((fromId - 1) / 3 * 3 + 1)));
+        assertThat(ids.get(ids.size() - 1), equalTo((long) Math.min(pages, (toId - 1) / 3 * 3 + 3)));
+        for (int i = 1; i < ids.size(); i++) {
+            assertThat(ids.get(i), equalTo(ids.get(i - 1) + 1));
+        }
+    }
+
+    private static List<MultistreamIndex.Range> select(WikiPageFilter filter) throws IOException {
+        return MultistreamIndex.select(new BufferedReader(new StringReader(INDEX)), filter);
+    }
+
+    private static void writeStream(ByteArrayOutputStream dump, String text) throws IOException {
+        dump.write('B');
+        dump.write('Z');
+        CBZip2OutputStream bzip2 = new CBZip2OutputStream(dump, 1);
+        byte[] bytes = text.getBytes("UTF-8");
+        bzip2.write(bytes, 0, bytes.length);
+        bzip2.close();
+    }
+}
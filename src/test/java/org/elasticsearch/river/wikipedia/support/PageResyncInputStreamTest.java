@@ -0,0 +1,183 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.BZip2BlockPosition;
+import org.elasticsearch.river.wikipedia.bzip2.BZip2CorruptBlockListener;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class PageResyncInputStreamTest extends ElasticsearchTestCase {
+
+    private static final String GAP = "\u0000";
+
+    private static final BZip2CorruptBlockListener IGNORE = new BZip2CorruptBlockListener() {
+        @Override
+        public void corruptBlock(long blockBitOffset, long nextBitOffset, long outputOffset, Throwable cause) {
+        }
+    };
+
+    @Test
+    public void testNoGaps() throws IOException {
+        String dump = "<mediawiki><siteinfo/>\n<page><title>A</title></page>\n<page><title>B</title></page>\n</mediawiki>";
+        assertThat(resync(dump.split("(?<=e)")), equalTo(dump));
+    }
+
+    @Test
+    public void testGapWithinPage() throws IOException {
+        assertThat(resync("<mediawiki><siteinfo/>\n<page><title>A</title></page>\n<page><tit", GAP,
+                "le>B</title></page>\n<page><title>C</title></page>\n</mediawiki>"),
+                equalTo("<mediawiki><siteinfo/>\n<page><title>A</title></page>\n<page><title>C</title></page>\n</mediawiki>"));
+    }
+
+    @Test
+    public void testGapBetweenPages() throws IOException {
+        assertThat(resync("<mediawiki>\n<page><title>A</title></page>\n  <pa", GAP, "ge><title>B</title></p",
+                "age>\n<pa", "ge><title>C</title></page>\n</mediawiki>"),
+                equalTo("<mediawiki>\n<page><title>A</title></page>\n  <page><title>C</title></page>\n</mediawiki>"));
+    }
+
+    @Test
+    public void testGapWithinHeader() throws IOException {
+        assertThat(resync("<mediawiki><siteinfo><sitena", GAP, "me/></siteinfo>\n<page><title>A</title></page>\n</mediawiki>"),
+                equalTo("<mediawiki><page><title>A</title></page>\n</mediawiki>"));
+    }
+
+    @Test
+    public void testGapAtEnd() throws IOException {
+        assertThat(resync("<mediawiki>\n<page><title>A</title></page>\n<page><title>B</ti", GAP),
+                equalTo("<mediawiki>\n<page><title>A</title></page>\n</mediawiki>"));
+    }
+
+    @Test
+    public void testPageStarts() throws IOException {
+        String[] chunks = {"<mediawiki>\n<page><title>A</title></page>\n<page><tit", GAP,
+                "le>B</title></page>\n<pa", "ge><title>C</title></page>\n<page><title>D</title></page>\n</mediawiki>"};
+        String decoded = "";
+        for (String chunk : chunks) {
+            decoded += chunk.equals(GAP) ? "" : chunk;
+        }
+
+        PageResyncInputStream resync = new PageResyncInputStream(IGNORE);
+        Chunks in = new Chunks(resync, chunks);
+        resync.setInput(in);
+        resync.trackPageStarts(in);
+        assertThat(read(resync), equalTo("<mediawiki>\n<page><title>A</title></page>\n"
+                + "<page><title>C</title></page>\n<page><title>D</title></page>\n</mediawiki>"));
+
+        // the page cut by the gap is not reported
+        assertThat(resync.pollPageStart(), equalTo((long) decoded.indexOf("<page><title>A")));
+        assertThat(resync.pollPageStart(), equalTo((long) decoded.indexOf("<page><title>C")));
+        assertThat(resync.pollPageStart(), equalTo((long) decoded.indexOf("<page><title>D")));
+        assertThat(resync.pollPageStart(), equalTo(-1L));
+    }
+
+    /**
+     * Reads the chunks through a resync stream, {@link #GAP} marks a dropped
+     * block.
+     */
+    private String resync(String... chunks) throws IOException {
+        PageResyncInputStream resync = new PageResyncInputStream(IGNORE);
+        resync.setInput(new Chunks(resync, chunks));
+        return read(resync);
+    }
+
+    private String read(PageResyncInputStream resync) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[randomIntBetween(1, 100)];
+        for (int read; (read = resync.read(buffer)) != -1; ) {
+            out.write(buffer, 0, read);
+        }
+        resync.close();
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Returns the chunks, reporting a gap to the resync stream for every
+     * {@link #GAP}. The output offset counts the bytes returned.
+     */
+    private static class Chunks extends InputStream implements BZip2BlockPosition {
+
+        private final PageResyncInputStream resync;
+        private final Iterator<String> it;
+        private byte[] chunk = new byte[0];
+        private int pos;
+        private long outputOffset;
+
+        Chunks(PageResyncInputStream resync, String... chunks) {
+            this.resync = resync;
+            this.it = Arrays.asList(chunks).iterator();
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // the rest of a chunk is returned before the gap following it
+            while (pos == chunk.length) {
+                if (!it.hasNext()) {
+                    return -1;
+                }
+                String next = it.next();
+                if (next.equals(GAP)) {
+                    resync.corruptBlock(0, -1, 0, new IOException("corrupt"));
+                    continue;
+                }
+                chunk = next.getBytes("UTF-8");
+                pos = 0;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            outputOffset += n;
+            return n;
+        }
+
+        @Override
+        public long getBlockBitOffset() {
+            return 0;
+        }
+
+        @Override
+        public int getBlockSize100k() {
+            return 9;
+        }
+
+        @Override
+        public long getBlockOutputOffset() {
+            return 0;
+        }
+
+        @Override
+        public long getOutputOffset() {
+            return outputOffset;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipException;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.randomText;
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ParallelGZipInputStreamTest extends ElasticsearchTestCase {
+
+    /**
+     * Looks like a member header, but is part of the data.
+     */
+    private static final byte[] FAKE_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, 3};
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void shutdownExecutor() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testDecodeMembers() throws IOException {
+        byte[] expected = randomText(randomIntBetween(0, 500000));
+        List<Long> offsets = new ArrayList<Long>();
+        byte[] compressed = gzipMembers(expected, randomIntBetween(1, 20), false, offsets);
+
+        assertThat(readFully(new ParallelGZipInputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4))), equalTo(expected));
+        assertThat(readFully(new ParallelGZipInputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4), toArray(offsets))), equalTo(expected));
+    }
+
+    @Test
+    public void testDecodeFakeHeaders() throws IOException {
+        // stored blocks keep the fake headers as they are
+        byte[] expected = randomText(randomIntBetween(1000, 300000));
+        for (int i = 0; i < 20; i++) {
+            System.arraycopy(FAKE_HEADER, 0, expected, randomIntBetween(0, expected.length - FAKE_HEADER.length),
+                    FAKE_HEADER.length);
+        }
+        byte[] compressed = gzipMembers(expected, randomIntBetween(1, 5), true, new ArrayList<Long>());
+
+        assertThat(readFully(new ParallelGZipInputStream(
+                new ByteArrayInputStream(compressed), executor, randomIntBetween(1, 4))), equalTo(expected));
+    }
+
+    @Test
+    public void testDecodeLargeMember() throws IOException {
+        byte[] expected = randomText(ParallelGZipInputStream.MAX_SEGMENT_SIZE + randomIntBetween(1, 300000));
+        byte[] compressed = gzipMembers(expected, randomIntBetween(1, 3), true, new ArrayList<Long>());
+
+        assertThat(readFully(new ParallelGZipInputStream(
+                new ByteArrayInputStream(compressed), executor, 2)), equalTo(expected));
+    }
+
+    @Test
+    public void testSameAsGZIPInputStream() throws IOException {
+        byte[] expected = randomText(randomIntBetween(1, 100000));
+        byte[] compressed = gzipMembers(expected, randomIntBetween(1, 5), false, new ArrayList<Long>());
+        // GZIPInputStream ignores trailing garbage, and so does this stream
+        ByteArrayOutputStream padded = new ByteArrayOutputStream();
+        padded.write(compressed, 0, compressed.length);
+        byte[] garbage = new byte[randomIntBetween(1, 100)];
+        padded.write(garbage, 0, garbage.length);
+
+        assertThat(readFully(new GZIPInputStream(new ByteArrayInputStream(padded.toByteArray()))), equalTo(expected));
+        assertThat(readFully(new ParallelGZipInputStream(
+                new ByteArrayInputStream(padded.toByteArray()), executor, 2)), equalTo(expected));
+    }
+
+    @Test(expected = ZipException.class)
+    public void testCorruptMember() throws IOException {
+        byte[] compressed = gzipMembers(randomText(randomIntBetween(1, 100000)), randomIntBetween(1, 5), false,
+                new ArrayList<Long>());
+        // flip a bit of the CRC of the last member
+        compressed[compressed.length - 8] ^= 1;
+
+        readFully(new ParallelGZipInputStream(new ByteArrayInputStream(compressed), executor, 2));
+    }
+
+    @Test(expected = ZipException.class)
+    public void testNotGZip() throws IOException {
+        readFully(new ParallelGZipInputStream(new ByteArrayInputStream("<mediawiki/>".getBytes("UTF-8")), executor, 2));
+    }
+
+    @Test
+    public void testReadMemberOffsets() throws IOException {
+        long[] offsets = ParallelGZipInputStream.readMemberOffsets(
+                new ByteArrayInputStream("0\n\n  120\n40\n".getBytes("UTF-8")));
+        assertThat(offsets.length, equalTo(3));
+        assertThat(offsets[0], equalTo(0L));
+        assertThat(offsets[1], equalTo(40L));
+        assertThat(offsets[2], equalTo(120L));
+    }
+
+    /**
+     * Compresses <tt>data</tt> as up to <tt>members</tt> gzip members and
+     * adds their offsets to <tt>offsets</tt>.
+     */
+    private static byte[] gzipMembers(byte[] data, int members, boolean stored, List<Long> offsets) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int start = 0;
+        for (int i = 0; i < members; i++) {
+            int end = i == members - 1 ? data.length : randomIntBetween(start, data.length);
+            offsets.add((long) out.size());
+            GZIPOutputStream gzip = stored ? new StoredGZIPOutputStream(out) : new GZIPOutputStream(out);
+            gzip.write(data, start, end - start);
+            gzip.finish();
+            start = end;
+        }
+        return out.toByteArray();
+    }
+
+    private static class StoredGZIPOutputStream extends GZIPOutputStream {
+
+        StoredGZIPOutputStream(ByteArrayOutputStream out) throws IOException {
+            super(out);
+            def.setLevel(Deflater.NO_COMPRESSION);
+        }
+    }
+
+    private static long[] toArray(List<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.notNullValue;
+
+public class ReadAheadInputStreamTest extends ElasticsearchTestCase {
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    @After
+    public void shutdownExecutor() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        byte[] expected = new byte[randomIntBetween(0, 300000)];
+        getRandom().nextBytes(expected);
+
+        InputStream in = new ReadAheadInputStream(new TrickleInputStream(expected, -1), executor,
+                randomIntBetween(1, 10000), randomIntBetween(2, 8));
+        assertThat(readFully(in), equalTo(expected));
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        byte[] bytes = new byte[randomIntBetween(0, 100000)];
+        InputStream in = new ReadAheadInputStream(new TrickleInputStream(bytes, randomIntBetween(0, bytes.length)),
+                executor, randomIntBetween(1, 10000), randomIntBetween(2, 8));
+        try {
+            readFully(in);
+            fail("expected the failure of the wrapped stream");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("connection reset"));
+        }
+        // the failure is not taken for the end of the stream later on
+        try {
+            in.read();
+            fail("expected the failure of the wrapped stream again");
+        } catch (IOException e) {
+            assertThat(e.getMessage(), equalTo("connection reset"));
+        }
+    }
+
+    @Test
+    public void testUncheckedFailure() throws Exception {
+        final InputStream source = new InputStream() {
+            private int reads;
+
+            @Override
+            public int read() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (++reads == 4) {
+                    throw new IllegalStateException("broken source");
+                }
+                b[off] = 1;
+                return 1;
+            }
+        };
+        final InputStream in = new ReadAheadInputStream(source, executor, 1, 2);
+        // read on another thread, a lost end marker would block forever
+        FutureTask<Throwable> reading = new FutureTask<Throwable>(new Callable<Throwable>() {
+            @Override
+            public Throwable call() throws Exception {
+                try {
+                    readFully(in);
+                    return null;
+                } catch (IOException e) {
+                    return e;
+                }
+            }
+        });
+        Thread thread = new Thread(reading);
+        thread.setDaemon(true);
+        thread.start();
+        Throwable failure = reading.get(10, TimeUnit.SECONDS);
+        assertThat(failure, notNullValue());
+        assertThat(failure.getCause(), instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void testGZipMembers() throws IOException {
+        // a slow connection must not look like the end of a multi-member file
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        for (int member = randomIntBetween(2, 10); member > 0; member--) {
+            byte[] bytes = new byte[randomIntBetween(1, 10000)];
+            getRandom().nextBytes(bytes);
+            expected.write(bytes);
+            GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+            gzip.write(bytes);
+            gzip.finish();
+        }
+
+        InputStream in = new ReadAheadInputStream(new TrickleInputStream(compressed.toByteArray(), -1), executor,
+                randomIntBetween(1, 1000), 2);
+        assertThat(readFully(new GZIPInputStream(in)), equalTo(expected.toByteArray()));
+    }
+
+    @Test
+    public void testCloseWhileReadingAhead() throws Exception {
+        final byte[] bytes = new byte[1000000];
+        final boolean[] closed = new boolean[1];
+        InputStream source = new ByteArrayInputStream(bytes) {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        InputStream in = new ReadAheadInputStream(source, executor, 1000, 2);
+        assertThat(in.read(), equalTo(0));
+        in.close();
+        assertThat(closed[0], equalTo(true));
+
+        // the reading task is gone, the executor runs the next one
+        executor.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns a few bytes per read, never reports any as available and
+     * fails at the given offset, if any.
+     */
+    private static class TrickleInputStream extends InputStream {
+
+        private final byte[] bytes;
+        private final int failAt;
+        private int position;
+
+        TrickleInputStream(byte[] bytes, int failAt) {
+            this.bytes = bytes;
+            this.failAt = failAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position == failAt) {
+                throw new IOException("connection reset");
+            }
+            if (position == bytes.length) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(bytes.length - position, randomIntBetween(1, 5000)));
+            if (failAt >= 0) {
+                n = Math.min(n, failAt - position);
+            }
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return 0;
+        }
+    }
+}
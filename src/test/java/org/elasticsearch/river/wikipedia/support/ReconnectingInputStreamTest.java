@@ -0,0 +1,133 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.readFully;
+import static org.hamcrest.Matchers.equalTo;
+
+public class ReconnectingInputStreamTest extends ElasticsearchTestCase {
+
+    private HttpServer server;
+    private URL url;
+    private byte[] dump;
+    private volatile boolean ignoreRange;
+    private volatile boolean dropImmediately;
+
+    /**
+     * Connections dropped after a few bytes, before serving whole
+     * responses again.
+     */
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+    private final List<Long> reconnects = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Before
+    public void startServer() throws Exception {
+        dump = new byte[randomIntBetween(1000, 300000)];
+        getRandom().nextBytes(dump);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                ranges.add(String.valueOf(range));
+                int start = range == null || ignoreRange ? 0 : Integer.parseInt(range.substring("bytes=".length(), range.indexOf('-')));
+                if (start > 0) {
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (dump.length - 1) + "/" + dump.length);
+                }
+                exchange.sendResponseHeaders(start > 0 ? 206 : 200, dump.length - start);
+                OutputStream out = exchange.getResponseBody();
+                int end = dump.length;
+                if (failures.getAndDecrement() > 0) {
+                    end = dropImmediately ? start : randomIntBetween(start, dump.length - 1);
+                }
+                out.write(dump, start, end - start);
+                out.flush();
+                exchange.close();
+            }
+        });
+        server.start();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/enwiki-latest-pages-articles.xml.bz2");
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    @Test
+    public void testReconnect() throws IOException {
+        failures.set(randomIntBetween(1, 5));
+        ignoreRange = randomBoolean();
+        int offset = randomIntBetween(0, 500);
+
+        byte[] actual = readFully(new ReconnectingInputStream(url, offset, policy(5)));
+        byte[] expected = new byte[dump.length - offset];
+        System.arraycopy(dump, offset, expected, 0, expected.length);
+        assertThat(actual, equalTo(expected));
+        assertThat(failures.get() < 0, equalTo(true));
+        // every reconnect asks for the bytes not read yet
+        for (int i = 0; i < reconnects.size(); i++) {
+            assertThat(ranges.get(i + 1), equalTo(reconnects.get(i) == 0 ? "null" : "bytes=" + reconnects.get(i) + "-"));
+        }
+    }
+
+    @Test
+    public void testGiveUp() throws IOException {
+        failures.set(Integer.MAX_VALUE);
+        dropImmediately = true;
+        int attempts = randomIntBetween(0, 3);
+        InputStream in = new ReconnectingInputStream(url, 0, policy(attempts));
+        try {
+            readFully(in);
+            fail("expected the connection to fail");
+        } catch (IOException e) {
+            // attempts only count while no byte is read
+            assertThat(reconnects.size(), equalTo(attempts));
+        }
+    }
+
+    private ReconnectPolicy policy(int attempts) {
+        return new ReconnectPolicy(attempts, 0, new ReconnectListener() {
+            @Override
+            public void reconnecting(URL url, long offset, int attempt, IOException cause) {
+                reconnects.add(offset);
+            }
+        });
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+import static org.hamcrest.Matchers.equalTo;
+
+public class UTF8ReaderTest extends ElasticsearchTestCase {
+
+    @Test
+    public void testDecode() throws IOException {
+        StringBuilder text = new StringBuilder();
+        int length = randomIntBetween(0, 100000);
+        while (text.length() < length) {
+            switch (randomIntBetween(0, 4)) {
+                case 0:
+                case 1:
+                    text.append((char) randomIntBetween(0, 0x7f));
+                    break;
+                case 2:
+                    text.append((char) randomIntBetween(0x80, 0x7ff));
+                    break;
+                case 3:
+                    text.append((char) (randomBoolean() ? randomIntBetween(0x800, 0xd7ff) : randomIntBetween(0xe000, 0xffff)));
+                    break;
+                default:
+                    text.appendCodePoint(randomIntBetween(0x10000, 0x10ffff));
+            }
+        }
+        String expected = text.toString();
+        assertThat(decode(expected.getBytes("UTF-8")), equalTo(expected));
+    }
+
+    @Test
+    public void testMalformed() throws IOException {
+        byte[] bytes = new byte[randomIntBetween(0, 10000)];
+        for (int i = 0; i < bytes.length; i++) {
+            // mostly bytes of multi byte sequences
+            bytes[i] = (byte) (randomIntBetween(0, 9) == 0 ? randomIntBetween(0, 0x7f) : randomIntBetween(0x80, 0xff));
+        }
+        assertThat(decode(bytes), equalTo(new String(bytes, "UTF-8")));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[][] cases = {
+                {(byte) 0xc3},
+                {(byte) 0xe2, (byte) 0x82},
+                {(byte) 0xf0, (byte) 0x9f, (byte) 0x98},
+                {'a', (byte) 0xf0, (byte) 0x9f},
+        };
+        for (byte[] bytes : cases) {
+            assertThat(decode(bytes), equalTo(new String(bytes, "UTF-8")));
+        }
+    }
+
+    /**
+     * Decodes through a small buffer from a stream returning few bytes at
+     * a time, into reads of random lengths.
+     */
+    private String decode(byte[] bytes) throws IOException {
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(bytes)) {
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, randomIntBetween(1, 10)));
+            }
+        };
+        Reader reader = randomBoolean() ? new UTF8Reader(in) : new UTF8Reader(in, randomIntBetween(4, 20));
+        StringBuilder decoded = new StringBuilder();
+        char[] buffer = new char[randomIntBetween(1, 100)];
+        while (true) {
+            if (randomIntBetween(0, 9) == 0) {
+                int c = reader.read();
+                if (c == -1) {
+                    break;
+                }
+                decoded.append((char) c);
+            } else {
+                int off = randomIntBetween(0, buffer.length - 1);
+                int read = reader.read(buffer, off, randomIntBetween(1, buffer.length - off));
+                if (read == -1) {
+                    break;
+                }
+                assertTrue(read > 0);
+                decoded.append(buffer, off, read);
+            }
+        }
+        reader.close();
+        return decoded.toString();
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Licensed to Elasticsearch under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Elasticsearch licenses this file to you under
+ * the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.elasticsearch.river.wikipedia.support;
+
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2InputStream;
+import org.elasticsearch.river.wikipedia.bzip2.CBZip2OutputStream;
+import org.elasticsearch.test.ElasticsearchTestCase;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.elasticsearch.river.wikipedia.WikipediaTestUtils.compress;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+
+public class WikiXMLStAXParserTest extends ElasticsearchTestCase {
+
+    private static final String[] WORDS = {"Lorem", "ipsum", "[[dolor]]", "café", "München", "&amp;", "&lt;b&gt;",
+            "日本", "𝄞", "{{cite}}", "\n"};
+
+    @Test
+    public void testIterator() throws Exception {
+        int pages = randomIntBetween(0, 200);
+        URL dump = writeDump(pages, randomBoolean());
+
+        WikiPageIterator iterator = WikiXMLParserFactory.getStAXParser(dump).getIterator();
+        for (int i = 0; i < pages; i++) {
+            assertTrue(iterator.hasMorePages());
+            // asking again does not skip a page
+            assertTrue(iterator.hasMorePages());
+            WikiPage page = iterator.nextPage();
+            assertThat(page.getTitle(), equalTo("Title " + i));
+            assertThat(page.getID(), equalTo(String.valueOf(i + 1)));
+        }
+        assertFalse(iterator.hasMorePages());
+        assertThat(iterator.nextPage(), nullValue());
+        iterator.close();
+    }
+
+    @Test
+    public void testSameAsSAXParser() throws Exception {
+        URL dump = writeDump(randomIntBetween(1, 200), randomBoolean());
+        final List<WikiPage> expected = new ArrayList<WikiPage>();
+        WikiXMLParser sax = WikiXMLParserFactory.getSAXParser(dump);
+        sax.setPageCallback(new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+                expected.add(page);
+            }
+        });
+        sax.parse();
+
+        final List<WikiPage> pages = new ArrayList<WikiPage>();
+        WikiXMLParser stax = WikiXMLParserFactory.getStAXParser(dump);
+        stax.setPageCallback(new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+                pages.add(page);
+            }
+        });
+        stax.parse();
+
+        assertThat(pages.size(), equalTo(expected.size()));
+        for (int i = 0; i < pages.size(); i++) {
+            // the SAX parser keeps the white space following the title and the text
+            assertThat(pages.get(i).getTitle(), equalTo(expected.get(i).getTitle().trim()));
+            assertThat(pages.get(i).getID(), equalTo(expected.get(i).getID()));
+            assertThat(pages.get(i).getWikiText().trim(), equalTo(expected.get(i).getWikiText().trim()));
+        }
+    }
+
+    @Test
+    public void testCloseEarly() throws Exception {
+        WikiPageIterator iterator = WikiXMLParserFactory.getStAXParser(writeDump(10, true)).getIterator();
+        assertThat(iterator.nextPage().getTitle(), equalTo("Title 0"));
+        iterator.close();
+        assertFalse(iterator.hasMorePages());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReset() throws Exception {
+        WikiPageIterator iterator = WikiXMLParserFactory.getStAXParser(writeDump(1, false)).getIterator();
+        try {
+            iterator.reset();
+        } finally {
+            iterator.close();
+        }
+    }
+
+    @Test
+    public void testPageOffsets() throws Exception {
+        String xml = dumpXml(randomIntBetween(1, 200));
+        String bytes = new String(xml.getBytes("UTF-8"), "ISO-8859-1");
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = bytes.indexOf("<page>"); i >= 0; i = bytes.indexOf("<page>", i + 1)) {
+            expected.add((long) i);
+        }
+
+        URL dump = writeDump(xml, true);
+        final WikiXMLParser parser = randomBoolean() ?
+                WikiXMLParserFactory.getSAXParser(dump) :
+                WikiXMLParserFactory.getStAXParser(dump);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            if (randomBoolean()) {
+                parser.setDecoderExecutor(executor, 2);
+            }
+            parser.setTrackPageOffsets(true);
+            final List<Long> offsets = new ArrayList<Long>();
+            parser.setPageCallback(new PageCallbackHandler() {
+                @Override
+                public void process(WikiPage page) {
+                    offsets.add(parser.getPageOffset());
+                }
+            });
+            parser.parse();
+            assertThat(offsets, equalTo(expected));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPageOffsetsAfterResume() throws Exception {
+        String xml = dumpXml(randomIntBetween(500, 800));
+        byte[] compressed = compress(xml.getBytes("UTF-8"), 1);
+        CBZip2InputStream blocks = new CBZip2InputStream(new ByteArrayInputStream(compressed));
+        long blockBitOffset = blocks.getBlockBitOffset();
+        long blockOutputOffset = 0;
+        while (blocks.read() >= 0 && blockOutputOffset == 0) {
+            if (blocks.getBlockBitOffset() != blockBitOffset) {
+                blockBitOffset = blocks.getBlockBitOffset();
+                blockOutputOffset = blocks.getBlockOutputOffset();
+            }
+        }
+        blocks.close();
+        assertThat(blockOutputOffset, greaterThan(0L));
+
+        // offsets count from the block resumed at
+        String bytes = new String(xml.getBytes("UTF-8"), "ISO-8859-1");
+        List<Long> expected = new ArrayList<Long>();
+        for (int i = bytes.indexOf("<page>", (int) blockOutputOffset); i >= 0; i = bytes.indexOf("<page>", i + 1)) {
+            expected.add(i - blockOutputOffset);
+        }
+
+        File file = File.createTempFile("dump", ".xml.bz2");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write('B');
+            out.write('Z');
+            out.write(compressed);
+        } finally {
+            out.close();
+        }
+        final WikiXMLParser parser = WikiXMLParserFactory.getSAXParser(file.toURI().toURL());
+        parser.setResumePosition(blockBitOffset, 1);
+        parser.setTrackPageOffsets(true);
+        final List<Long> offsets = new ArrayList<Long>();
+        parser.setPageCallback(new PageCallbackHandler() {
+            @Override
+            public void process(WikiPage page) {
+                offsets.add(parser.getPageOffset());
+            }
+        });
+        parser.parse();
+        assertThat(offsets, equalTo(expected));
+    }
+
+    private URL writeDump(int pages, boolean bzip2) throws IOException {
+        return writeDump(dumpXml(pages), bzip2);
+    }
+
+    private String dumpXml(int pages) {
+        StringBuilder dump = new StringBuilder();
+        dump.append("<mediawiki xmlns=\"http://www.mediawiki.org/xml/export-0.8/\" version=\"0.8\">\n");
+        dump.append("  <siteinfo>\n    <sitename>Wikipedia</sitename>\n  </siteinfo>\n");
+        for (int i = 0; i < pages; i++) {
+            dump.append("  <page>\n    <title>Title ").append(i).append("</title>\n");
+            dump.append("    <ns>0</ns>\n    <id>").append(i + 1).append("</id>\n");
+            dump.append("    <revision>\n      <id>").append(1000 + i).append("</id>\n");
+            dump.append("      <text xml:space=\"preserve\">");
+            for (int words = randomIntBetween(0, 100); words > 0; words--) {
+                dump.append(WORDS[randomIntBetween(0, WORDS.length - 1)]).append(' ');
+            }
+            dump.append("</text>\n    </revision>\n  </page>\n");
+        }
+        dump.append("</mediawiki>\n");
+        return dump.toString();
+    }
+
+    private URL writeDump(String xml, boolean bzip2) throws IOException {
+        File file = File.createTempFile("dump", bzip2 ? ".xml.bz2" : ".xml");
+        file.deleteOnExit();
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (bzip2) {
+                out.write('B');
+                out.write('Z');
+                out = new CBZip2OutputStream(out, randomIntBetween(1, 9));
+            }
+            out.write(xml.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file.toURI().toURL();
+    }
+}